@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges lookups issued by several threads within a short window into a single request.
+ *
+ * The first thread that asks for a key opens a batch and waits for the window to pass or for the batch to fill up.
+ * Keys asked for in the meantime join the batch. Then the opening thread loads all keys of the batch at once and
+ * hands the results to the waiting threads. No background thread is involved. The class is safe for use by several
+ * threads.
+ *
+ * @param <V> type of the results
+ * @author Felix Drueke
+ */
+public class P4Batcher<V> {
+
+	/**
+	 * Loads the results of a batch of keys
+	 */
+	public interface Loader<V> {
+
+		/**
+		 * Loads the results of several keys with a single request.
+		 *
+		 * @param keys the keys
+		 * @return the results keyed by key, keys without result may be missing
+		 * @throws IOException If the results can't be loaded.
+		 */
+		Map<String, V> load(List<String> keys) throws IOException;
+	}
+
+	/**
+	 * Loads the batches
+	 */
+	private final Loader<V> loader;
+
+	/**
+	 * Time in milliseconds a batch waits for further keys
+	 */
+	private final long window;
+
+	/**
+	 * Number of keys that closes a batch before its window passed
+	 */
+	private final int maxSize;
+
+	/**
+	 * The batch still accepting keys (null if there is none), guarded by this
+	 */
+	private Batch<V> open;
+
+	/**
+	 * Creates a batcher.
+	 *
+	 * @param loader loads the batches
+	 * @param window time in milliseconds a batch waits for further keys
+	 * @param maxSize number of keys that closes a batch before its window passed
+	 */
+	public P4Batcher(Loader<V> loader, long window, int maxSize) {
+		this.loader = loader;
+		this.window = window;
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * Gets the result of a key, loading it together with the keys other threads ask for at about the same time.
+	 *
+	 * @param key the key
+	 * @return the result or null if the loader reported none
+	 * @throws IOException If the batch couldn't be loaded or the wait was interrupted.
+	 */
+	public V get(String key) throws IOException {
+		Batch<V> batch;
+		boolean opener = false;
+		synchronized (this) {
+			if (open == null) {
+				open = new Batch<V>();
+				opener = true;
+			}
+			batch = open;
+			batch.keys.add(key);
+			if (batch.keys.size() >= maxSize) {
+				open = null;
+				notifyAll();
+			}
+		}
+		if (opener) {
+			collect(batch);
+			batch.load(loader);
+		}
+		return batch.await(key);
+	}
+
+	/**
+	 * Waits until the window of a batch passed or the batch is full, then closes it.
+	 *
+	 * @param batch the batch opened by the current thread
+	 */
+	private synchronized void collect(Batch<V> batch) {
+		long deadline = System.currentTimeMillis() + window;
+		try {
+			for (long remaining = window; (open == batch) && (remaining > 0);
+					remaining = deadline - System.currentTimeMillis()) {
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			// load what was collected so far, the threads waiting for the batch mustn't hang
+			Thread.currentThread().interrupt();
+		}
+		if (open == batch) {
+			open = null;
+		}
+	}
+
+	/**
+	 * Keys that are loaded together and their results
+	 */
+	private static class Batch<V> {
+
+		/**
+		 * The keys, in the order they were asked for
+		 */
+		private final Set<String> keys = new LinkedHashSet<String>();
+
+		/**
+		 * Whether the batch was loaded
+		 */
+		private boolean loaded = false;
+
+		/**
+		 * The results keyed by key
+		 */
+		private Map<String, V> results;
+
+		/**
+		 * Failure of the load (null if it succeeded)
+		 */
+		private IOException failure;
+
+		/**
+		 * Loads the batch and wakes up the waiting threads, whatever the loader throws. An Error is rethrown to the
+		 * calling thread, the waiting threads fail with an IOException.
+		 *
+		 * @param loader loads the batch
+		 */
+		void load(Loader<V> loader) {
+			Map<String, V> results = null;
+			IOException failure = new IOException("Loading a batch of " + keys.size() + " keys failed");
+			try {
+				results = loader.load(new ArrayList<String>(keys));
+				failure = null;
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				failure.initCause(e);
+			} catch (Error e) {
+				failure.initCause(e);
+				throw e;
+			} finally {
+				synchronized (this) {
+					this.results = results;
+					this.failure = failure;
+					this.loaded = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the batch to be loaded.
+		 *
+		 * @param key a key of the batch
+		 * @return the result of the key or null if there is none
+		 * @throws IOException If the batch couldn't be loaded or the wait was interrupted.
+		 */
+		synchronized V await(String key) throws IOException {
+			while (!loaded) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a batched perforce request");
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return (results != null) ? results.get(key) : null;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of depot paths: answers whether a path was possibly added or definitely not.
+ *
+ * Paths can only be added, never removed, so a path that once existed is reported as possibly existing forever. Paths
+ * are compared ignoring case: a case-insensitive server finds a file under any spelling of its path, and on a
+ * case-sensitive server paths differing in case only are merely reported as possibly added. The filter is safe for
+ * use by several threads.
+ *
+ * @author Felix Drueke
+ */
+public class P4BloomFilter {
+
+	/**
+	 * The bits
+	 */
+	private final AtomicLongArray bits;
+
+	/**
+	 * Number of bits
+	 */
+	private final long bitCount;
+
+	/**
+	 * Number of bits set per path
+	 */
+	private final int hashCount;
+
+	/**
+	 * Number of paths the filter was sized for
+	 */
+	private final int expectedPaths;
+
+	/**
+	 * Number of paths added that weren't possibly added before
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Creates a filter sized for the given number of paths and rate of false positives.
+	 *
+	 * @param expectedPaths number of paths that will be added
+	 * @param falsePositiveRate rate of paths that weren't added but are reported as possibly added, e.g. 0.01
+	 */
+	public P4BloomFilter(int expectedPaths, double falsePositiveRate) {
+		this.expectedPaths = Math.max(1, expectedPaths);
+		double ln2 = Math.log(2);
+		long bitsNeeded = (long) Math.ceil(-this.expectedPaths * Math.log(falsePositiveRate) / (ln2 * ln2));
+		int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (bitsNeeded + 63) / 64));
+		this.bits = new AtomicLongArray(words);
+		this.bitCount = 64L * words;
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / this.expectedPaths * ln2));
+	}
+
+	/**
+	 * Adds a path. Adding a path that was possibly added before leaves the size alone, so adding the same paths again
+	 * doesn't overfill the filter.
+	 *
+	 * @param path depot path
+	 */
+	public void add(String path) {
+		boolean added = false;
+		long hash = hash(path);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & 0x7FFFFFFFL) % bitCount;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			for (long current = bits.get(word); (current & mask) == 0; current = bits.get(word)) {
+				if (bits.compareAndSet(word, current, current | mask)) {
+					added = true;
+					break;
+				}
+			}
+		}
+		if (added) {
+			size.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Checks whether a path was possibly added.
+	 *
+	 * @param path depot path
+	 * @return false if the path was definitely not added
+	 */
+	public boolean mightContain(String path) {
+		long hash = hash(path);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & 0x7FFFFFFFL) % bitCount;
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether so many paths were added that false positives became much more likely than planned.
+	 *
+	 * @return true if more than twice the expected number of paths were added
+	 */
+	public boolean isOverfilled() {
+		return size.get() > 2 * expectedPaths;
+	}
+
+	/**
+	 * @return number of paths added, not counting paths that were possibly added before
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Hashes a path ignoring case into 64 bits (FNV-1a), of which the two halves are combined into the bit positions.
+	 *
+	 * @param path depot path
+	 * @return the hash
+	 */
+	private static long hash(String path) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			hash ^= Character.toLowerCase(path.charAt(i));
+			hash *= 0x100000001B3L;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.ivy.util.Message;
+
+import com.perforce.p4java.client.IClient;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.generic.client.ClientView;
+import com.perforce.p4java.impl.mapbased.client.Client;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * A small pool of long-lived perforce clients for publishing, so publish transactions don't create and delete a
+ * client each.
+ *
+ * The clients of a pool belong to one user on this host and map one depot. Their names are fixed, so they are reused
+ * across JVM restarts. A client is checked out by locking a file next to its root, which keeps the builds on the
+ * host from using the same client at once. Missing clients are created in the background when the pool is first
+ * used. Between transactions a client is reset: its have list is flushed and its root is emptied. While a client is
+ * checked out, its lock file is marked dirty; a client found dirty at checkout was left by a JVM that died, so its
+ * open files are reverted and its pending changelists deleted before it is reset. The class is safe for use by
+ * several threads.
+ *
+ * @author Felix Drueke
+ */
+public class P4ClientPool {
+
+	/**
+	 * Prefix of the names of pooled clients
+	 */
+	private static final String clPrefix = "ivyp4_";
+
+	/**
+	 * Pools shared by all repositories of this JVM, keyed by server, user and depot
+	 */
+	private static final ConcurrentMap<String, P4ClientPool> sharedPools = new ConcurrentHashMap<String, P4ClientPool>();
+
+	/**
+	 * system-tmpdir, holding the roots of the clients
+	 */
+	private static final String systemTemp = System.getProperty("java.io.tmpdir");
+
+	/**
+	 * Connections for creating clients in the background
+	 */
+	private final P4ConnectionPool connections;
+
+	/**
+	 * Owner of the clients
+	 */
+	private final String user;
+
+	/**
+	 * Host the clients are bound to
+	 */
+	private final String host;
+
+	/**
+	 * Depot mapped by the clients, e.g. //depot
+	 */
+	private final String depot;
+
+	/**
+	 * Names of the clients
+	 */
+	private final String[] names;
+
+	/**
+	 * Files whose locks mark the clients checked out (null while a client isn't checked out by this JVM)
+	 */
+	private final RandomAccessFile[] lockFiles;
+
+	/**
+	 * Locks of the checked out clients
+	 */
+	private final FileLock[] locks;
+
+	/**
+	 * Per client 1 once it is known to exist with the expected spec
+	 */
+	private final AtomicIntegerArray ready;
+
+	/**
+	 * Content of the lock file of a client that is checked out or wasn't reset
+	 */
+	private static final int dirtyMarker = 1;
+
+	/**
+	 * Creates a pool. Use {@link #getShared(P4ConnectionPool, String, String, String, int)} to share it.
+	 *
+	 * @param connections connections for creating clients in the background
+	 * @param user owner of the clients
+	 * @param depot depot mapped by the clients, e.g. //depot
+	 * @param size number of clients
+	 */
+	public P4ClientPool(P4ConnectionPool connections, String user, String depot, int size) {
+		this.connections = connections;
+		this.user = user;
+		this.host = getLocalHost();
+		this.depot = depot;
+		int count = Math.max(1, size);
+		names = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = clPrefix + sanitize(user) + "_" + sanitize(host) + "_" + sanitize(depot.substring(2)) + "_" + i;
+		}
+		lockFiles = new RandomAccessFile[count];
+		locks = new FileLock[count];
+		ready = new AtomicIntegerArray(count);
+	}
+
+	/**
+	 * Gets the pool of a user's clients mapping a depot, shared by all repositories of this JVM. A new pool starts
+	 * creating its clients in the background.
+	 *
+	 * @param connections connections for creating clients in the background
+	 * @param serverUriString p4java uri of the server
+	 * @param user owner of the clients
+	 * @param depot depot mapped by the clients, e.g. //depot
+	 * @param size number of clients, if the pool has to be created
+	 * @return the shared pool
+	 */
+	public static P4ClientPool getShared(P4ConnectionPool connections, String serverUriString, String user,
+			String depot, int size) {
+		String key = serverUriString + "\t" + user + "\t" + depot;
+		P4ClientPool pool = sharedPools.get(key);
+		if (pool == null) {
+			pool = new P4ClientPool(connections, user, depot, size);
+			P4ClientPool known = sharedPools.putIfAbsent(key, pool);
+			if (known != null) {
+				pool = known;
+			} else {
+				pool.warm();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Checks out a free client, creating it if it doesn't exist yet. The client is made the current client of the
+	 * server.
+	 *
+	 * @param server authenticated connection
+	 * @return the client, to be handed back via {@link #release(IClient)}, or null if all clients
+	 *         are in use
+	 * @throws P4JavaException If the client can't be created.
+	 */
+	public IClient checkout(IOptionsServer server) throws P4JavaException {
+		int slot = lock();
+		if (slot < 0) {
+			return null;
+		}
+		try {
+			IClient client = prepare(server, slot);
+			server.setCurrentClient(client);
+			if (isDirty(slot)) {
+				// the JVM that used the client last died with files open
+				Message.debug("Cleaning up pooled client " + client.getName() + " left dirty");
+				P4Utils.cleanClient(server, client);
+				reset(client);
+			}
+			setDirty(slot, true);
+			new File(client.getRoot()).mkdirs();
+			return client;
+		} catch (IOException e) {
+			unlock(slot);
+			throw (P4JavaException) new P4JavaException("Can't mark pooled client " + names[slot] + " checked out: "
+					+ e.getMessage()).initCause(e);
+		} catch (P4JavaException e) {
+			unlock(slot);
+			throw e;
+		} catch (RuntimeException e) {
+			unlock(slot);
+			throw e;
+		}
+	}
+
+	/**
+	 * Resets a client and hands it back to the pool. A client that can't be reset is left marked dirty, so it is
+	 * cleaned up at its next checkout.
+	 *
+	 * @param client a client obtained via {@link #checkout(IOptionsServer)}
+	 */
+	public void release(IClient client) {
+		int slot = indexOf(client.getName());
+		try {
+			if (reset(client)) {
+				setDirty(slot, false);
+			}
+		} catch (IOException e) {
+			Message.debug("Can't mark pooled client " + client.getName() + " clean: " + e.getMessage());
+		} finally {
+			unlock(slot);
+		}
+	}
+
+	/**
+	 * Creates the clients that don't exist yet in a background thread with a connection of its own.
+	 */
+	public void warm() {
+		Thread warmer = new Thread("p4 client pool " + depot) {
+			@Override
+			public void run() {
+				IOptionsServer server = null;
+				try {
+					server = connections.openConnection();
+					for (int i = 0; i < names.length; i++) {
+						if (ready.get(i) == 0) {
+							prepare(server, i);
+						}
+					}
+				} catch (IOException e) {
+					Message.debug("Can't create pooled clients in the background: " + e.getMessage());
+				} catch (P4JavaException e) {
+					Message.debug("Can't create pooled clients in the background: " + e.getMessage());
+				} finally {
+					if (server != null) {
+						P4ConnectionPool.disconnect(server);
+					}
+				}
+			}
+		};
+		warmer.setDaemon(true);
+		warmer.start();
+	}
+
+	/**
+	 * Builds the spec of a client and creates the client on the server unless it is known to exist.
+	 *
+	 * @param server authenticated connection
+	 * @param slot index of the client
+	 * @return the client
+	 * @throws P4JavaException If the client can't be looked up or created.
+	 */
+	private IClient prepare(IOptionsServer server, int slot) throws P4JavaException {
+		String name = names[slot];
+		Client client = new Client(server);
+		client.setName(name);
+		client.setRoot(systemTemp + "/" + name);
+		client.setOwnerName(user);
+		client.setHostName(host);
+		client.setServer(server);
+		ClientView mapping = new ClientView();
+		mapping.addEntry(new ClientView.ClientViewMapping(0, depot + "/...", "//" + name + "/..."));
+		client.setClientView(mapping);
+
+		if (ready.get(slot) == 0) {
+			IClient existing = server.getClient(name);
+			if (existing == null) {
+				server.createClient(client);
+				Message.debug("created pooled client " + name);
+			} else if (!client.getRoot().equals(existing.getRoot()) || !host.equals(existing.getHostName())) {
+				server.updateClient(client);
+				Message.debug("updated pooled client " + name);
+			}
+			ready.set(slot, 1);
+		}
+		return client;
+	}
+
+	/**
+	 * Resets a client so it can be used by the next transaction: the have list is flushed and the root emptied.
+	 * Reverting open files and deleting pending changelists is left to the transaction, which knows them.
+	 *
+	 * @param client the client
+	 * @return true if the have list was flushed
+	 */
+	private boolean reset(IClient client) {
+		boolean flushed = true;
+		try {
+			// sync -k to #none: forgets the submitted files without touching the root
+			client.sync(FileSpecBuilder.makeFileSpecList("//" + client.getName() + "/...#none"), false, false, true,
+					false);
+		} catch (P4JavaException e) {
+			Message.warn("Can't flush pooled client " + client.getName() + ": " + e.getMessage());
+			flushed = false;
+		}
+		P4Utils.deleteDir(new File(client.getRoot()));
+		return flushed;
+	}
+
+	/**
+	 * Checks whether a locked client is marked dirty.
+	 *
+	 * @param slot index of the client
+	 * @return true if the client was left checked out or wasn't reset
+	 * @throws IOException If the lock file can't be read.
+	 */
+	private synchronized boolean isDirty(int slot) throws IOException {
+		RandomAccessFile lockFile = lockFiles[slot];
+		lockFile.seek(0);
+		return lockFile.read() == dirtyMarker;
+	}
+
+	/**
+	 * Marks a locked client dirty or clean.
+	 *
+	 * @param slot index of the client
+	 * @param dirty whether the client is dirty
+	 * @throws IOException If the lock file can't be written.
+	 */
+	private synchronized void setDirty(int slot, boolean dirty) throws IOException {
+		if ((slot < 0) || (lockFiles[slot] == null)) {
+			return;
+		}
+		RandomAccessFile lockFile = lockFiles[slot];
+		lockFile.seek(0);
+		lockFile.write(dirty ? dirtyMarker : 0);
+		lockFile.getChannel().force(false);
+	}
+
+	/**
+	 * Locks a free client.
+	 *
+	 * @return index of the locked client or -1 if all are in use
+	 */
+	private synchronized int lock() {
+		for (int i = 0; i < names.length; i++) {
+			if (locks[i] != null) {
+				continue;
+			}
+			RandomAccessFile lockFile = null;
+			try {
+				lockFile = new RandomAccessFile(new File(systemTemp, names[i] + ".lock"), "rw");
+				FileLock lock = lockFile.getChannel().tryLock();
+				if (lock != null) {
+					lockFiles[i] = lockFile;
+					locks[i] = lock;
+					return i;
+				}
+			} catch (IOException e) {
+				Message.debug("Can't lock pooled client " + names[i] + ": " + e.getMessage());
+			} catch (OverlappingFileLockException e) {
+				// locked by this JVM
+			}
+			closeQuietly(lockFile);
+		}
+		return -1;
+	}
+
+	/**
+	 * Unlocks a client.
+	 *
+	 * @param slot index of the client
+	 */
+	private synchronized void unlock(int slot) {
+		if ((slot < 0) || (locks[slot] == null)) {
+			return;
+		}
+		try {
+			locks[slot].release();
+		} catch (IOException e) {
+			Message.debug("Can't unlock pooled client " + names[slot] + ": " + e.getMessage());
+		}
+		closeQuietly(lockFiles[slot]);
+		locks[slot] = null;
+		lockFiles[slot] = null;
+	}
+
+	/**
+	 * Looks up a client by name.
+	 *
+	 * @param name name of the client
+	 * @return index of the client or -1 if it isn't pooled
+	 */
+	private int indexOf(String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Closes a lock file, ignoring errors.
+	 *
+	 * @param lockFile the file (may be null)
+	 */
+	private static void closeQuietly(RandomAccessFile lockFile) {
+		if (lockFile != null) {
+			try {
+				lockFile.close();
+			} catch (IOException e) {
+				// nothing left to clean up
+			}
+		}
+	}
+
+	/**
+	 * Replaces the characters that aren't allowed in client names.
+	 *
+	 * @param s part of a client name
+	 * @return the sanitized part
+	 */
+	private static String sanitize(String s) {
+		return s.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/**
+	 * @return the name of this host
+	 */
+	private static String getLocalHost() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+}
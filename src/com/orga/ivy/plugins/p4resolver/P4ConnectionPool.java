@@ -0,0 +1,311 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.ivy.util.Message;
+
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.option.UsageOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.ServerFactory;
+
+/**
+ * A bounded pool of authenticated Perforce connections.
+ *
+ * Connections are opened on demand up to the configured maximum. Callers check a connection out, use it exclusively
+ * and return it to the pool afterwards. If all connections are in use, callers wait until one is returned.
+ * Connections that were idle for longer than the idle timeout are closed, connections that were idle for a while
+ * are checked before they are handed out again. The pool is safe for use by several threads.
+ *
+ * @author Felix Drueke
+ */
+public class P4ConnectionPool {
+
+	/**
+	 * p4java uri of the server
+	 */
+	private String serverUriString;
+
+	/**
+	 * The user name to use to connect to Perforce.
+	 */
+	private String p4User;
+
+	/**
+	 * The password to use to connect to Perforce (may be null).
+	 */
+	private String p4Passwd;
+
+	/**
+	 * Maximum number of open connections
+	 */
+	private int maxConnections;
+
+	/**
+	 * Default maximum number of open connections
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+	/**
+	 * Default time in milliseconds after which idle connections are closed
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * Time in milliseconds a connection may be idle before it is checked prior to being handed out again
+	 */
+	private static final long validationInterval = 30 * 1000;
+
+	/**
+	 * Time in milliseconds after which idle connections are closed
+	 */
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	/**
+	 * Number of currently open connections (idle or checked out)
+	 */
+	private int openConnections = 0;
+
+	/**
+	 * Connections that are currently not in use, most recently used first
+	 */
+	private LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+
+	/**
+	 * Creates a pool of connections to a Perforce server.
+	 *
+	 * @param serverUriString p4java uri of the server
+	 * @param p4User user name (may be null if it is set via environment)
+	 * @param p4Passwd password (may be null if authenticated via ticket)
+	 * @param maxConnections maximum number of open connections
+	 */
+	public P4ConnectionPool(String serverUriString, String p4User, String p4Passwd, int maxConnections) {
+		this.serverUriString = serverUriString;
+		this.p4User = p4User;
+		this.p4Passwd = p4Passwd;
+		this.maxConnections = Math.max(1, maxConnections);
+	}
+
+	/**
+	 * Sets the time after which idle connections are closed.
+	 *
+	 * @param idleTimeout time in milliseconds
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Sets the maximum number of open connections.
+	 *
+	 * @param maxConnections maximum number of open connections
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+		this.maxConnections = Math.max(1, maxConnections);
+		notifyAll();
+	}
+
+	/**
+	 * Checks out a connection. A new connection is opened if none is idle and the maximum isn't reached yet,
+	 * otherwise the call waits for a connection to be returned.
+	 *
+	 * @return an authenticated connection that has to be returned via {@link #release(IOptionsServer)} or
+	 *         {@link #invalidate(IOptionsServer)}
+	 * @throws IOException If no connection could be opened.
+	 */
+	public IOptionsServer checkout() throws IOException {
+		while (true) {
+			IdleConnection candidate = null;
+			synchronized (this) {
+				evictIdle();
+				while (idle.isEmpty() && (openConnections >= maxConnections)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for a perforce connection");
+					}
+				}
+				if (!idle.isEmpty()) {
+					candidate = idle.removeFirst();
+				} else {
+					openConnections++;
+				}
+			}
+			if (candidate == null) {
+				try {
+					return openConnection();
+				} catch (IOException e) {
+					synchronized (this) {
+						openConnections--;
+						notifyAll();
+					}
+					throw e;
+				}
+			}
+			if (isHealthy(candidate)) {
+				return candidate.server;
+			}
+			Message.debug("Discarding stale perforce connection to " + serverUriString);
+			invalidate(candidate.server);
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool.
+	 *
+	 * @param server a connection checked out from this pool
+	 */
+	public synchronized void release(IOptionsServer server) {
+		idle.addFirst(new IdleConnection(server));
+		evictIdle();
+		notifyAll();
+	}
+
+	/**
+	 * Closes a connection that is broken instead of returning it to the pool.
+	 *
+	 * @param server a connection checked out from this pool
+	 */
+	public void invalidate(IOptionsServer server) {
+		disconnect(server);
+		synchronized (this) {
+			openConnections--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public synchronized void close() {
+		for (IdleConnection connection : idle) {
+			disconnect(connection.server);
+			openConnections--;
+		}
+		idle.clear();
+	}
+
+	/**
+	 * Closes all connections that were idle for longer than the idle timeout. Must be called with the pool's lock
+	 * held.
+	 */
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Iterator<IdleConnection> it = idle.iterator(); it.hasNext(); ) {
+			IdleConnection connection = it.next();
+			if (now - connection.since > idleTimeout) {
+				Message.debug("Closing idle perforce connection to " + serverUriString);
+				disconnect(connection.server);
+				openConnections--;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Checks whether an idle connection is still usable. Connections that were used recently are trusted, others
+	 * have to answer a cheap server request.
+	 *
+	 * @param connection the idle connection
+	 * @return true if the connection can be handed out
+	 */
+	private static boolean isHealthy(IdleConnection connection) {
+		if (!connection.server.isConnected()) {
+			return false;
+		}
+		if (System.currentTimeMillis() - connection.since < validationInterval) {
+			return true;
+		}
+		try {
+			return connection.server.getServerInfo() != null;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Opens and authenticates a new connection. Connections opened by this method directly aren't managed by the
+	 * pool, callers have to disconnect them themselves.
+	 *
+	 * @return an authenticated connection
+	 * @throws IOException If the connection can't be opened or authenticated.
+	 */
+	public IOptionsServer openConnection() throws IOException {
+		Message.debug("Opening new perforce connection to " + serverUriString);
+		IOptionsServer server = null;
+		try {
+			server = ServerFactory.getOptionsServer(
+					serverUriString, null,
+					new UsageOptions(null).setProgramName("IvyP4Resolver")
+					.setProgramVersion("0.0.1"));
+		} catch (Exception e) {
+			Message.error("Can't connect to perforce-server '" + serverUriString + "'");
+			throw (IOException) new IOException("Can't connect to perforce-server '" + serverUriString + "'").initCause(e);
+		}
+		boolean authenticated = false;
+		try {
+			authenticated = P4Utils.authenticate(server, serverUriString, p4User, p4Passwd);
+		} catch (Exception e) {
+			throw (IOException) new IOException("Perforce authentication failed").initCause(e);
+		}
+		if (!authenticated) {
+			disconnect(server);
+			throw new IOException("Perforce authentication failed");
+		}
+		return server;
+	}
+
+	/**
+	 * Closes a connection, problems are only logged.
+	 *
+	 * @param server the connection to close
+	 */
+	public static void disconnect(IOptionsServer server) {
+		try {
+			server.disconnect();
+		} catch (P4JavaException e) {
+			Message.debug("Problem closing perforce connection: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * An idle connection along with the time it was returned to the pool
+	 */
+	private static class IdleConnection {
+
+		/**
+		 * The connection
+		 */
+		final IOptionsServer server;
+
+		/**
+		 * When the connection was returned to the pool
+		 */
+		final long since = System.currentTimeMillis();
+
+		/**
+		 * @param server the idle connection
+		 */
+		IdleConnection(IOptionsServer server) {
+			this.server = server;
+		}
+	}
+}
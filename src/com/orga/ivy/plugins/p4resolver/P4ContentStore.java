@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.ivy.util.Message;
+
+/**
+ * Local content-addressed store for files retrieved from Perforce.
+ *
+ * Files are keyed by the MD5 digest the server reports for them (fstat -Ol), so identical contents are only
+ * transferred once no matter under which depot path they are published. The store is bounded in size, the least
+ * recently used files are evicted first. Several JVMs may share a store directory.
+ *
+ * @author Felix Drueke
+ */
+public class P4ContentStore {
+
+	/**
+	 * Default upper bound of the store in megabytes
+	 */
+	public static final long DEFAULT_MAX_SIZE_MB = 1024;
+
+	/**
+	 * Suffix of files that are being written to the store
+	 */
+	private static final String partSuffix = ".part";
+
+	/**
+	 * Root directory of the store
+	 */
+	private File baseDir;
+
+	/**
+	 * Upper bound of the store in bytes
+	 */
+	private long maxSize;
+
+	/**
+	 * Size of the store in bytes as far as this JVM knows (-1 if unknown)
+	 */
+	private long currentSize = -1;
+
+	/**
+	 * Creates a store in the given directory.
+	 *
+	 * @param baseDir root directory of the store (created if it doesn't exist)
+	 * @param maxSize upper bound of the store in bytes
+	 */
+	public P4ContentStore(File baseDir, long maxSize) {
+		this.baseDir = baseDir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Sets the upper bound of the store.
+	 *
+	 * @param maxSize upper bound of the store in bytes
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Copies the file with the given digest out of the store.
+	 *
+	 * @param digest MD5 digest as reported by the server
+	 * @param destination where the file should be copied to
+	 * @return true if the store held the file, false otherwise
+	 */
+	public boolean materialize(String digest, File destination) {
+		File stored = getStoreFile(digest);
+		if (!stored.isFile()) {
+			return false;
+		}
+		try {
+			copyFile(stored, destination);
+		} catch (IOException e) {
+			Message.warn("Couldn't copy " + stored + " out of the content store: " + e.getMessage());
+			return false;
+		}
+		// remember the access for eviction
+		stored.setLastModified(System.currentTimeMillis());
+		Message.debug("Took " + destination.getName() + " from the content store (" + digest + ")");
+		return true;
+	}
+
+	/**
+	 * Adds a file to the store.
+	 *
+	 * @param digest MD5 digest of the file as reported by the server
+	 * @param source the file to add (left untouched)
+	 */
+	public synchronized void store(String digest, File source) {
+		File stored = getStoreFile(digest);
+		if (stored.isFile()) {
+			return;
+		}
+		File part = null;
+		try {
+			part = P4Utils.createPartFile(stored);
+			copyFile(source, part);
+			String actual = P4Utils.digest(part);
+			if (!actual.equalsIgnoreCase(digest)) {
+				Message.warn("Not adding " + source + " to the content store, its digest is " + actual + " instead of "
+						+ digest);
+				part.delete();
+				return;
+			}
+			// another JVM may have stored the same contents in the meantime, that copy is as good as this one
+			if (!part.renameTo(stored)) {
+				part.delete();
+				return;
+			}
+		} catch (IOException e) {
+			Message.warn("Couldn't add " + source + " to the content store: " + e.getMessage());
+			if (part != null) {
+				part.delete();
+			}
+			return;
+		}
+		if (currentSize >= 0) {
+			currentSize += stored.length();
+		}
+		evict();
+	}
+
+	/**
+	 * Removes the least recently used files until the store is within its size bound again.
+	 */
+	private void evict() {
+		if ((currentSize >= 0) && (currentSize <= maxSize)) {
+			return;
+		}
+		// other JVMs may have added files in the meantime - look at what's really there
+		List<File> files = new ArrayList<File>();
+		collectFiles(baseDir, files);
+		long size = 0;
+		for (File f : files) {
+			size += f.length();
+		}
+		if (size > maxSize) {
+			Collections.sort(files, new Comparator<File>() {
+				public int compare(File f1, File f2) {
+					long m1 = f1.lastModified();
+					long m2 = f2.lastModified();
+					return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+				}
+			});
+			for (File f : files) {
+				if (size <= maxSize) {
+					break;
+				}
+				long length = f.length();
+				if (f.delete()) {
+					Message.debug("Evicted " + f.getName() + " from the content store");
+					size -= length;
+				}
+			}
+		}
+		currentSize = size;
+	}
+
+	/**
+	 * Collects all completely written files of the store.
+	 *
+	 * @param dir directory to start at
+	 * @param files list the files are added to
+	 */
+	private static void collectFiles(File dir, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory()) {
+				collectFiles(child, files);
+			} else if (!child.getName().endsWith(partSuffix)) {
+				files.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Gets the location of a file in the store. Files are spread over subdirectories named after the first two
+	 * characters of their digest.
+	 *
+	 * @param digest MD5 digest of the file
+	 * @return location of the file in the store
+	 */
+	private File getStoreFile(String digest) {
+		String key = digest.toLowerCase();
+		return new File(new File(baseDir, key.substring(0, 2)), key);
+	}
+
+	/**
+	 * Copy a file locally (on filesystem)
+	 *
+	 * @param src sourcefile
+	 * @param dst targetfile
+	 * @throws IOException
+	 */
+	private static void copyFile(File src, File dst) throws IOException {
+		FileChannel in = new FileInputStream(src).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(dst).getChannel();
+			try {
+				long size = in.size();
+				for (long pos = 0; pos < size; ) {
+					pos += in.transferTo(pos, size - pos, out);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
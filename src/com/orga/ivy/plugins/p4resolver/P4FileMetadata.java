@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+
+/**
+ * Immutable metadata of a depot file as reported by fstat.
+ *
+ * @author Felix Drueke
+ */
+public class P4FileMetadata {
+
+	/**
+	 * Metadata of a file that doesn't exist
+	 */
+	public static final P4FileMetadata MISSING = new P4FileMetadata(false, 0, 0, null);
+
+	/**
+	 * true if the file exists in the depot
+	 */
+	private final boolean exists;
+
+	/**
+	 * time of the head revision in milliseconds
+	 */
+	private final long headTime;
+
+	/**
+	 * size of the head revision in bytes
+	 */
+	private final long size;
+
+	/**
+	 * MD5 digest of the head revision (may be null)
+	 */
+	private final String digest;
+
+	/**
+	 * Creates metadata of a depot file.
+	 *
+	 * @param exists true if the file exists in the depot
+	 * @param headTime time of the head revision in milliseconds
+	 * @param size size of the head revision in bytes
+	 * @param digest MD5 digest of the head revision (may be null)
+	 */
+	public P4FileMetadata(boolean exists, long headTime, long size, String digest) {
+		this.exists = exists;
+		this.headTime = headTime;
+		this.size = size;
+		this.digest = digest;
+	}
+
+	/**
+	 * Creates metadata from an fstat result.
+	 *
+	 * @param spec fstat result (may be null or an error spec)
+	 * @return metadata of the file, {@link #MISSING} if the spec doesn't describe an existing file
+	 */
+	public static P4FileMetadata fromSpec(IExtendedFileSpec spec) {
+		if ((spec == null) || (spec.getHeadAction() == null)) {
+			return MISSING;
+		}
+		long headTime = (spec.getHeadTime() != null) ? spec.getHeadTime().getTime() : 0;
+		return new P4FileMetadata(true, headTime, spec.getFileSize(), spec.getDigest());
+	}
+
+	/**
+	 * @return true if the file exists in the depot
+	 */
+	public boolean exists() {
+		return exists;
+	}
+
+	/**
+	 * @return time of the head revision in milliseconds
+	 */
+	public long getHeadTime() {
+		return headTime;
+	}
+
+	/**
+	 * @return size of the head revision in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return MD5 digest of the head revision (may be null)
+	 */
+	public String getDigest() {
+		return digest;
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache that evicts the least recently used entries.
+ *
+ * The cache is split into segments with their own locks, so threads working on different keys rarely contend.
+ * Values may be held softly, the garbage collector may then drop them when memory gets tight. Hits, misses and
+ * evictions are counted.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ * @author Felix Drueke
+ */
+public class P4LruCache<K, V> {
+
+	/**
+	 * Number of segments
+	 */
+	private static final int segmentCount = 16;
+
+	/**
+	 * The segments, each one holding the entries of the keys that hash to it
+	 */
+	private final Segment<K>[] segments;
+
+	/**
+	 * Whether values are held by soft references
+	 */
+	private final boolean softValues;
+
+	/**
+	 * Number of lookups that found a value
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Number of lookups that found no value
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Number of entries evicted to stay within the size bound or dropped by the garbage collector
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxSize maximum number of entries
+	 * @param softValues true to hold values by soft references
+	 */
+	@SuppressWarnings("unchecked")
+	public P4LruCache(int maxSize, boolean softValues) {
+		this.softValues = softValues;
+		this.segments = (Segment<K>[]) new Segment<?>[segmentCount];
+		int segmentSize = segmentSize(maxSize);
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<K>(segmentSize, evictions);
+		}
+	}
+
+	/**
+	 * Changes the maximum number of entries. The entries are kept, if the cache shrinks only the least recently used
+	 * ones are evicted.
+	 *
+	 * @param maxSize maximum number of entries
+	 */
+	public void setMaxSize(int maxSize) {
+		int segmentSize = segmentSize(maxSize);
+		for (Segment<K> segment : segments) {
+			synchronized (segment) {
+				segment.setMaxSize(segmentSize);
+			}
+		}
+	}
+
+	/**
+	 * Looks up a value.
+	 *
+	 * @param key the key
+	 * @return the value or null if there is none
+	 */
+	public V get(K key) {
+		Segment<K> segment = segmentFor(key);
+		V value;
+		synchronized (segment) {
+			value = dereference(segment, key, segment.get(key));
+		}
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Stores a value unless the cache already holds one for the key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the value already held or null if the given value was stored
+	 */
+	public V putIfAbsent(K key, V value) {
+		Segment<K> segment = segmentFor(key);
+		synchronized (segment) {
+			V known = dereference(segment, key, segment.get(key));
+			if (known != null) {
+				return known;
+			}
+			segment.put(key, softValues ? new SoftReference<V>(value) : value);
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the value of a key.
+	 *
+	 * @param key the key
+	 */
+	public void remove(K key) {
+		Segment<K> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+	/**
+	 * Removes all values.
+	 */
+	public void clear() {
+		for (Segment<K> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return a snapshot of the keys (including keys whose values were already dropped by the garbage collector)
+	 */
+	public List<K> keys() {
+		List<K> keys = new ArrayList<K>();
+		for (Segment<K> segment : segments) {
+			synchronized (segment) {
+				keys.addAll(segment.keySet());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the number of entries (including values already dropped by the garbage collector)
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<K> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of lookups that found a value
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups that found no value
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of entries evicted to stay within the size bound or dropped by the garbage collector
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Formats the counters for logging.
+	 *
+	 * @return the counters
+	 */
+	public String toString() {
+		return size() + " entries, " + hits.get() + " hits, " + misses.get() + " misses, " + evictions.get()
+				+ " evictions";
+	}
+
+	/**
+	 * Gets a value as stored in a segment, dropping the entry if the garbage collector cleared it. Must be called with
+	 * the segment's lock held.
+	 *
+	 * @param segment the segment holding the entry
+	 * @param key the key of the entry
+	 * @param stored the value or a soft reference to it (may be null)
+	 * @return the value or null
+	 */
+	@SuppressWarnings("unchecked")
+	private V dereference(Segment<K> segment, K key, Object stored) {
+		if (stored == null) {
+			return null;
+		}
+		V value = softValues ? ((SoftReference<V>) stored).get() : (V) stored;
+		if (value == null) {
+			segment.remove(key);
+			evictions.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * @param maxSize maximum number of entries of the cache
+	 * @return maximum number of entries of a segment
+	 */
+	private static int segmentSize(int maxSize) {
+		return Math.max(1, (maxSize + segmentCount - 1) / segmentCount);
+	}
+
+	/**
+	 * @param key a key
+	 * @return the segment holding the entry of the key
+	 */
+	private Segment<K> segmentFor(K key) {
+		int hash = key.hashCode();
+		// spread the bits, the low ones of string hashes are poorly distributed for similar paths
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		hash ^= (hash >>> 7) ^ (hash >>> 4);
+		return segments[hash & (segmentCount - 1)];
+	}
+
+	/**
+	 * Part of the cache: an access-ordered map of values (or soft references to them) that drops its least recently
+	 * used entry when it grows too large
+	 */
+	private static class Segment<K> extends LinkedHashMap<K, Object> {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Maximum number of entries in this segment
+		 */
+		private int maxSize;
+
+		/**
+		 * Eviction counter of the cache
+		 */
+		private final AtomicLong evictions;
+
+		/**
+		 * @param maxSize maximum number of entries in this segment
+		 * @param evictions eviction counter of the cache
+		 */
+		Segment(int maxSize, AtomicLong evictions) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+			this.evictions = evictions;
+		}
+
+		/**
+		 * Changes the maximum number of entries, evicting the least recently used ones that don't fit anymore.
+		 *
+		 * @param size maximum number of entries in this segment
+		 */
+		void setMaxSize(int size) {
+			maxSize = size;
+			Iterator<K> eldest = keySet().iterator();
+			while (size() > maxSize) {
+				eldest.next();
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, Object> eldest) {
+			if (size() > maxSize) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+}
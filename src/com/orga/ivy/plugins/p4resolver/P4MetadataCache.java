@@ -0,0 +1,551 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cache of depot file metadata that is shared by all repositories talking to the same server within a JVM.
+ *
+ * Entries don't expire by themselves, every lookup states how old an entry may be. That way repositories with
+ * different time-to-live settings can share the cache, and results for existing and missing files can have
+ * different lifetimes. Metadata of existing files and recursive listings are kept in a {@link P4PathTrie}, which
+ * stores the common prefixes of depot paths once, so even metadata of a whole repository fits into the heap.
+ *
+ * Results for missing files are kept apart in a size-bounded cache, since Ivy probes many optional artifacts that
+ * usually don't exist and these would otherwise crowd the cache.
+ *
+ * Directories whose complete contents were stored (see {@link #markComplete(String)}) answer lookups of files that
+ * aren't cached as missing, without asking the server.
+ *
+ * Directory listings and recursive listings of directory trees are cached as well. Invalidating a file drops the
+ * listings of all its enclosing directories, since a new file may also have created new subdirectories. Directory
+ * listings are kept in a size-bounded cache too.
+ *
+ * Since the cache lives as long as the JVM, entries older than the longest time to live any repository asked for
+ * (see {@link #setRetention(long)}) are purged while new ones are stored, except for those below directories whose
+ * entries are dropped as soon as they change (see {@link #retain(String)}).
+ *
+ * @author Felix Drueke
+ */
+public class P4MetadataCache {
+
+	/**
+	 * The caches shared within this JVM, keyed by server uri
+	 */
+	private static final ConcurrentMap<String, P4MetadataCache> sharedCaches =
+		new ConcurrentHashMap<String, P4MetadataCache>();
+
+	/**
+	 * Metadata of existing files and recursive listings, stored compactly since they may cover the whole repository
+	 */
+	private final P4PathTrie paths = new P4PathTrie();
+
+	/**
+	 * Guards {@link #paths}
+	 */
+	private final ReadWriteLock pathsLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Default maximum number of missing files that are remembered
+	 */
+	public static final int DEFAULT_MISSING_CACHE_SIZE = 10000;
+
+	/**
+	 * Depot paths of missing files along with the time they were found missing
+	 */
+	private final P4LruCache<String, Long> missing = new P4LruCache<String, Long>(DEFAULT_MISSING_CACHE_SIZE, false);
+
+	/**
+	 * Largest maximum number of missing files requested by the repositories sharing the cache (0 if none was)
+	 */
+	private int missingCacheSize = 0;
+
+	/**
+	 * Directories whose complete contents are cached, along with the time they were stored
+	 */
+	private final ConcurrentMap<String, Long> completeDirs = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Default maximum number of directory listings that are remembered
+	 */
+	public static final int DEFAULT_LISTING_CACHE_SIZE = 10000;
+
+	/**
+	 * Cached directory listings (files and subdirectories) keyed by directory as given to the listing
+	 */
+	private final P4LruCache<String, Listing> listings =
+		new P4LruCache<String, Listing>(DEFAULT_LISTING_CACHE_SIZE, false);
+
+	/**
+	 * Directories whose recursive listings (depot paths of all files below them) are cached, along with the time
+	 * they were stored
+	 */
+	private final ConcurrentMap<String, Long> trees = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Longest time to live requested by the repositories sharing the cache in milliseconds (0 if none was, then
+	 * nothing is purged)
+	 */
+	private long retention = 0;
+
+	/**
+	 * Depot paths of directories whose entries are never purged
+	 */
+	private final Set<String> retainedDirs = new CopyOnWriteArraySet<String>();
+
+	/**
+	 * When expired entries were last purged
+	 */
+	private final AtomicLong lastPurge = new AtomicLong(System.currentTimeMillis());
+
+	/**
+	 * Gets the cache shared by all repositories that talk to the given server.
+	 *
+	 * @param serverUriString p4java uri of the server
+	 * @return the shared cache
+	 */
+	public static P4MetadataCache getShared(String serverUriString) {
+		P4MetadataCache cache = sharedCaches.get(serverUriString);
+		if (cache == null) {
+			cache = new P4MetadataCache();
+			P4MetadataCache known = sharedCaches.putIfAbsent(serverUriString, cache);
+			if (known != null) {
+				cache = known;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Looks up the metadata of a depot file.
+	 *
+	 * @param path depot path of the file
+	 * @param positiveTtl how long metadata of existing files stays valid in milliseconds
+	 * @param negativeTtl how long results for missing files stay valid in milliseconds
+	 * @return the cached metadata or null if there is none that is recent enough
+	 */
+	public P4FileMetadata get(String path, long positiveTtl, long negativeTtl) {
+		P4FileMetadata metadata;
+		pathsLock.readLock().lock();
+		try {
+			metadata = paths.getMetadata(path, positiveTtl);
+		} finally {
+			pathsLock.readLock().unlock();
+		}
+		if (metadata != null) {
+			return metadata;
+		}
+		if (negativeTtl <= 0) {
+			return null;
+		}
+		Long missingSince = missing.get(path);
+		if ((missingSince == null) || (System.currentTimeMillis() - missingSince.longValue() > negativeTtl)) {
+			return null;
+		}
+		return P4FileMetadata.MISSING;
+	}
+
+	/**
+	 * Stores the metadata of a depot file.
+	 *
+	 * @param path depot path of the file
+	 * @param metadata metadata of the file
+	 */
+	public void put(String path, P4FileMetadata metadata) {
+		purgeIfDue();
+		pathsLock.writeLock().lock();
+		try {
+			if (metadata.exists()) {
+				paths.putMetadata(path, metadata, System.currentTimeMillis());
+			} else {
+				paths.removeMetadata(path);
+			}
+		} finally {
+			pathsLock.writeLock().unlock();
+		}
+		missing.remove(path);
+		if (!metadata.exists()) {
+			missing.putIfAbsent(path, Long.valueOf(System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Sets the maximum number of missing files that are remembered. The cache is shared, so the largest size
+	 * requested by any repository is kept. The missing files already remembered are kept as well, as far as they fit.
+	 *
+	 * @param size maximum number of missing files
+	 */
+	public synchronized void setMissingCacheSize(int size) {
+		if (size > missingCacheSize) {
+			missingCacheSize = size;
+			missing.setMaxSize(size);
+		}
+	}
+
+	/**
+	 * Sets how long entries are kept. The cache is shared, so the longest time requested by any repository is kept.
+	 *
+	 * @param ttl time to live in milliseconds
+	 */
+	public synchronized void setRetention(long ttl) {
+		if (ttl > retention) {
+			retention = ttl;
+		}
+	}
+
+	/**
+	 * @return how long entries are kept in milliseconds, 0 if they are kept forever
+	 */
+	private synchronized long getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Keeps the entries of a directory and the directories below it regardless of their age, e.g. because they are
+	 * dropped as soon as they change.
+	 *
+	 * @param dir depot path of the directory
+	 */
+	public void retain(String dir) {
+		retainedDirs.add(dir);
+	}
+
+	/**
+	 * Purges expired entries unless that was done recently.
+	 */
+	private void purgeIfDue() {
+		long ttl = getRetention();
+		if ((ttl <= 0) || (ttl == Long.MAX_VALUE)) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long last = lastPurge.get();
+		// purging walks all entries, so do it at most every half time to live
+		if ((now - last >= Math.max(ttl / 2, 1000)) && lastPurge.compareAndSet(last, now)) {
+			purge(now - ttl);
+		}
+	}
+
+	/**
+	 * Drops the metadata of existing files, complete directories and recursive listings stored before a given time,
+	 * except for those below retained directories. Missing files and directory listings are bounded by size
+	 * instead.
+	 *
+	 * @param time entries stored before this time are dropped
+	 */
+	void purge(long time) {
+		removeStoredBefore(completeDirs, time);
+		pathsLock.writeLock().lock();
+		try {
+			paths.removeMetadataStoredBefore(time, retainedDirs);
+			List<String> expired = new ArrayList<String>();
+			for (Map.Entry<String, Long> entry : trees.entrySet()) {
+				if ((entry.getValue().longValue() < time) && !isRetained(entry.getKey())) {
+					expired.add(entry.getKey());
+				}
+			}
+			for (String dir : expired) {
+				trees.remove(dir);
+				if (!isEnclosed(trees, dir)) {
+					// the listing marks below the directory aren't needed by an enclosing listing either
+					paths.unlistTree(dir);
+					removeTree(trees, dir);
+				}
+			}
+		} finally {
+			pathsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the entries stored before a given time, except for those below retained directories.
+	 *
+	 * @param map entries keyed by depot path of a directory along with the time they were stored
+	 * @param time entries stored before this time are removed
+	 */
+	private void removeStoredBefore(ConcurrentMap<String, Long> map, long time) {
+		for (Iterator<Map.Entry<String, Long>> it = map.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Long> entry = it.next();
+			if ((entry.getValue().longValue() < time) && !isRetained(entry.getKey())) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param dir depot path of a directory
+	 * @return true if the directory is or lies below a retained directory
+	 */
+	private boolean isRetained(String dir) {
+		for (String retained : retainedDirs) {
+			if (dir.equals(retained) || dir.startsWith(retained + "/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param map entries keyed by depot path of a directory
+	 * @param dir depot path of a directory
+	 * @return true if the map has an entry for a directory enclosing the given one
+	 */
+	private static boolean isEnclosed(ConcurrentMap<String, ?> map, String dir) {
+		for (String parent = getParent(dir); parent != null; parent = getParent(parent)) {
+			if (map.containsKey(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the cache of missing files, e.g. to look at its hit, miss and eviction counters
+	 */
+	public P4LruCache<String, Long> getMissingCache() {
+		return missing;
+	}
+
+	/**
+	 * Drops the metadata of a depot file, e.g. because it was changed by a publish.
+	 *
+	 * @param path depot path of the file
+	 */
+	public void invalidate(String path) {
+		pathsLock.writeLock().lock();
+		try {
+			paths.removeMetadata(path);
+		} finally {
+			pathsLock.writeLock().unlock();
+		}
+		missing.remove(path);
+		// the contents of the enclosing directories aren't known completely anymore
+		for (String dir = getParent(path); dir != null; dir = getParent(dir)) {
+			completeDirs.remove(dir);
+			listings.remove(dir);
+			listings.remove(dir + "/");
+			trees.remove(dir);
+		}
+	}
+
+	/**
+	 * Drops everything cached about a directory and the files below it, e.g. because nothing is known about what
+	 * changed there.
+	 *
+	 * @param dir depot path of the directory
+	 */
+	public void invalidateTree(String dir) {
+		pathsLock.writeLock().lock();
+		try {
+			paths.removeTree(dir);
+		} finally {
+			pathsLock.writeLock().unlock();
+		}
+		String prefix = dir + "/";
+		for (String path : missing.keys()) {
+			if (path.startsWith(prefix)) {
+				missing.remove(path);
+			}
+		}
+		removeTree(completeDirs, dir);
+		for (String key : listings.keys()) {
+			if (key.equals(dir) || key.startsWith(dir + "/")) {
+				listings.remove(key);
+			}
+		}
+		removeTree(trees, dir);
+		for (String parent = getParent(dir); parent != null; parent = getParent(parent)) {
+			completeDirs.remove(parent);
+			listings.remove(parent);
+			listings.remove(parent + "/");
+			trees.remove(parent);
+		}
+	}
+
+	/**
+	 * Removes the entries of a directory and the directories below it.
+	 *
+	 * @param map entries keyed by depot path of a directory, possibly with a trailing slash
+	 * @param dir depot path of the directory
+	 */
+	private static void removeTree(ConcurrentMap<String, ?> map, String dir) {
+		for (Iterator<String> it = map.keySet().iterator(); it.hasNext(); ) {
+			String key = it.next();
+			if (key.equals(dir) || key.startsWith(dir + "/")) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Looks up the listing of a directory.
+	 *
+	 * @param dir depot path of the directory
+	 * @param ttl how long listings stay valid in milliseconds
+	 * @return a copy of the cached names of files and subdirectories or null if there is none that is recent enough
+	 */
+	public List<String> getListing(String dir, long ttl) {
+		Listing listing = listings.get(dir);
+		if ((listing == null) || (System.currentTimeMillis() - listing.storedAt > ttl)) {
+			return null;
+		}
+		return new ArrayList<String>(listing.names);
+	}
+
+	/**
+	 * Stores the listing of a directory.
+	 *
+	 * @param dir depot path of the directory
+	 * @param names names of the files and subdirectories in the directory
+	 */
+	public void putListing(String dir, List<String> names) {
+		purgeIfDue();
+		listings.remove(dir);
+		listings.putIfAbsent(dir, new Listing(new ArrayList<String>(names)));
+	}
+
+	/**
+	 * Records that the metadata of all files below a directory was just stored.
+	 *
+	 * @param dir depot path of the directory
+	 */
+	public void markComplete(String dir) {
+		purgeIfDue();
+		completeDirs.put(dir, Long.valueOf(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Checks whether a file lies below a directory whose complete contents were stored recently. If so, a file
+	 * that isn't cached doesn't exist.
+	 *
+	 * @param path depot path of the file
+	 * @param ttl how long the contents of a directory stay valid in milliseconds
+	 * @return true if the file lies below a completely cached directory
+	 */
+	public boolean isCovered(String path, long ttl) {
+		long now = System.currentTimeMillis();
+		for (String dir = getParent(path); dir != null; dir = getParent(dir)) {
+			Long storedAt = completeDirs.get(dir);
+			if ((storedAt != null) && (now - storedAt.longValue() <= ttl)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Looks up the depot paths of all files below a directory. A cached listing of an enclosing directory is used as
+	 * well.
+	 *
+	 * @param dir depot path of the directory
+	 * @param ttl how long listings stay valid in milliseconds
+	 * @return the depot paths or null if there is no listing that is recent enough
+	 */
+	public List<String> getTree(String dir, long ttl) {
+		long now = System.currentTimeMillis();
+		// purging drops the listing marks along with the entries
+		pathsLock.readLock().lock();
+		try {
+			for (String enclosing = dir; enclosing != null; enclosing = getParent(enclosing)) {
+				Long storedAt = trees.get(enclosing);
+				if ((storedAt != null) && (now - storedAt.longValue() <= ttl)) {
+					return paths.listTree(dir);
+				}
+			}
+		} finally {
+			pathsLock.readLock().unlock();
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the depot paths of all files below a directory.
+	 *
+	 * @param dir depot path of the directory
+	 * @param files depot paths of the files
+	 */
+	public void putTree(String dir, List<String> files) {
+		purgeIfDue();
+		pathsLock.writeLock().lock();
+		try {
+			paths.putTree(dir, files);
+			trees.put(dir, Long.valueOf(System.currentTimeMillis()));
+		} finally {
+			pathsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops all cached metadata.
+	 */
+	public void clear() {
+		pathsLock.writeLock().lock();
+		try {
+			paths.clear();
+		} finally {
+			pathsLock.writeLock().unlock();
+		}
+		missing.clear();
+		completeDirs.clear();
+		listings.clear();
+		trees.clear();
+	}
+
+	/**
+	 * Gets the parent directory of a depot path.
+	 *
+	 * @param path depot path
+	 * @return the parent directory or null if the path is a depot root
+	 */
+	static String getParent(String path) {
+		int slash = path.lastIndexOf('/');
+		return (slash > 2) ? path.substring(0, slash) : null;
+	}
+
+	/**
+	 * Cached directory listing along with the time it was stored
+	 */
+	private static class Listing {
+
+		/**
+		 * Names of the files and subdirectories
+		 */
+		final List<String> names;
+
+		/**
+		 * When the listing was stored
+		 */
+		final long storedAt = System.currentTimeMillis();
+
+		/**
+		 * @param names names of the files and subdirectories
+		 */
+		Listing(List<String> names) {
+			this.names = names;
+		}
+	}
+}
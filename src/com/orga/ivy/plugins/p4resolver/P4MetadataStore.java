@@ -0,0 +1,741 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.apache.ivy.util.Message;
+
+/**
+ * Store of file metadata and directory listings in a memory-mapped file, shared by all JVMs on a host that use the
+ * same file.
+ *
+ * Readers look a key up in a hash table of record offsets and read the record the offset points to. Records are
+ * never changed once written. Writers lock the file, append a new record and then publish its offset in the hash
+ * table, so readers see either the previous or the new record of a key. Within a JVM, readers and the writer share
+ * the store's monitor, which makes the record visible before its offset. The records of other JVMs are written
+ * through their own mapping of the file, which the Java memory model says nothing about, so each record carries a
+ * checksum: a record that a reader sees only partially is taken for missing. Removals append a tombstone. When
+ * the file fills up, the writer that notices it compacts the store: the newest records that are younger than the
+ * retention time are copied to a new file, which replaces the old one. The old file is then marked as retired, and
+ * the other JVMs switch to the new file on their next access.
+ *
+ * File layout: a header (magic number, format version, number of slots, retired flag, end of the records, slots in
+ * use), the hash table (one offset per slot, 0 for an empty slot), followed by the records.
+ *
+ * Keys are chosen by the callers. A store file may be shared by repositories of different servers, so repositories
+ * prefix their keys with their server.
+ *
+ * @author Felix Drueke
+ */
+public class P4MetadataStore {
+
+	/**
+	 * Default size of the store file in bytes
+	 */
+	public static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+	/**
+	 * Identifies store files
+	 */
+	private static final int magicNumber = 0x5034534D;
+
+	/**
+	 * Version of the file layout
+	 */
+	private static final int formatVersion = 2;
+
+	/**
+	 * Size of the file header
+	 */
+	private static final int headerSize = 64;
+
+	/**
+	 * Header offsets of the number of slots, the retired flag, the end of the records and the number of slots in use
+	 */
+	private static final int slotCountOffset = 8, retiredOffset = 12, appendOffset = 16, usedOffset = 24;
+
+	/**
+	 * Size of a record header: record length, key length, kind, value length, time stored, head time, size,
+	 * checksum and padding
+	 */
+	private static final int recordHeaderSize = 4 * 4 + 3 * 8 + 2 * 4;
+
+	/**
+	 * Offset of the checksum in a record, which covers the fields before it, the key and the value
+	 */
+	private static final int checksumOffset = 40;
+
+	/**
+	 * Record kinds: missing file, existing file (value is the digest), listing (value is the names separated by
+	 * newlines) and removed entry
+	 */
+	private static final int kindMissing = 0, kindFile = 1, kindListing = 2, kindRemoved = 3;
+
+	/**
+	 * Bytes of the store file per hash table slot
+	 */
+	private static final int bytesPerSlot = 128;
+
+	/**
+	 * The stores open in this JVM, keyed by the absolute path of their file. A JVM may lock a file only once, so all
+	 * repositories using the same file share its store.
+	 */
+	private static final ConcurrentMap<String, P4MetadataStore> sharedStores =
+		new ConcurrentHashMap<String, P4MetadataStore>();
+
+	/**
+	 * The store file
+	 */
+	private final File file;
+
+	/**
+	 * Size of the store file in bytes
+	 */
+	private final int capacity;
+
+	/**
+	 * Age in milliseconds after which records are dropped by compaction (0 to keep them until the store is full)
+	 */
+	private long retention = 0;
+
+	/**
+	 * The current mapping of the store file (null until opened)
+	 */
+	private volatile Mapping mapping;
+
+	/**
+	 * Creates a store that is kept in the given file. Within a JVM, each file may only be used by one store, see
+	 * {@link #getShared(File, int)}.
+	 *
+	 * @param file the store file (created if it doesn't exist)
+	 * @param capacity size of the store file in bytes
+	 */
+	public P4MetadataStore(File file, int capacity) {
+		this.file = file;
+		this.capacity = Math.max(capacity, 64 * 1024);
+	}
+
+	/**
+	 * Gets the store kept in the given file, shared by all repositories of this JVM that use the file.
+	 *
+	 * @param file the store file (created if it doesn't exist)
+	 * @param capacity size of the store file in bytes, if it has to be created
+	 * @return the shared store
+	 */
+	public static P4MetadataStore getShared(File file, int capacity) {
+		String key = file.getAbsolutePath();
+		P4MetadataStore store = sharedStores.get(key);
+		if (store == null) {
+			store = new P4MetadataStore(file, capacity);
+			P4MetadataStore known = sharedStores.putIfAbsent(key, store);
+			if (known != null) {
+				store = known;
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Sets the age after which records are dropped when the store is compacted. The store is shared, so the longest
+	 * retention asked for is kept.
+	 *
+	 * @param retention age in milliseconds
+	 */
+	public synchronized void setRetention(long retention) {
+		this.retention = Math.max(this.retention, retention);
+	}
+
+	/**
+	 * Looks up the metadata of a file.
+	 *
+	 * @param path depot path of the file
+	 * @param positiveTtl time in milliseconds the metadata of an existing file stays valid
+	 * @param negativeTtl time in milliseconds the knowledge that a file doesn't exist stays valid
+	 * @return the metadata or null if it isn't stored or expired
+	 */
+	public synchronized P4FileMetadata getMetadata(String path, long positiveTtl, long negativeTtl) {
+		Mapping current = open();
+		if (current == null) {
+			return null;
+		}
+		int record = current.find(encode(path));
+		if (record < 0) {
+			return null;
+		}
+		int kind = current.buffer.getInt(record + 8);
+		long age = System.currentTimeMillis() - current.buffer.getLong(record + 16);
+		if ((kind == kindMissing) && (age <= negativeTtl)) {
+			return P4FileMetadata.MISSING;
+		}
+		if ((kind == kindFile) && (age <= positiveTtl)) {
+			String digest = decode(current.getValue(record));
+			return new P4FileMetadata(true, current.buffer.getLong(record + 24), current.buffer.getLong(record + 32),
+					(digest.length() > 0) ? digest : null);
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the metadata of a file.
+	 *
+	 * @param path depot path of the file
+	 * @param metadata metadata of the file
+	 */
+	public void putMetadata(String path, P4FileMetadata metadata) {
+		if (metadata.exists()) {
+			String digest = (metadata.getDigest() != null) ? metadata.getDigest() : "";
+			append(path, kindFile, metadata.getHeadTime(), metadata.getSize(), encode(digest));
+		} else {
+			append(path, kindMissing, 0, 0, new byte[0]);
+		}
+	}
+
+	/**
+	 * Looks up the listing of a directory.
+	 *
+	 * @param dir depot path of the directory
+	 * @param ttl time in milliseconds the listing stays valid
+	 * @return names of the files and subdirectories or null if the listing isn't stored or expired
+	 */
+	public synchronized List<String> getListing(String dir, long ttl) {
+		Mapping current = open();
+		if (current == null) {
+			return null;
+		}
+		int record = current.find(encode(listingKey(dir)));
+		if ((record < 0) || (current.buffer.getInt(record + 8) != kindListing)
+				|| (System.currentTimeMillis() - current.buffer.getLong(record + 16) > ttl)) {
+			return null;
+		}
+		String names = decode(current.getValue(record));
+		List<String> listing = new ArrayList<String>();
+		for (int start = 0; start < names.length(); ) {
+			int end = names.indexOf('\n', start);
+			listing.add(names.substring(start, end));
+			start = end + 1;
+		}
+		return listing;
+	}
+
+	/**
+	 * Stores the listing of a directory.
+	 *
+	 * @param dir depot path of the directory
+	 * @param names names of the files and subdirectories
+	 */
+	public void putListing(String dir, List<String> names) {
+		StringBuilder value = new StringBuilder();
+		for (String name : names) {
+			value.append(name).append('\n');
+		}
+		append(listingKey(dir), kindListing, 0, 0, encode(value.toString()));
+	}
+
+	/**
+	 * Removes the metadata of a changed file and the listings of the directories above it.
+	 *
+	 * @param path depot path of the file
+	 */
+	public void remove(String path) {
+		remove("", path);
+	}
+
+	/**
+	 * Removes the metadata of a changed file and the listings of the directories above it, stored with keys that
+	 * have a prefix.
+	 *
+	 * @param prefix prefix of the keys, e.g. the server
+	 * @param path depot path of the file
+	 */
+	public void remove(String prefix, String path) {
+		append(prefix + path, kindRemoved, 0, 0, new byte[0]);
+		for (String dir = P4MetadataCache.getParent(path); dir != null; dir = P4MetadataCache.getParent(dir)) {
+			append(prefix + listingKey(dir), kindRemoved, 0, 0, new byte[0]);
+		}
+	}
+
+	/**
+	 * Closes the store file. The store is opened again on the next access.
+	 */
+	public synchronized void close() {
+		if (mapping != null) {
+			mapping.close();
+			mapping = null;
+		}
+	}
+
+	/**
+	 * @param dir depot path of a directory
+	 * @return key of the directory's listing, which can't clash with the path of a file
+	 */
+	private static String listingKey(String dir) {
+		return dir.endsWith("/") ? dir : dir + "/";
+	}
+
+	/**
+	 * Gets the current mapping of the store file, opening the file on first use and after another JVM replaced it.
+	 * Must be called with the store's monitor held.
+	 *
+	 * @return the mapping or null if the store can't be used
+	 */
+	private Mapping open() {
+		if ((mapping != null) && !mapping.isRetired()) {
+			return mapping;
+		}
+		close();
+		try {
+			mapping = new Mapping(file, capacity);
+		} catch (IOException e) {
+			Message.warn("Can't use metadata store " + file + ": " + e.getMessage());
+		}
+		return mapping;
+	}
+
+	/**
+	 * Appends a record and publishes it in the hash table, compacting the store if it is full.
+	 *
+	 * @param key the key of the record
+	 * @param kind the kind of the record
+	 * @param headTime time of the head revision in milliseconds
+	 * @param size size of the head revision in bytes
+	 * @param value UTF-8 bytes of the value
+	 */
+	private synchronized void append(String key, int kind, long headTime, long size, byte[] value) {
+		byte[] keyBytes = encode(key);
+		int length = align(recordHeaderSize + keyBytes.length + value.length);
+		if (length > capacity / 16) {
+			return;
+		}
+		long storedAt = System.currentTimeMillis();
+		for (int attempt = 0; attempt < 3; attempt++) {
+			Mapping current = open();
+			if (current == null) {
+				return;
+			}
+			FileLock lock = null;
+			try {
+				lock = current.channel.lock();
+				if (current.isRetired()) {
+					continue;
+				}
+				if (!current.append(keyBytes, kind, storedAt, headTime, size, value, length)) {
+					compact(current);
+				} else {
+					return;
+				}
+			} catch (IOException e) {
+				Message.warn("Can't write to metadata store " + file + ": " + e.getMessage());
+				return;
+			} finally {
+				if (lock != null) {
+					try {
+						lock.release();
+					} catch (IOException e) {
+						// released anyway when the file is closed
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the store file with one holding the newest records that are younger than the retention time, filled
+	 * to half of its capacity at most. Must be called with the store file locked.
+	 *
+	 * @param current mapping of the full store file
+	 * @throws IOException If the new file can't be written.
+	 */
+	private void compact(Mapping current) throws IOException {
+		List<Integer> records = new ArrayList<Integer>();
+		long oldest = (retention > 0) ? System.currentTimeMillis() - retention : Long.MIN_VALUE;
+		for (int slot = 0; slot < current.slotCount; slot++) {
+			long record = current.buffer.getLong(headerSize + slot * 8);
+			if ((record > 0) && current.isIntact(record) && (current.buffer.getInt((int) record + 8) != kindRemoved)
+					&& (current.buffer.getLong((int) record + 16) >= oldest)) {
+				records.add(Integer.valueOf((int) record));
+			}
+		}
+		final ByteBuffer buffer = current.buffer;
+		Collections.sort(records, new Comparator<Integer>() {
+			public int compare(Integer r1, Integer r2) {
+				long t1 = buffer.getLong(r1.intValue() + 16);
+				long t2 = buffer.getLong(r2.intValue() + 16);
+				return (t1 > t2) ? -1 : ((t1 < t2) ? 1 : 0);
+			}
+		});
+
+		File part = P4Utils.createPartFile(file);
+		Mapping compacted;
+		try {
+			compacted = new Mapping(part, capacity);
+		} catch (IOException e) {
+			part.delete();
+			throw e;
+		}
+		int kept = 0;
+		try {
+			int limit = capacity / 2;
+			for (Integer record : records) {
+				int r = record.intValue();
+				int length = buffer.getInt(r);
+				if ((compacted.end() + length > limit) || (compacted.used() >= compacted.slotCount / 2)) {
+					break;
+				}
+				compacted.append(current.getKey(r), buffer.getInt(r + 8), buffer.getLong(r + 16),
+						buffer.getLong(r + 24), buffer.getLong(r + 32), current.getValue(r), length);
+				kept++;
+			}
+			compacted.buffer.force();
+		} finally {
+			compacted.close();
+		}
+		P4Utils.replaceFile(part, file);
+		current.buffer.putInt(retiredOffset, 1);
+		Message.debug("Compacted metadata store " + file + ", kept " + kept + " of " + records.size() + " entries");
+	}
+
+	/**
+	 * @param length length of a record
+	 * @return the length rounded up to a multiple of 8, so offsets in the hash table are aligned
+	 */
+	private static int align(int length) {
+		return (length + 7) & ~7;
+	}
+
+	/**
+	 * @param string a string
+	 * @return UTF-8 bytes of the string
+	 */
+	private static byte[] encode(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+
+	/**
+	 * @param bytes UTF-8 bytes of a string
+	 * @return the string
+	 */
+	private static String decode(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+
+	/**
+	 * An open and mapped store file
+	 */
+	private static class Mapping {
+
+		/**
+		 * The open file, its channel is used to lock it
+		 */
+		final RandomAccessFile raf;
+
+		/**
+		 * Channel of the open file
+		 */
+		final FileChannel channel;
+
+		/**
+		 * The mapped file
+		 */
+		final MappedByteBuffer buffer;
+
+		/**
+		 * Number of hash table slots, a power of two
+		 */
+		final int slotCount;
+
+		/**
+		 * Opens and maps a store file, initialising it if it is new or not a store in the current format.
+		 *
+		 * @param f the store file
+		 * @param capacity size of a new store file in bytes
+		 * @throws IOException If the file can't be opened.
+		 */
+		Mapping(File f, int capacity) throws IOException {
+			File dir = f.getAbsoluteFile().getParentFile();
+			if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can't create directory " + dir);
+			}
+			raf = new RandomAccessFile(f, "rw");
+			channel = raf.getChannel();
+			try {
+				FileLock lock = channel.lock();
+				try {
+					if ((raf.length() < headerSize) || (raf.readInt() != magicNumber)
+							|| (raf.readInt() != formatVersion)) {
+						initialise(capacity);
+					}
+				} finally {
+					lock.release();
+				}
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+				slotCount = buffer.getInt(slotCountOffset);
+				if ((slotCount <= 0) || (headerSize + (long) slotCount * 8 > buffer.limit())) {
+					throw new IOException("metadata store is corrupt");
+				}
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Writes an empty store. Must be called with the file locked.
+		 *
+		 * @param capacity size of the store file in bytes
+		 * @throws IOException If the file can't be written.
+		 */
+		private void initialise(int capacity) throws IOException {
+			int slots = Integer.highestOneBit(capacity / bytesPerSlot);
+			if (raf.length() < capacity) {
+				raf.setLength(capacity);
+			}
+			// zero the hash table of a file that held something else, the file isn't shrunk since others may map it
+			ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+			for (long pos = headerSize; pos < headerSize + (long) slots * 8; pos += zeros.capacity()) {
+				zeros.clear();
+				zeros.limit((int) Math.min(zeros.capacity(), headerSize + (long) slots * 8 - pos));
+				channel.write(zeros, pos);
+			}
+			ByteBuffer header = ByteBuffer.allocate(headerSize);
+			header.putInt(magicNumber).putInt(formatVersion).putInt(slots).putInt(0);
+			header.putLong(headerSize + (long) slots * 8).putInt(0);
+			header.clear();
+			channel.write(header, 0);
+		}
+
+		/**
+		 * @return true if another JVM replaced the file
+		 */
+		boolean isRetired() {
+			return buffer.getInt(retiredOffset) != 0;
+		}
+
+		/**
+		 * @return offset of the end of the records
+		 */
+		int end() {
+			return (int) buffer.getLong(appendOffset);
+		}
+
+		/**
+		 * @return number of hash table slots in use
+		 */
+		int used() {
+			return buffer.getInt(usedOffset);
+		}
+
+		/**
+		 * Finds the record of a key.
+		 *
+		 * @param key UTF-8 bytes of the key
+		 * @return offset of the record, -1 if there is none, it was removed or isn't completely visible yet
+		 */
+		int find(byte[] key) {
+			int slot = slotOf(key);
+			for (int probes = 0; probes < slotCount; probes++) {
+				long record = buffer.getLong(headerSize + slot * 8);
+				if (record == 0) {
+					return -1;
+				}
+				if (isValid(record) && keyEquals((int) record, key)) {
+					return (isIntact(record) && (buffer.getInt((int) record + 8) != kindRemoved)) ? (int) record : -1;
+				}
+				slot = (slot + 1) & (slotCount - 1);
+			}
+			return -1;
+		}
+
+		/**
+		 * Appends a record and publishes it in the hash table. Must be called with the file locked.
+		 *
+		 * @return false if the store is too full to take the record
+		 */
+		boolean append(byte[] key, int kind, long storedAt, long headTime, long size, byte[] value, int length) {
+			int slot = slotOf(key);
+			boolean newSlot = true;
+			for (int probes = 0; probes < slotCount; probes++) {
+				long record = buffer.getLong(headerSize + slot * 8);
+				if (record == 0) {
+					break;
+				}
+				if (isValid(record) && keyEquals((int) record, key)) {
+					newSlot = false;
+					break;
+				}
+				slot = (slot + 1) & (slotCount - 1);
+			}
+			int record = end();
+			if (((long) record + length > buffer.limit()) || (newSlot && (used() + 1 > slotCount / 4 * 3))) {
+				return false;
+			}
+			buffer.putInt(record, length).putInt(record + 4, key.length).putInt(record + 8, kind);
+			buffer.putInt(record + 12, value.length).putLong(record + 16, storedAt);
+			buffer.putLong(record + 24, headTime).putLong(record + 32, size);
+			for (int i = 0; i < key.length; i++) {
+				buffer.put(record + recordHeaderSize + i, key[i]);
+			}
+			for (int i = 0; i < value.length; i++) {
+				buffer.put(record + recordHeaderSize + key.length + i, value[i]);
+			}
+			buffer.putInt(record + checksumOffset, checksum(record, key.length + value.length));
+			buffer.putLong(appendOffset, record + length);
+			buffer.putLong(headerSize + slot * 8, record);
+			if (newSlot) {
+				buffer.putInt(usedOffset, used() + 1);
+			}
+			return true;
+		}
+
+		/**
+		 * @param record offset of a record
+		 * @return UTF-8 bytes of the record's key
+		 */
+		byte[] getKey(int record) {
+			return getBytes(record + recordHeaderSize, buffer.getInt(record + 4));
+		}
+
+		/**
+		 * @param record offset of a record
+		 * @return UTF-8 bytes of the record's value
+		 */
+		byte[] getValue(int record) {
+			return getBytes(record + recordHeaderSize + buffer.getInt(record + 4), buffer.getInt(record + 12));
+		}
+
+		/**
+		 * Releases the file. The mapping stays valid for readers still using it.
+		 */
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+		}
+
+		/**
+		 * @param key UTF-8 bytes of a key
+		 * @return the first hash table slot to probe for the key
+		 */
+		private int slotOf(byte[] key) {
+			int hash = 1;
+			for (byte b : key) {
+				hash = 31 * hash + b;
+			}
+			hash ^= (hash >>> 20) ^ (hash >>> 12);
+			hash ^= (hash >>> 7) ^ (hash >>> 4);
+			return hash & (slotCount - 1);
+		}
+
+		/**
+		 * Checks that an offset read from the hash table points to a record, guarding against a torn read.
+		 *
+		 * @param record offset of a record
+		 * @return true if the offset lies within the records
+		 */
+		private boolean isValid(long record) {
+			return (record >= headerSize + (long) slotCount * 8) && (record + recordHeaderSize <= buffer.limit());
+		}
+
+		/**
+		 * Checks that a record was completely written, guarding against reading a record of another JVM that is only
+		 * partially visible.
+		 *
+		 * @param record offset of a record within the records
+		 * @return true if the lengths of the record fit the file and its checksum matches
+		 */
+		boolean isIntact(long record) {
+			if (!isValid(record)) {
+				return false;
+			}
+			int r = (int) record;
+			long dataLength = (long) buffer.getInt(r + 4) + buffer.getInt(r + 12);
+			if ((buffer.getInt(r + 4) < 0) || (buffer.getInt(r + 12) < 0)
+					|| (record + recordHeaderSize + dataLength > buffer.limit())) {
+				return false;
+			}
+			return buffer.getInt(r + checksumOffset) == checksum(r, (int) dataLength);
+		}
+
+		/**
+		 * Computes the checksum of a record.
+		 *
+		 * @param record offset of the record
+		 * @param dataLength length of key and value
+		 * @return CRC32 of the fields before the checksum, the key and the value
+		 */
+		private int checksum(int record, int dataLength) {
+			CRC32 crc = new CRC32();
+			crc.update(getBytes(record, checksumOffset));
+			crc.update(getBytes(record + recordHeaderSize, dataLength));
+			return (int) crc.getValue();
+		}
+
+		/**
+		 * @param record offset of a record
+		 * @param key UTF-8 bytes of a key
+		 * @return true if the record has the key
+		 */
+		private boolean keyEquals(int record, byte[] key) {
+			if ((buffer.getInt(record + 4) != key.length)
+					|| ((long) record + recordHeaderSize + key.length > buffer.limit())) {
+				return false;
+			}
+			for (int i = 0; i < key.length; i++) {
+				if (buffer.get(record + recordHeaderSize + i) != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @param offset offset in the file
+		 * @param length number of bytes
+		 * @return copy of the bytes
+		 */
+		private byte[] getBytes(int offset, int length) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = buffer.get(offset + i);
+			}
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Index of the published revisions of the modules of an organisation (or of a single module), kept as a file in the
+ * depot next to the modules and updated in the same changelist as each publication.
+ *
+ * Every line describes a published revision: module, revision, status, publication date and the digests of the
+ * published artifacts, separated by tabs. Lines are kept in the order the revisions were published.
+ *
+ * @author Felix Drueke
+ */
+public class P4ModuleIndex {
+
+	/**
+	 * Format of publication dates, same as in Ivy files
+	 */
+	private static final String dateFormat = "yyyyMMddHHmmss";
+
+	/**
+	 * Separates the fields of a line
+	 */
+	private static final String fieldSeparator = "\t";
+
+	/**
+	 * Separates the artifacts of a line
+	 */
+	private static final String artifactSeparator = ",";
+
+	/**
+	 * First line of an index file
+	 */
+	private static final String header = "# Ivy module index: module, revision, status, publication date, artifacts";
+
+	/**
+	 * Published revisions keyed by module and revision
+	 */
+	private final Map<String, Revision> revisions = new LinkedHashMap<String, Revision>();
+
+	/**
+	 * Reads an index.
+	 *
+	 * @param in contents of the index file (not closed)
+	 * @return the index
+	 * @throws IOException If the index can't be read or is malformed.
+	 */
+	public static P4ModuleIndex read(InputStream in) throws IOException {
+		P4ModuleIndex index = new P4ModuleIndex();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		for (String line; (line = reader.readLine()) != null; ) {
+			if ((line.trim().length() == 0) || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split(fieldSeparator, -1);
+			if (fields.length < 4) {
+				throw new IOException("Malformed module index line: " + line);
+			}
+			Date publicationDate;
+			try {
+				publicationDate = new SimpleDateFormat(dateFormat).parse(fields[3]);
+			} catch (ParseException e) {
+				throw new IOException("Malformed publication date in module index line: " + line);
+			}
+			Map<String, String> artifacts = new LinkedHashMap<String, String>();
+			if ((fields.length > 4) && (fields[4].length() > 0)) {
+				for (String artifact : fields[4].split(artifactSeparator)) {
+					int eq = artifact.lastIndexOf('=');
+					if (eq > 0) {
+						artifacts.put(artifact.substring(0, eq), artifact.substring(eq + 1));
+					}
+				}
+			}
+			index.put(fields[0], fields[1], fields[2], publicationDate, artifacts);
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the index.
+	 *
+	 * @param file the file to write
+	 * @throws IOException If the file can't be written.
+	 */
+	public void write(File file) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			SimpleDateFormat format = new SimpleDateFormat(dateFormat);
+			writer.write(header + "\n");
+			for (Revision revision : revisions.values()) {
+				StringBuilder line = new StringBuilder();
+				line.append(revision.module).append(fieldSeparator).append(revision.revision).append(fieldSeparator);
+				line.append(revision.status).append(fieldSeparator);
+				line.append(format.format(revision.publicationDate)).append(fieldSeparator);
+				boolean first = true;
+				for (Entry<String, String> artifact : revision.artifacts.entrySet()) {
+					if (!first) {
+						line.append(artifactSeparator);
+					}
+					line.append(artifact.getKey()).append('=').append(artifact.getValue());
+					first = false;
+				}
+				writer.write(line.append('\n').toString());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Adds a published revision, replacing an earlier publication of the same revision.
+	 *
+	 * @param module name of the module
+	 * @param revision the revision
+	 * @param status status of the revision
+	 * @param publicationDate publication date of the revision
+	 * @param artifacts digests of the published artifacts keyed by file name
+	 */
+	public void put(String module, String revision, String status, Date publicationDate,
+			Map<String, String> artifacts) {
+		String key = module + fieldSeparator + revision;
+		revisions.remove(key);
+		revisions.put(key, new Revision(module, revision, status, publicationDate, artifacts));
+	}
+
+	/**
+	 * Gets the published revisions of a module.
+	 *
+	 * @param module name of the module
+	 * @return the revisions in the order they were published
+	 */
+	public List<Revision> getRevisions(String module) {
+		List<Revision> result = new ArrayList<Revision>();
+		for (Revision revision : revisions.values()) {
+			if (revision.module.equals(module)) {
+				result.add(revision);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * A published revision of a module
+	 */
+	public static class Revision {
+
+		/**
+		 * Name of the module
+		 */
+		private final String module;
+
+		/**
+		 * The revision
+		 */
+		private final String revision;
+
+		/**
+		 * Status of the revision
+		 */
+		private final String status;
+
+		/**
+		 * Publication date of the revision
+		 */
+		private final Date publicationDate;
+
+		/**
+		 * Digests of the published artifacts keyed by file name
+		 */
+		private final Map<String, String> artifacts;
+
+		/**
+		 * Creates a published revision.
+		 */
+		Revision(String module, String revision, String status, Date publicationDate, Map<String, String> artifacts) {
+			this.module = module;
+			this.revision = revision;
+			this.status = status;
+			this.publicationDate = publicationDate;
+			this.artifacts = new LinkedHashMap<String, String>(artifacts);
+		}
+
+		/**
+		 * @return name of the module
+		 */
+		public String getModule() {
+			return module;
+		}
+
+		/**
+		 * @return the revision
+		 */
+		public String getRevision() {
+			return revision;
+		}
+
+		/**
+		 * @return status of the revision
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return publication date of the revision
+		 */
+		public Date getPublicationDate() {
+			return publicationDate;
+		}
+
+		/**
+		 * @return digests of the published artifacts keyed by file name
+		 */
+		public Map<String, String> getArtifacts() {
+			return artifacts;
+		}
+	}
+}
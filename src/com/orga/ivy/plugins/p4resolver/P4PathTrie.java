@@ -0,0 +1,614 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact index of depot paths and the metadata of the files they name.
+ *
+ * Paths are split into their segments and stored as a tree of nodes, one node per segment, so the long common
+ * prefixes of depot paths are stored once. Every distinct segment name is stored once as well. Nodes live in
+ * primitive arrays instead of objects, and the children of a node are found through a hash table keyed by parent
+ * node and segment. A node may carry the metadata of the file its path names, and may be marked as part of a
+ * recursive listing.
+ *
+ * Nodes that lost their metadata and listing marks aren't freed one by one. Once there are half as many of them as
+ * there are nodes still carrying data, the index is rebuilt from the latter, so subtrees that were dropped don't
+ * occupy memory anymore.
+ *
+ * The index isn't safe for use by several threads, callers have to synchronize.
+ *
+ * @author Felix Drueke
+ */
+public class P4PathTrie {
+
+	/**
+	 * Node flag: the metadata of the node's file is stored
+	 */
+	private static final int flagMetadata = 1;
+
+	/**
+	 * Node flag: the file exists and its digest is known
+	 */
+	private static final int flagDigest = 2;
+
+	/**
+	 * Node flag: the file is part of a stored recursive listing
+	 */
+	private static final int flagListed = 4;
+
+	/**
+	 * Number of nodes allocated up front
+	 */
+	private static final int initialCapacity = 1024;
+
+	/**
+	 * Segment names, indexed by segment id
+	 */
+	private List<String> segments;
+
+	/**
+	 * Segment ids keyed by name
+	 */
+	private Map<String, Integer> segmentIds;
+
+	/**
+	 * Number of nodes, node 0 is the root that stands for the empty path
+	 */
+	private int nodeCount;
+
+	/**
+	 * Per node: the parent node
+	 */
+	private int[] parents;
+
+	/**
+	 * Per node: the segment id
+	 */
+	private int[] segmentOf;
+
+	/**
+	 * Per node: the first child node (-1 if none)
+	 */
+	private int[] firstChild;
+
+	/**
+	 * Per node: the next sibling node (-1 if none)
+	 */
+	private int[] nextSibling;
+
+	/**
+	 * Per node: combination of the node flags
+	 */
+	private int[] flags;
+
+	/**
+	 * Per node: when the metadata was stored
+	 */
+	private long[] storedAt;
+
+	/**
+	 * Per node: time of the head revision in milliseconds
+	 */
+	private long[] headTimes;
+
+	/**
+	 * Per node: size of the head revision in bytes
+	 */
+	private long[] sizes;
+
+	/**
+	 * Per node: the MD5 digest of the head revision, two longs per node
+	 */
+	private long[] digests;
+
+	/**
+	 * Hash table of child nodes keyed by parent node and segment id: node + 1 per slot, 0 for an empty slot
+	 */
+	private int[] children;
+
+	/**
+	 * Number of times a node lost its last flag since the index was last rebuilt
+	 */
+	private int releasedNodes;
+
+	/**
+	 * Number of nodes that carry metadata or a listing mark
+	 */
+	private int flaggedNodes;
+
+	/**
+	 * Creates an empty index.
+	 */
+	public P4PathTrie() {
+		clear();
+	}
+
+	/**
+	 * Removes all paths.
+	 */
+	public void clear() {
+		segments = new ArrayList<String>();
+		segmentIds = new HashMap<String, Integer>();
+		parents = new int[initialCapacity];
+		segmentOf = new int[initialCapacity];
+		firstChild = new int[initialCapacity];
+		nextSibling = new int[initialCapacity];
+		flags = new int[initialCapacity];
+		storedAt = new long[initialCapacity];
+		headTimes = new long[initialCapacity];
+		sizes = new long[initialCapacity];
+		digests = new long[2 * initialCapacity];
+		children = new int[2 * initialCapacity];
+		nodeCount = 1;
+		releasedNodes = 0;
+		flaggedNodes = 0;
+		parents[0] = -1;
+		segmentOf[0] = -1;
+		firstChild[0] = -1;
+		nextSibling[0] = -1;
+	}
+
+	/**
+	 * @return number of nodes, a measure of the memory used
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Stores the metadata of a file that exists.
+	 *
+	 * @param path depot path of the file
+	 * @param metadata metadata of the file
+	 * @param time when the metadata was fetched
+	 */
+	public void putMetadata(String path, P4FileMetadata metadata, long time) {
+		int node = add(path);
+		int f = (flags[node] & flagListed) | flagMetadata;
+		headTimes[node] = metadata.getHeadTime();
+		sizes[node] = metadata.getSize();
+		String digest = metadata.getDigest();
+		if ((digest != null) && (digest.length() == 32)) {
+			digests[2 * node] = parseHex(digest.substring(0, 16));
+			digests[2 * node + 1] = parseHex(digest.substring(16));
+			f |= flagDigest;
+		}
+		storedAt[node] = time;
+		setFlags(node, f);
+	}
+
+	/**
+	 * Looks up the metadata of a file.
+	 *
+	 * @param path depot path of the file
+	 * @param ttl how long metadata stays valid in milliseconds
+	 * @return the metadata or null if none is stored that is recent enough
+	 */
+	public P4FileMetadata getMetadata(String path, long ttl) {
+		int node = find(path);
+		if ((node < 0) || ((flags[node] & flagMetadata) == 0)
+				|| (System.currentTimeMillis() - storedAt[node] > ttl)) {
+			return null;
+		}
+		String digest = null;
+		if ((flags[node] & flagDigest) != 0) {
+			digest = (toHex(digests[2 * node]) + toHex(digests[2 * node + 1])).toUpperCase();
+		}
+		return new P4FileMetadata(true, headTimes[node], sizes[node], digest);
+	}
+
+	/**
+	 * Drops the metadata of a file.
+	 *
+	 * @param path depot path of the file
+	 */
+	public void removeMetadata(String path) {
+		int node = find(path);
+		if (node >= 0) {
+			setFlags(node, flags[node] & ~(flagMetadata | flagDigest));
+			reclaim();
+		}
+	}
+
+	/**
+	 * Drops the metadata stored before a given time, except for files below the given directories.
+	 *
+	 * @param time files whose metadata was stored before this time are dropped
+	 * @param keptDirs depot paths of directories whose files keep their metadata regardless of its age
+	 */
+	public void removeMetadataStoredBefore(long time, Collection<String> keptDirs) {
+		boolean[] kept = new boolean[nodeCount];
+		for (String dir : keptDirs) {
+			int node = find(dir);
+			if (node >= 0) {
+				kept[node] = true;
+			}
+		}
+		// parents are always added before their children
+		for (int node = 1; node < nodeCount; node++) {
+			kept[node] |= kept[parents[node]];
+			if (!kept[node] && ((flags[node] & flagMetadata) != 0) && (storedAt[node] < time)) {
+				setFlags(node, flags[node] & ~(flagMetadata | flagDigest));
+			}
+		}
+		reclaim();
+	}
+
+	/**
+	 * Drops the metadata and the listing marks of a directory and everything below it.
+	 *
+	 * @param dir depot path of the directory
+	 */
+	public void removeTree(String dir) {
+		int root = find(dir);
+		if (root >= 0) {
+			clearFlags(root);
+			reclaim();
+		}
+	}
+
+	/**
+	 * Drops the listing marks below a directory, keeping the metadata.
+	 *
+	 * @param dir depot path of the directory
+	 */
+	public void unlistTree(String dir) {
+		int root = find(dir);
+		if (root >= 0) {
+			unlist(root);
+			reclaim();
+		}
+	}
+
+	/**
+	 * Replaces the recursive listing below a directory.
+	 *
+	 * @param dir depot path of the directory
+	 * @param paths depot paths of all files below the directory
+	 */
+	public void putTree(String dir, List<String> paths) {
+		int root = find(dir);
+		if (root >= 0) {
+			for (int child = firstChild[root]; child >= 0; child = nextSibling[child]) {
+				unlist(child);
+			}
+		}
+		for (String path : paths) {
+			int node = add(path);
+			setFlags(node, flags[node] | flagListed);
+		}
+		reclaim();
+	}
+
+	/**
+	 * Lists the files below a directory that are part of a stored recursive listing.
+	 *
+	 * @param dir depot path of the directory
+	 * @return depot paths of the files
+	 */
+	public List<String> listTree(String dir) {
+		List<String> paths = new ArrayList<String>();
+		int root = find(dir);
+		if (root >= 0) {
+			StringBuilder path = new StringBuilder(dir);
+			for (int child = firstChild[root]; child >= 0; child = nextSibling[child]) {
+				collect(child, path, paths);
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Finds the node of a path.
+	 *
+	 * @param path a depot path
+	 * @return the node or -1 if the path isn't stored
+	 */
+	int find(String path) {
+		int node = 0;
+		for (int start = 0; node >= 0; ) {
+			int end = path.indexOf('/', start);
+			String segment = path.substring(start, (end < 0) ? path.length() : end);
+			Integer id = segmentIds.get(segment);
+			node = (id != null) ? findChild(node, id.intValue()) : -1;
+			if (end < 0) {
+				break;
+			}
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * Finds or adds the node of a path.
+	 *
+	 * @param path a depot path
+	 * @return the node
+	 */
+	private int add(String path) {
+		int node = 0;
+		for (int start = 0; ; ) {
+			int end = path.indexOf('/', start);
+			int id = segmentId(path.substring(start, (end < 0) ? path.length() : end));
+			int child = findChild(node, id);
+			node = (child >= 0) ? child : addChild(node, id);
+			if (end < 0) {
+				return node;
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Finds or adds the id of a segment name.
+	 *
+	 * @param segment a segment name
+	 * @return the segment id
+	 */
+	private int segmentId(String segment) {
+		Integer id = segmentIds.get(segment);
+		if (id == null) {
+			id = Integer.valueOf(segments.size());
+			segments.add(segment);
+			segmentIds.put(segment, id);
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Finds the child of a node with the given segment.
+	 *
+	 * @param parent the parent node
+	 * @param segment the segment id
+	 * @return the child node or -1 if there is none
+	 */
+	private int findChild(int parent, int segment) {
+		int mask = children.length - 1;
+		for (int slot = hash(parent, segment) & mask; children[slot] != 0; slot = (slot + 1) & mask) {
+			int node = children[slot] - 1;
+			if ((parents[node] == parent) && (segmentOf[node] == segment)) {
+				return node;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds a child node.
+	 *
+	 * @param parent the parent node
+	 * @param segment the segment id
+	 * @return the new node
+	 */
+	private int addChild(int parent, int segment) {
+		if (nodeCount == parents.length) {
+			grow();
+		}
+		int node = nodeCount++;
+		parents[node] = parent;
+		segmentOf[node] = segment;
+		firstChild[node] = -1;
+		nextSibling[node] = firstChild[parent];
+		firstChild[parent] = node;
+		if (2 * nodeCount > children.length) {
+			rehash(2 * children.length);
+		} else {
+			insert(children, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Enlarges the node arrays.
+	 */
+	private void grow() {
+		int capacity = 2 * parents.length;
+		parents = copyOf(parents, capacity);
+		segmentOf = copyOf(segmentOf, capacity);
+		firstChild = copyOf(firstChild, capacity);
+		nextSibling = copyOf(nextSibling, capacity);
+		flags = copyOf(flags, capacity);
+		storedAt = copyOf(storedAt, capacity);
+		headTimes = copyOf(headTimes, capacity);
+		sizes = copyOf(sizes, capacity);
+		digests = copyOf(digests, 2 * capacity);
+	}
+
+	/**
+	 * Rebuilds the hash table of child nodes with a new size.
+	 *
+	 * @param size number of slots, a power of two
+	 */
+	private void rehash(int size) {
+		int[] table = new int[size];
+		for (int node = 1; node < nodeCount; node++) {
+			insert(table, node);
+		}
+		children = table;
+	}
+
+	/**
+	 * Inserts a node into a hash table of child nodes.
+	 *
+	 * @param table the hash table
+	 * @param node the node
+	 */
+	private void insert(int[] table, int node) {
+		int mask = table.length - 1;
+		int slot = hash(parents[node], segmentOf[node]) & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = node + 1;
+	}
+
+	/**
+	 * Removes the listing mark from a node and all nodes below it.
+	 *
+	 * @param node the node
+	 */
+	private void unlist(int node) {
+		setFlags(node, flags[node] & ~flagListed);
+		for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+			unlist(child);
+		}
+	}
+
+	/**
+	 * Removes all flags from a node and all nodes below it.
+	 *
+	 * @param node the node
+	 */
+	private void clearFlags(int node) {
+		setFlags(node, 0);
+		for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+			clearFlags(child);
+		}
+	}
+
+	/**
+	 * Sets the flags of a node, counting the nodes that carry data and those that don't anymore.
+	 *
+	 * @param node the node
+	 * @param f the new flags
+	 */
+	private void setFlags(int node, int f) {
+		if ((f == 0) && (flags[node] != 0)) {
+			releasedNodes++;
+			flaggedNodes--;
+		} else if ((f != 0) && (flags[node] == 0)) {
+			flaggedNodes++;
+		}
+		flags[node] = f;
+	}
+
+	/**
+	 * Rebuilds the index without the nodes that don't carry data and have no descendants that do, once enough
+	 * nodes were released for the rebuild to pay off.
+	 */
+	private void reclaim() {
+		if ((releasedNodes < initialCapacity) || (2 * releasedNodes < flaggedNodes)) {
+			return;
+		}
+		int count = nodeCount;
+		List<String> oldSegments = segments;
+		int[] oldParents = parents;
+		int[] oldSegmentOf = segmentOf;
+		int[] oldFlags = flags;
+		long[] oldStoredAt = storedAt;
+		long[] oldHeadTimes = headTimes;
+		long[] oldSizes = sizes;
+		long[] oldDigests = digests;
+		// parents are always added before their children, so a backward pass sees all children of a node first
+		boolean[] live = new boolean[count];
+		for (int node = count - 1; node > 0; node--) {
+			if (oldFlags[node] != 0) {
+				live[node] = true;
+			}
+			if (live[node]) {
+				live[oldParents[node]] = true;
+			}
+		}
+		clear();
+		int[] moved = new int[count];
+		for (int node = 1; node < count; node++) {
+			if (live[node]) {
+				int copy = addChild(moved[oldParents[node]], segmentId(oldSegments.get(oldSegmentOf[node])));
+				moved[node] = copy;
+				setFlags(copy, oldFlags[node]);
+				storedAt[copy] = oldStoredAt[node];
+				headTimes[copy] = oldHeadTimes[node];
+				sizes[copy] = oldSizes[node];
+				digests[2 * copy] = oldDigests[2 * node];
+				digests[2 * copy + 1] = oldDigests[2 * node + 1];
+			}
+		}
+	}
+
+	/**
+	 * Collects the paths of the listed nodes at and below a node.
+	 *
+	 * @param node the node
+	 * @param path depot path of the node's parent, restored before returning
+	 * @param paths receives the depot paths
+	 */
+	private void collect(int node, StringBuilder path, List<String> paths) {
+		int length = path.length();
+		path.append('/').append(segments.get(segmentOf[node]));
+		if ((flags[node] & flagListed) != 0) {
+			paths.add(path.toString());
+		}
+		for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+			collect(child, path, paths);
+		}
+		path.setLength(length);
+	}
+
+	/**
+	 * @param array an array
+	 * @param length length of the copy
+	 * @return a longer copy of the array
+	 */
+	private static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+
+	/**
+	 * @param array an array
+	 * @param length length of the copy
+	 * @return a longer copy of the array
+	 */
+	private static long[] copyOf(long[] array, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+
+	/**
+	 * @param parent a parent node
+	 * @param segment a segment id
+	 * @return hash of the pair
+	 */
+	private static int hash(int parent, int segment) {
+		int h = parent * 0x9E3779B1 + segment;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param hex 16 hexadecimal digits
+	 * @return the number they represent
+	 */
+	private static long parseHex(String hex) {
+		return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8), 16);
+	}
+
+	/**
+	 * @param value a number
+	 * @return the number as 16 hexadecimal digits
+	 */
+	private static String toHex(long value) {
+		String hex = Long.toHexString(value);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.ivy.util.Message;
+
+/**
+ * Remembers per organisation which of a resolver's patterns found the last file, so that pattern is tried first next
+ * time. The order is kept in a properties file and survives JVM restarts.
+ *
+ * Patterns are told apart by their list, identified by its first declared pattern, so the ivy patterns and the
+ * artifact patterns of a resolver are learned separately. Several JVMs may share the file: saving merges the hits
+ * recorded since the last save into what the file holds by then. The class is safe for use by several threads.
+ *
+ * @author Felix Drueke
+ */
+public class P4PatternOrder {
+
+	/**
+	 * Separates organisation and first declared pattern in the keys of the file
+	 */
+	private static final String keySeparator = "|";
+
+	/**
+	 * Comment written to the file
+	 */
+	private static final String header = "Ivy pattern order: organisation|first declared pattern = pattern that hit";
+
+	/**
+	 * Held while the file is merged, since a JVM's file lock doesn't keep its own threads out
+	 */
+	private static final Object localLock = new Object();
+
+	/**
+	 * The file the order is kept in
+	 */
+	private final File file;
+
+	/**
+	 * Pattern that hit last, keyed by organisation and first declared pattern (null until the file is read)
+	 */
+	private Properties hits;
+
+	/**
+	 * Hits recorded since the file was last written, a null pattern for a removed hit
+	 */
+	private final Map<String, String> changes = new HashMap<String, String>();
+
+	/**
+	 * Creates an order kept in the given file. The file is read on first use.
+	 *
+	 * @param file the file, created when the order is first saved
+	 */
+	public P4PatternOrder(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Orders patterns for a lookup: the pattern that hit last for the organisation first, the others in declared
+	 * order.
+	 *
+	 * @param organisation organisation of the looked up module
+	 * @param patterns patterns in declared order
+	 * @return the patterns in the order they should be tried
+	 */
+	public synchronized List<String> order(String organisation, List<String> patterns) {
+		String hit = getHits().getProperty(key(organisation, patterns));
+		int index = (hit != null) ? patterns.indexOf(hit) : -1;
+		if (index <= 0) {
+			return patterns;
+		}
+		List<String> ordered = new ArrayList<String>(patterns.size());
+		ordered.add(hit);
+		ordered.addAll(patterns.subList(0, index));
+		ordered.addAll(patterns.subList(index + 1, patterns.size()));
+		return ordered;
+	}
+
+	/**
+	 * Records that a pattern found a file of the organisation.
+	 *
+	 * @param organisation organisation of the looked up module
+	 * @param patterns patterns in declared order
+	 * @param pattern the pattern that hit
+	 */
+	public synchronized void recordHit(String organisation, List<String> patterns, String pattern) {
+		String key = key(organisation, patterns);
+		Properties known = getHits();
+		if (pattern.equals(patterns.get(0))) {
+			// the declared order is right, nothing needs to be kept
+			if (known.remove(key) != null) {
+				changes.put(key, null);
+			}
+		} else if (!pattern.equals(known.getProperty(key))) {
+			known.setProperty(key, pattern);
+			changes.put(key, pattern);
+		}
+	}
+
+	/**
+	 * Writes the hits recorded since the last save to the file, merged into the hits other JVMs saved meanwhile.
+	 * Failures are only logged, the order is just an optimization.
+	 */
+	public synchronized void save() {
+		if (changes.isEmpty()) {
+			return;
+		}
+		try {
+			File part = P4Utils.createPartFile(file);
+			synchronized (localLock) {
+				RandomAccessFile lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+				try {
+					FileLock lock = lockFile.getChannel().lock();
+					try {
+						Properties merged = read();
+						for (Map.Entry<String, String> change : changes.entrySet()) {
+							if (change.getValue() == null) {
+								merged.remove(change.getKey());
+							} else {
+								merged.setProperty(change.getKey(), change.getValue());
+							}
+						}
+						OutputStream out = new FileOutputStream(part);
+						try {
+							merged.store(out, header);
+						} finally {
+							out.close();
+						}
+						P4Utils.replaceFile(part, file);
+						hits = merged;
+						changes.clear();
+					} finally {
+						lock.release();
+					}
+				} finally {
+					lockFile.close();
+					part.delete();
+				}
+			}
+		} catch (IOException e) {
+			Message.warn("Can't save pattern order to " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the recorded hits, reading them from the file on first use.
+	 *
+	 * @return the hits
+	 */
+	private Properties getHits() {
+		if (hits != null) {
+			return hits;
+		}
+		try {
+			hits = read();
+		} catch (IOException e) {
+			Message.warn("Can't read pattern order from " + file + ": " + e.getMessage());
+			hits = new Properties();
+		}
+		return hits;
+	}
+
+	/**
+	 * Reads the hits saved in the file.
+	 *
+	 * @return the hits, empty if there is no file yet
+	 * @throws IOException If the file can't be read.
+	 */
+	private Properties read() throws IOException {
+		Properties saved = new Properties();
+		if (file.isFile()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				saved.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * Builds the key of a lookup.
+	 *
+	 * @param organisation organisation of the looked up module
+	 * @param patterns patterns in declared order
+	 * @return the key
+	 */
+	private static String key(String organisation, List<String> patterns) {
+		return organisation + keySeparator + patterns.get(0);
+	}
+}
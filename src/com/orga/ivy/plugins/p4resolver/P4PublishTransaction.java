@@ -22,8 +22,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.ivy.core.module.id.ModuleRevisionId;
@@ -32,13 +39,11 @@ import org.apache.ivy.util.Message;
 import com.perforce.p4java.client.IClient;
 import com.perforce.p4java.core.ChangelistStatus;
 import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.core.file.FileAction;
 import com.perforce.p4java.core.file.FileSpecBuilder;
 import com.perforce.p4java.core.file.FileSpecOpStatus;
 import com.perforce.p4java.core.file.IFileSpec;
-import com.perforce.p4java.exception.AccessException;
-import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaException;
-import com.perforce.p4java.exception.RequestException;
 import com.perforce.p4java.impl.generic.client.ClientView;
 import com.perforce.p4java.impl.generic.core.Changelist;
 import com.perforce.p4java.impl.mapbased.client.Client;
@@ -57,11 +62,44 @@ public class P4PublishTransaction {
 	 */
 	private IClient tmpClient;
 
+	/**
+	 * The pool the client was taken from (null if the client was created for this transaction)
+	 */
+	private P4ClientPool clientPool;
+
+	/**
+	 * Whether the changelist was submitted
+	 */
+	private boolean submitted = false;
+
+	/**
+	 * Depot paths of the files opened in the changelist
+	 */
+	private List<String> opened = new ArrayList<String>();
+
 	/**
 	 *  The perforce-changelist that represents the transaction
 	 */
 	private IChangelist changelist;
 
+	/**
+	 * Files put so far, keyed by their target location, with whether an existing file is overwritten. They are
+	 * opened for 'add' or 'edit' all at once on commit.
+	 */
+	private Map<String, Boolean> puts = new LinkedHashMap<String, Boolean>();
+
+	/**
+	 * Revisions the files put are based on, keyed by their target location (0 if the file didn't exist). Files put
+	 * without a known revision aren't in here.
+	 */
+	private Map<String, Integer> baseRevisions = new HashMap<String, Integer>();
+
+	/**
+	 * Files put based on a known revision that another submit changed since, found by the last commit. They aren't
+	 * open in the changelist any more.
+	 */
+	private List<String> conflicts = new ArrayList<String>();
+
 	/**
 	 * buffersize for copiing files
 	 */
@@ -107,14 +145,69 @@ public class P4PublishTransaction {
 	 * @throws Exception In case of all sorts of problems with perforce (connection, access, request)
 	 */
 	public P4PublishTransaction(IOptionsServer server, String destination, ModuleRevisionId mrid) throws Exception {
+		this(server, destination, mrid, null);
+	}
+
+	/**
+	 * Start a publish-transaction with a client of a pool, or by creating a perforce-client if none is free
+	 * 
+	 * @param server initialised p4-server-object (must be authenticated already)
+	 * @param destination target location on the perforce-server in perforce depot notation 
+	 * @param mrid ModuleRevisionId 
+	 * @param clientPool pool of publish clients mapping the depot of the destination (null to always create a client)
+	 * @throws Exception In case of all sorts of problems with perforce (connection, access, request)
+	 */
+	public P4PublishTransaction(IOptionsServer server, String destination, ModuleRevisionId mrid,
+			P4ClientPool clientPool) throws Exception {
 
-		// create a temp-p4client
 		String p4User = server.getUserName();
 		if (p4User == null) {
 			throw new Exception("Perforce user undefined");
 		}
+		if (clientPool != null) {
+			tmpClient = clientPool.checkout(server);
+		}
+		if (tmpClient != null) {
+			this.clientPool = clientPool;
+			Message.debug("using pooled client " + tmpClient.getName());
+		} else {
+			tmpClient = createTmpClient(server, destination, p4User);
+		}
+
+		// create Changelist
+		Changelist changeListImpl = new Changelist(
+				IChangelist.UNKNOWN,	// changelist-id yet unknown
+				tmpClient.getName(),	// clientname
+				p4User,					// username
+				ChangelistStatus.NEW,	// new changelist
+				new Date(),				// current date
+				"Ivy publishing " + mrid.getOrganisation() + "#" + mrid.getName() + ";" + mrid.getRevision(), // submission text
+				false,					// don't shelve this
+				(Server) server			// the p4 server
+		);
+
+		try {
+			changelist = tmpClient.createChangelist(changeListImpl);
+		} catch (P4JavaException pexc) {
+			if (this.clientPool != null) {
+				this.clientPool.release(tmpClient);
+			}
+			throw pexc;
+		}
+	}
+
+	/**
+	 * Create a temporary perforce-client mapping the depot of the destination and make it the current client
+	 * 
+	 * @param server initialised p4-server-object (must be authenticated already)
+	 * @param destination target location on the perforce-server in perforce depot notation 
+	 * @param p4User owner of the client
+	 * @return the client
+	 * @throws Exception In case of all sorts of problems with perforce (connection, access, request)
+	 */
+	private static IClient createTmpClient(IOptionsServer server, String destination, String p4User) throws Exception {
 		String tmpClientName = clPrefix + p4User + UUID.randomUUID().toString();
-		tmpClient = new Client(server);
+		IClient tmpClient = new Client(server);
 		tmpClient.setName(tmpClientName);
 		tmpClient.setRoot(systemTemp + slash + tmpClientName);
 		try {
@@ -140,79 +233,238 @@ public class P4PublishTransaction {
 			throw pexc;
 		}
 		Message.debug("created tempclient " + tmpClientName);
-
-		// create Changelist
-		Changelist changeListImpl = new Changelist(
-				IChangelist.UNKNOWN,	// changelist-id yet unknown
-				tmpClient.getName(),	// clientname
-				p4User,					// username
-				ChangelistStatus.NEW,	// new changelist
-				new Date(),				// current date
-				"Ivy publishing " + mrid.getOrganisation() + "#" + mrid.getName() + ";" + mrid.getRevision(), // submission text
-				false,					// don't shelve this
-				(Server) server			// the p4 server
-		);
-
-		changelist = tmpClient.createChangelist(changeListImpl);
+		return tmpClient;
 	}
 
 	/**
-	 * Open a file for 'add' or 'edit' in perforce
+	 * Schedule a file to be opened for 'add' or 'edit' in perforce. The file is copied to the client right away,
+	 * whether it is added or edited is decided for all files at once on commit.
 	 * 
 	 * @param server Initialised p4-server-object (must be authenticated already)
 	 * @param source The local file that is to be added (relative or absolute)
 	 * @param destination Target location on the perforce-server
 	 * @param overwrite Whether or not to overwrite the file in perforce if it exists already 
-	 * @throws IOException
-	 * @throws ConnectionException
-	 * @throws AccessException
-	 * @throws RequestException
+	 * @throws IOException If the file can't be copied to the client
 	 */
-	public void addPutOperation(IOptionsServer server, File source, String destination, boolean overwrite) throws IOException, ConnectionException, AccessException, RequestException {
-
-		// check whether the target already exists in perforce (and is not deleted in head-revision)
-		boolean p4add = true;
-		if (P4Utils.p4FileExists(server,destination)) {
-			Message.debug("File exists in perforce already: " + destination);
+	public void addPutOperation(IOptionsServer server, File source, String destination, boolean overwrite) throws IOException {
+		addPutOperation(server, source, destination, overwrite, -1);
+	}
 
-			if (overwrite) {
-				Message.debug("updating " + destination);
-				p4add = false;	// no add, but edit in perforce
-			} else {
-				Message.info("Overwrite set to false, ignoring " + source.getName());
-				return;
-			}
-		}
+	/**
+	 * Schedule a file to be opened for 'add' or 'edit' in perforce, based on a known revision of the file. The file
+	 * is edited at that revision, so a newer revision submitted meanwhile makes the submit fail instead of being
+	 * overwritten.
+	 * 
+	 * @param server Initialised p4-server-object (must be authenticated already)
+	 * @param source The local file that is to be added (relative or absolute)
+	 * @param destination Target location on the perforce-server
+	 * @param overwrite Whether or not to overwrite the file in perforce if it exists already 
+	 * @param baseRevision The revision the file is based on, 0 if it didn't exist, -1 if unknown
+	 * @throws IOException If the file can't be copied to the client
+	 */
+	public void addPutOperation(IOptionsServer server, File source, String destination, boolean overwrite,
+			int baseRevision) throws IOException {
 
 		// copy source to client-tempdir
 		String destName = tmpClient.getRoot() + slash + destination.substring(destination.indexOf(slash, 3)+1);
 		copyFile(source,new File(destName));
 
-		if (p4add) {
-			tmpClient.addFiles(
-					FileSpecBuilder.makeFileSpecList(destination), false, changelist.getId(), "binary", false);
+		puts.remove(destination); // a file put again keeps the position of its last put
+		puts.put(destination, Boolean.valueOf(overwrite));
+		if (baseRevision >= 0) {
+			baseRevisions.put(destination, Integer.valueOf(baseRevision));
 		} else {
-			// "flush" the file (sync -k)
-			tmpClient.sync(FileSpecBuilder.makeFileSpecList(destination), false, false, true, false);
+			baseRevisions.remove(destination);
+		}
+	}
+
+	/**
+	 * Open all files put for 'add' or 'edit' in perforce: a single request checks which of them exist already, then
+	 * new files are added with a single request and existing ones edited with a single sync -k and a single edit.
+	 * Files put based on a known revision are synced to that revision.
+	 * 
+	 * @param server Initialised p4-server-object (must be authenticated already)
+	 * @throws P4JavaException If the files can't be checked or opened, or a file put based on a known revision was
+	 *         changed meanwhile (see {@link #hasConflicts()}), in which case no file is opened.
+	 */
+	private void openPutFiles(IOptionsServer server) throws P4JavaException {
+		if (puts.isEmpty()) {
+			return;
+		}
+		List<String> changed = findConflicts(server, puts.keySet());
+		if (!changed.isEmpty()) {
+			throw conflict(changed);
+		}
+
+		// check which targets already exist in perforce (and are not deleted in head-revision)
+		Set<String> existing = P4Utils.p4FilesExisting(server, new ArrayList<String>(puts.keySet()));
+		List<String> adds = new ArrayList<String>();
+		List<String> edits = new ArrayList<String>();
+		List<String> syncs = new ArrayList<String>();
+		for (Map.Entry<String, Boolean> put : puts.entrySet()) {
+			String destination = put.getKey();
+			Integer baseRevision = baseRevisions.get(destination);
+			if (!existing.contains(destination)) {
+				adds.add(destination);
+			} else if (put.getValue().booleanValue()) {
+				Message.debug("File exists in perforce already, updating " + destination);
+				edits.add(destination);	// no add, but edit in perforce
+				syncs.add((baseRevision != null) ? destination + "#" + baseRevision : destination);
+			} else {
+				Message.info("Overwrite set to false, ignoring " + destination.substring(destination.lastIndexOf(slash) + 1));
+			}
+		}
+
+		opened.addAll(adds);
+		opened.addAll(edits);
+		if (!adds.isEmpty()) {
+			checkOpened(tmpClient.addFiles(
+					FileSpecBuilder.makeFileSpecList(adds), false, changelist.getId(), "binary", false));
+		}
+		if (!edits.isEmpty()) {
+			// "flush" the files (sync -k), at the revision they are based on: newer revisions must be resolved
+			tmpClient.sync(FileSpecBuilder.makeFileSpecList(syncs), false, false, true, false);
 			// open for edit
-			tmpClient.editFiles(
-					FileSpecBuilder.makeFileSpecList(destination), false, false, changelist.getId(), null);
+			checkOpened(tmpClient.editFiles(FileSpecBuilder.makeFileSpecList(edits), false, false, changelist.getId(),
+					null));
+		}
+		puts.clear();
+	}
+
+	/**
+	 * Looks up which files put based on a known revision were changed by another submit, with a single request.
+	 * 
+	 * @param server Initialised p4-server-object (must be authenticated already)
+	 * @param destinations target locations of files put
+	 * @return the target locations whose head revision isn't the revision they are based on
+	 * @throws P4JavaException If the head revisions can't be looked up.
+	 */
+	private List<String> findConflicts(IOptionsServer server, Collection<String> destinations)
+			throws P4JavaException {
+		List<String> based = new ArrayList<String>();
+		for (String destination : destinations) {
+			if (baseRevisions.containsKey(destination)) {
+				based.add(destination);
+			}
+		}
+		List<String> changed = new ArrayList<String>();
+		if (based.isEmpty()) {
+			return changed;
+		}
+		Map<String, Integer> heads = new HashMap<String, Integer>();
+		List<IFileSpec> depotFiles = server.getDepotFiles(FileSpecBuilder.makeFileSpecList(based), false);
+		if (depotFiles != null) {
+			for (IFileSpec depotFile : depotFiles) {
+				// files that don't exist come back as errors and count as revision 0
+				if ((depotFile != null) && (depotFile.getOpStatus() == FileSpecOpStatus.VALID)
+						&& (depotFile.getDepotPathString() != null) && (depotFile.getAction() != null)
+						&& (depotFile.getAction() != FileAction.DELETE)
+						&& (depotFile.getAction() != FileAction.MOVE_DELETE)) {
+					heads.put(depotFile.getDepotPathString().toLowerCase(Locale.ENGLISH),
+							Integer.valueOf(depotFile.getEndRevision()));
+				}
+			}
+		}
+		for (String destination : based) {
+			Integer head = heads.get(destination.toLowerCase(Locale.ENGLISH));
+			if (((head != null) ? head.intValue() : 0) != baseRevisions.get(destination).intValue()) {
+				changed.add(destination);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Records files put based on a known revision that another submit changed since.
+	 * 
+	 * @param changed target locations of the changed files
+	 * @return the exception failing the commit
+	 */
+	private P4JavaException conflict(List<String> changed) {
+		conflicts.addAll(changed);
+		return new P4JavaException("Can't publish " + changed + ", changed by another submit");
+	}
+
+	/**
+	 * Checks whether a failed submit was caused by files put based on a known revision that another submit changed
+	 * since. If so, these files are reverted, so they can be put again based on their new head revision and the
+	 * transaction be committed again.
+	 * 
+	 * @param server Initialised p4-server-object (must be authenticated already)
+	 * @param failure why the submit failed
+	 * @return the exception failing the commit
+	 */
+	private P4JavaException submitFailed(IOptionsServer server, P4JavaException failure) {
+		try {
+			List<String> changed = findConflicts(server, opened);
+			if (changed.isEmpty()) {
+				return failure;
+			}
+			tmpClient.revertFiles(FileSpecBuilder.makeFileSpecList(changed), false, changelist.getId(), false, true);
+			opened.removeAll(changed);
+			for (String destination : changed) {
+				baseRevisions.remove(destination);
+			}
+			return conflict(changed);
+		} catch (P4JavaException e) {
+			Message.warn("Can't check why the submit failed: " + e.getMessage());
+			return failure;
 		}
 	}
 
 	/**
-	 * Commits all files scheduled to be published
+	 * @return true if the last commit failed because files put based on a known revision were changed by another
+	 *         submit. Putting these files again based on their new head revision allows committing again.
+	 */
+	public boolean hasConflicts() {
+		return !conflicts.isEmpty();
+	}
+
+	/**
+	 * Checks that all files were opened. A file that couldn't be opened would be missing from the submitted
+	 * changelist, so the transaction fails instead.
 	 * 
-	 * @throws P4JavaException If an error occurs committing the transaction.
+	 * @param fileSpecs result of opening files
+	 * @throws P4JavaException If a file couldn't be opened.
+	 */
+	private static void checkOpened(List<IFileSpec> fileSpecs) throws P4JavaException {
+		if (fileSpecs == null) {
+			return;
+		}
+		StringBuilder errors = new StringBuilder();
+		for (IFileSpec fileSpec : fileSpecs) {
+			if ((fileSpec != null) && (fileSpec.getOpStatus() == FileSpecOpStatus.ERROR)) {
+				Message.error("Can't open file: " + fileSpec.getStatusMessage());
+				errors.append((errors.length() > 0) ? "; " : "").append(fileSpec.getStatusMessage());
+			}
+		}
+		if (errors.length() > 0) {
+			throw new P4JavaException("Can't open files for publishing: " + errors);
+		}
+	}
+
+	/**
+	 * Commits all files scheduled to be published. The client is left for {@link #cleanup(IOptionsServer)}.
+	 * 
+	 * @throws P4JavaException If an error occurs committing the transaction. If files put based on a known revision
+	 *         were changed by another submit, the transaction stays usable, see {@link #hasConflicts()}.
 	 * @throws IOException If an error occurs reading any file data.
 	 */
 	public void commit(IOptionsServer server) throws P4JavaException, IOException {
 
+		conflicts.clear();
+		openPutFiles(server);
+
 		changelist.update();
 		changelist.refresh();
 
 		if (changelist.getFiles(false).size() != 0) { // only submit if there are open files actually
-			List<IFileSpec> submitFiles = changelist.submit(false);
+			List<IFileSpec> submitFiles;
+			try {
+				submitFiles = changelist.submit(false);
+			} catch (P4JavaException e) {
+				throw submitFailed(server, e);
+			}
 			if (submitFiles != null) {
 				for (IFileSpec fileSpec : submitFiles) {
 					if (fileSpec != null) {
@@ -222,18 +474,57 @@ public class P4PublishTransaction {
 							Message.info("submitted: " + fileSpec.getDepotPathString() + "(" + fileSpec.getStatusMessage() + ")");
 						} else if (fileSpec.getOpStatus() == FileSpecOpStatus.ERROR){
 							Message.error("Error submitting files");
-							throw new P4JavaException("Can't submit file! (" + fileSpec.getStatusMessage() +")");
+							throw submitFailed(server,
+									new P4JavaException("Can't submit file! (" + fileSpec.getStatusMessage() +")"));
 						}
 					}
 				}
 			}
+			submitted = true;
 		} else {
 			Message.info("Nothing to submit!");
 		}
+	}
 
-		// cleanup (remove client and temp-dir)
+	/**
+	 * @return true if the client was taken from a pool, which cleans up after a JVM that died before releasing it
+	 */
+	public boolean isPooled() {
+		return clientPool != null;
+	}
+
+	/**
+	 * Clean up after the transaction, touching only what the transaction left behind: if the changelist wasn't
+	 * submitted, the files opened in it are reverted and it is deleted. A pooled client is then reset and handed back
+	 * to its pool, otherwise the client is deleted along with its temp-dir.
+	 * 
+	 * @param server Initialised p4-server-object (must be authenticated already)
+	 */
+	public void cleanup(IOptionsServer server) {
+		if (!submitted) {
+			try {
+				if (!opened.isEmpty()) {
+					tmpClient.revertFiles(FileSpecBuilder.makeFileSpecList(opened), false, changelist.getId(), false, true);
+				}
+				server.deletePendingChangelist(changelist.getId());
+				Message.debug("Deleted pending changelist " + changelist.getId());
+			} catch (P4JavaException e) {
+				Message.warn("Can't clean up changelist " + changelist.getId() + " of client " + tmpClient.getName()
+						+ ": " + e.getMessage());
+			}
+		}
+		if (clientPool != null) {
+			clientPool.release(tmpClient);
+			return;
+		}
 		P4Utils.deleteDir(new File(tmpClient.getRoot()));  
-		P4Utils.deleteClient(server,tmpClient);
+		try {
+			server.deleteClient(tmpClient.getName(), false);
+			Message.debug("Deleted client " + tmpClient.getName());
+		} catch (P4JavaException e) {
+			Message.error("Error deleting client " + tmpClient.getName() + ": " + e.getMessage());
+			Message.warn("Please cleanup yourself.");
+		}
 	}
 
 
@@ -15,17 +15,36 @@
  */
 package com.orga.ivy.plugins.p4resolver;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URISyntaxException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
@@ -35,19 +54,19 @@ import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.plugins.repository.TransferEvent;
 import org.apache.ivy.util.Message;
 
+import com.perforce.p4java.core.IChangelistSummary;
+import com.perforce.p4java.core.file.FileAction;
 import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
 import com.perforce.p4java.core.file.IExtendedFileSpec;
 import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.AccessException;
-import com.perforce.p4java.exception.ConfigException;
 import com.perforce.p4java.exception.ConnectionException;
-import com.perforce.p4java.exception.NoSuchObjectException;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.exception.RequestException;
-import com.perforce.p4java.exception.ResourceException;
-import com.perforce.p4java.option.UsageOptions;
+import com.perforce.p4java.option.server.GetDepotFilesOptions;
+import com.perforce.p4java.option.server.GetExtendedFilesOptions;
 import com.perforce.p4java.server.IOptionsServer;
-import com.perforce.p4java.server.ServerFactory;
 
 
 /**
@@ -81,19 +100,162 @@ public class P4Repository extends AbstractRepository {
 	private String p4Passwd;
 
 	/**
-	 * Server object 
+	 * Pool of authenticated server connections (created on first use)
 	 */
-	private IOptionsServer server;
+	private P4ConnectionPool connectionPool;
 
 	/**
-	 * Remember if we're authenticated.
+	 * Maximum number of connections the repository keeps open
 	 */
-	private Boolean authenticated = false;
+	private int maxConnections = P4ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+
+	/**
+	 * Number of long-lived clients per depot kept for publishing (0 creates a client per transaction)
+	 */
+	private int publishClients = 0;
+
+	/**
+	 * Whether publish transactions with pooled clients are cleaned up in the background once committed
+	 */
+	private boolean asyncCleanup = false;
+
+	/**
+	 * Dedicated connection of the running publish transaction
+	 */
+	private IOptionsServer publishServer;
+
+	/**
+	 * Metadata cache shared with other repositories using the same server (null until first use)
+	 */
+	private P4MetadataCache metadataCache;
+
+	/**
+	 * How long cached metadata of existing files stays valid in milliseconds (0 disables caching)
+	 */
+	private long metadataTtl = 0;
+
+	/**
+	 * How long cached results for missing files stay valid in milliseconds (0 disables caching)
+	 */
+	private long missingTtl = 0;
+
+	/**
+	 * Maximum number of missing files remembered by the metadata cache (0 to keep the shared cache's setting)
+	 */
+	private int missingCacheSize = 0;
+
+	/**
+	 * How long cached directory listings stay valid in milliseconds (0 disables caching)
+	 */
+	private long listingTtl = 0;
+
+	/**
+	 * Depot path whose submitted changes are tracked to invalidate cached data (null if not tracked)
+	 */
+	private String changeRoot;
+
+	/**
+	 * Highest submitted changelist below {@link #changeRoot} that cached data reflects (-1 if not known yet)
+	 */
+	private int changeWatermark = -1;
+
+	/**
+	 * Whether a Bloom filter of the files below {@link #changeRoot} answers lookups of files that don't exist
+	 */
+	private boolean existenceFilter = false;
+
+	/**
+	 * Bloom filter of the files below {@link #changeRoot}, built along with the watermark (null until built or if
+	 * none is kept)
+	 */
+	private volatile P4BloomFilter existingFiles;
+
+	/**
+	 * Whether the files below {@link #changeRoot} exceeded the listing limit when the existence filter was built, so
+	 * it isn't tried again
+	 */
+	private boolean existenceFilterTooLarge = false;
+
+	/**
+	 * Rate of lookups of files that don't exist which the Bloom filter can't answer
+	 */
+	private static final double existenceFilterFalsePositives = 0.01;
+
+	/**
+	 * File of the memory-mapped snapshot of the change root's metadata (null if no snapshot is kept)
+	 */
+	private File snapshotFile;
+
+	/**
+	 * Snapshot of the change root's metadata (null until first use or if no snapshot is kept)
+	 */
+	private P4SnapshotIndex snapshotIndex;
+
+	/**
+	 * File of the metadata store shared with other JVMs on the host (null if none is used)
+	 */
+	private File metadataStoreFile;
+
+	/**
+	 * Metadata store shared with other JVMs on the host (null until first use or if none is used)
+	 */
+	private P4MetadataStore metadataStore;
+
+	/**
+	 * Changelist all reads are pinned to (0 to read at head)
+	 */
+	private int pinnedChangelist = 0;
+
+	/**
+	 * Whether the submitted changes were checked since the current resolve started
+	 */
+	private volatile boolean changesChecked = false;
+
+	/**
+	 * Lock held while checking for submitted changes
+	 */
+	private final Object changesLock = new Object();
+
+	/**
+	 * Whether the metadata of a resource's whole directory tree is fetched when the first resource in it is resolved
+	 */
+	private boolean prefetchMetadata = false;
+
+	/**
+	 * Number of directory levels above a resource's directory that are included when prefetching metadata
+	 */
+	private int prefetchLevels = 0;
+
+	/**
+	 * Directories prefetching doesn't climb above, usually the fixed parts of the resolver's patterns
+	 */
+	private Set<String> prefetchRoots = new CopyOnWriteArraySet<String>();
+
+	/**
+	 * Depot paths put by the running publish transaction
+	 */
+	private List<String> publishedPaths = new ArrayList<String>();
 
 	/**
 	 * map of resources for that we got a "getResource" request
 	 */
-	private Map<String, Resource> resourcesCache = new HashMap<String, Resource>();
+	private volatile P4LruCache<String, Resource> resourcesCache =
+		new P4LruCache<String, Resource>(DEFAULT_RESOURCE_CACHE_SIZE, false);
+
+	/**
+	 * Maximum number of resources kept in the resources cache
+	 */
+	private int resourceCacheSize = DEFAULT_RESOURCE_CACHE_SIZE;
+
+	/**
+	 * Whether the garbage collector may drop resources from the resources cache
+	 */
+	private boolean softResourceCache = false;
+
+	/**
+	 * Default maximum number of resources kept in the resources cache
+	 */
+	public static final int DEFAULT_RESOURCE_CACHE_SIZE = 10000;
 
 	/**
 	 * ModuleRevisionId for a new publication as given by Ivy
@@ -105,11 +267,94 @@ public class P4Repository extends AbstractRepository {
 	 */
 	private P4PublishTransaction publishTransaction;
 	
+	/**
+	 * The resource returned for all files that don't exist (it can't be changed, so it is shared)
+	 */
+	private static final P4Resource missingResource = new P4Resource();
+
+	/**
+	 * Metadata lookups in flight, shared by all repositories of the JVM and keyed by server and depot path
+	 */
+	private static final P4SingleFlight<P4FileMetadata> metadataFlights = new P4SingleFlight<P4FileMetadata>();
+
+	/**
+	 * Directory listings in flight, shared by all repositories of the JVM and keyed by server and depot path
+	 */
+	private static final P4SingleFlight<List<String>> listingFlights = new P4SingleFlight<List<String>>();
+
+	/**
+	 * Downloads in flight, shared by all repositories of the JVM and keyed by server and depot path. The result is a
+	 * temporary file that the participants copy, the last one deletes it.
+	 */
+	private static final P4SingleFlight<File> downloadFlights = new P4SingleFlight<File>();
+
 	/**
 	 * prefix of p4java uris
 	 */
 	private static final String p4UriPrefix = "p4java://";
 
+	/**
+	 * fstat option that makes the server report file size and digest
+	 */
+	private static final String fstatSizeAndDigest = "-Ol";
+
+	/**
+	 * buffersize for transferring file contents
+	 */
+	private static final int transferBuffer = 0xFFFF;
+
+	/**
+	 * Time in milliseconds concurrent lookups wait to be merged into one fstat (0 to disable batching)
+	 */
+	private long batchWindow = 0;
+
+	/**
+	 * Maximum number of lookups merged into one fstat
+	 */
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	/**
+	 * Default maximum number of lookups merged into one fstat
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+	/**
+	 * Number of files a single listing request may return before recursive listings fall back to listing directory
+	 * by directory (0 for no limit)
+	 */
+	private int listingLimit = 0;
+
+	/**
+	 * Merges the fstat requests of concurrent lookups (null until used or if batching is disabled)
+	 */
+	private P4Batcher<P4FileMetadata> metadataBatcher;
+
+	/**
+	 * Files that were fetched ahead of Ivy's get-requests via {@link #prefetch(Collection)}, keyed by depot path.
+	 * Kept per thread since Ivy requests the files from the thread that asked for the download.
+	 */
+	private ThreadLocal<Map<String, File>> prefetchedFiles = new ThreadLocal<Map<String, File>>() {
+		@Override
+		protected Map<String, File> initialValue() {
+			return new HashMap<String, File>();
+		}
+	};
+
+	/**
+	 * Local store of retrieved files keyed by their server-side digest (null if not configured)
+	 */
+	private P4ContentStore contentStore;
+
+	/**
+	 * Number of files that are downloaded in parallel by {@link #getAll(Map)}
+	 */
+	private int downloadThreads = 1;
+
+	/**
+	 * Daemon threads running the parallel downloads, one per download thread (created on first use)
+	 */
+	private ExecutorService downloadExecutor;
+
 
 	/**
 	 * Initialises p4-repository to accept requests
@@ -129,14 +374,13 @@ public class P4Repository extends AbstractRepository {
 	}
 
 	/**
-	 * Creates a p4-server-object and tries to authenticate
+	 * Determines the p4java uri of the perforce server, either from the configured host and port or from the
+	 * environment.
 	 * 
-	 * @return true if authentication was successful
-	 * @throws IOException If connection data is incomplete
+	 * @return p4java uri of the server
+	 * @throws IOException If the server can't be determined
 	 */
-	private boolean authenticate() throws IOException {
-		String serverUriString = null;
-
+	private String getServerUriString() throws IOException {
 		// check whether host/port are set - otherwise try to get them from env
 		if ((p4Host == null) || (p4Port == null)) {
 			Message.debug("host or port not set via properties - trying environment-variable");
@@ -149,43 +393,48 @@ public class P4Repository extends AbstractRepository {
 			} else {
 				Message.debug("Found out that your p4server is " + hostport + " via the environment-variable P4PORT");
 
-				serverUriString = p4UriPrefix + hostport;
+				return p4UriPrefix + hostport;
 			}
 		} else {
-			serverUriString = p4UriPrefix + p4Host + ":" + p4Port;
+			return p4UriPrefix + p4Host + ":" + p4Port;
 		}
+	}
 
-		try {
-			server = ServerFactory.getOptionsServer(
-					serverUriString, null,
-					new UsageOptions(null).setProgramName("IvyP4Resolver")
-					.setProgramVersion("0.0.1"));
-		} catch (ConnectionException e) {
-			Message.error("Can't connect to perforce-server '" + serverUriString + "'");
-			e.printStackTrace();
-		} catch (NoSuchObjectException e) {
-			Message.error("Perforce-problem - don't know how to handle '" + serverUriString + "'");
-			e.printStackTrace();
-		} catch (ConfigException e) {
-			Message.error("Perforce-problem - wrong configuration '" + serverUriString + "'");
-			e.printStackTrace();
-		} catch (ResourceException e) {
-			Message.error("Insufficient ressources while trying to connect to perforce");
-			e.printStackTrace();
-		} catch (URISyntaxException e) {
-			Message.error("Perforce-problem - wrong uri '" + serverUriString + "'");
-			e.printStackTrace();
+	/**
+	 * Gets the pool of authenticated server connections, creating it on first use.
+	 * 
+	 * @return the connection pool
+	 * @throws IOException If the server can't be determined
+	 */
+	private synchronized P4ConnectionPool getConnectionPool() throws IOException {
+		if (connectionPool == null) {
+			connectionPool = new P4ConnectionPool(getServerUriString(), p4User, p4Passwd,
+					Math.max(maxConnections, downloadThreads));
 		}
-		if (server != null) { 
-			try {
-				authenticated = P4Utils.authenticate(server, serverUriString, p4User, p4Passwd);
-			} catch (Exception e) {
-				Message.error("Perforce authentication failed");
-				e.printStackTrace();
-			}
-			return authenticated;
+		return connectionPool;
+	}
+
+	/**
+	 * Checks out an authenticated connection from the pool. Every connection has to be handed back via
+	 * {@link #release(IOptionsServer)}.
+	 * 
+	 * @return an authenticated connection
+	 * @throws IOException If no connection could be established
+	 */
+	private IOptionsServer checkout() throws IOException {
+		return getConnectionPool().checkout();
+	}
+
+	/**
+	 * Hands a connection back to the pool. Connections that lost their server connection are discarded.
+	 * 
+	 * @param server a connection obtained via {@link #checkout()}
+	 */
+	private void release(IOptionsServer server) {
+		if (server.isConnected()) {
+			connectionPool.release(server);
 		} else {
-			return false;
+			connectionPool.invalidate(server);
 		}
 	}
 
@@ -200,12 +449,75 @@ public class P4Repository extends AbstractRepository {
 		fireTransferInitiated(getResource(source), TransferEvent.REQUEST_GET);
 		Message.debug("Getting source "+source+" to destination "+destination.getName());
 
-		if (!authenticated) {
-			authenticate();
+		File prefetched = prefetchedFiles.get().remove(source);
+		if (prefetched != null) {
+			if (prefetched.renameTo(destination)) {
+				return;
+			}
+			Message.debug("\tcouldn't move prefetched file " + prefetched + " - copying it instead");
+			try {
+				copyFile(prefetched, destination);
+				return;
+			} catch (IOException e) {
+				Message.warn("\tcouldn't copy prefetched file " + prefetched + ", fetching " + source + " again");
+			} finally {
+				prefetched.delete();
+			}
+		}
+
+		final File parentDir = destination.getAbsoluteFile().getParentFile();
+		final String depotPath = source;
+		P4SingleFlight.Flight<File> flight = downloadFlights.join(getServerUriString() + pin(source));
+		File shared = null;
+		try {
+			if (flight.isLeader()) {
+				shared = downloadFlights.run(flight, new Callable<File>() {
+					public File call() throws IOException {
+						parentDir.mkdirs();
+						File tmp = File.createTempFile("ivyp4", ".part", parentDir);
+						IOptionsServer server = checkout();
+						try {
+							fetch(server, depotPath, tmp);
+						} catch (IOException e) {
+							tmp.delete();
+							throw e;
+						} finally {
+							release(server);
+						}
+						return tmp;
+					}
+				});
+			} else {
+				Message.debug("\twaiting for concurrent download of " + source);
+				shared = flight.await();
+			}
+			if (downloadFlights.isAlone(flight) && shared.renameTo(destination)) {
+				shared = null;
+			} else {
+				copyFile(shared, destination);
+			}
+		} finally {
+			if (downloadFlights.leave(flight) && (shared != null)) {
+				shared.delete();
+			}
+		}
+	}
+
+	/**
+	 * Retrieves a file from the repository over the given connection.
+	 * 
+	 * @param server authenticated connection to use
+	 * @param source Path to the resource to retrieve in perforce depot notation
+	 * @param destination The location where the file should be retrieved to.
+	 * @throws IOException If the file can't be retrieved or written, leaving the destination incomplete.
+	 */
+	private void fetch(IOptionsServer server, String source, File destination) throws IOException {
+		if ((contentStore != null) && getViaContentStore(server, source, destination)) {
+			return;
 		}
 
 		String[] filePaths = new String[1];
-		filePaths[0] = source;
+		filePaths[0] = pin(source);
 		FileOutputStream destStream = null;
 
 		try {
@@ -213,120 +525,724 @@ public class P4Repository extends AbstractRepository {
 					FileSpecBuilder.makeFileSpecList(filePaths), false);
 
 			InputStream p4Content = server.getFileContents(fileList, false, true);
-			destStream = new FileOutputStream( destination ); 
+			if (p4Content == null) {
+				throw new IOException("couldn't get file " + source);
+			}
+			try {
+				destStream = new FileOutputStream( destination ); 
 
-			byte[] buffer = new byte[ 0xFFFF ]; 
-			for ( int len; (len = p4Content.read(buffer)) != -1; ) 
-				destStream.write( buffer, 0, len ); 
-			destStream.close();
+				byte[] buffer = new byte[ 0xFFFF ]; 
+				for ( int len; (len = p4Content.read(buffer)) != -1; ) 
+					destStream.write( buffer, 0, len ); 
+				destStream.close();
+			} finally {
+				p4Content.close();
+			}
 		} catch (P4JavaException e) {
 			Message.error("\tcouldn't get file " + source);
-			e.printStackTrace();
+			throw (IOException) new IOException("Perforce problem while getting " + source).initCause(e);
 		} catch ( IOException e ) { 
-			Message.error("\tproblem writing to destination");
-			e.printStackTrace(); 
+			Message.error("\tproblem writing " + source + " to destination");
+			throw e;
 		} finally {
 			if (destStream != null) { destStream.close(); }
 		}
 	}
 
 	/**
-	 * Handles a request to add/update a file to/in the repository.
+	 * Retrieves a file through the content store: the file is taken from the store if the store holds its digest,
+	 * otherwise it is printed from the server and added to the store.
 	 * 
-	 * @param source The source file.
-	 * @param destination The location of the file in the repository.
-	 * @param overwrite Whether to overwrite the file if it already exists.
-	 * @throws IOException If an error occurs putting a file (invalid path, invalid login credentials etc.)
+	 * @param server authenticated connection to use
+	 * @param source Path to the resource to retrieve in perforce depot notation
+	 * @param destination The location where the file should be retrieved to.
+	 * @return true if the file was retrieved, false if it has to be retrieved the regular way
 	 */
-	public void put(File source, String destination, boolean overwrite) throws IOException {
-		fireTransferInitiated(getResource(destination), TransferEvent.REQUEST_PUT);
-		Message.debug("Putting source "+source.getName()+" to destination "+destination);
-
-		if (!authenticated) {
-			authenticate();
+	private boolean getViaContentStore(IOptionsServer server, String source, File destination) {
+		try {
+			List<IExtendedFileSpec> specs = server.getExtendedFiles(FileSpecBuilder.makeFileSpecList(pin(source)),
+					new GetExtendedFilesOptions(fstatSizeAndDigest));
+			if ((specs == null) || specs.isEmpty() || !isVerbatim(specs.get(0))) {
+				return false;
+			}
+			IExtendedFileSpec spec = specs.get(0);
+			if (contentStore.materialize(spec.getDigest(), destination)) {
+				return true;
+			}
+			InputStream p4Content = server.getFileContents(
+					FileSpecBuilder.makeFileSpecList(spec.getDepotPathString() + "#" + spec.getHeadRev()), false, true);
+			try {
+				if (!spec.getDigest().equalsIgnoreCase(copyToFile(p4Content, destination, -1))) {
+					Message.warn("\tdigest mismatch while retrieving " + source);
+					return false;
+				}
+			} finally {
+				p4Content.close();
+			}
+			contentStore.store(spec.getDigest(), destination);
+			return true;
+		} catch (P4JavaException e) {
+			Message.warn("\tcouldn't retrieve " + source + " through the content store: " + e.getMessage());
+		} catch (IOException e) {
+			Message.warn("\tcouldn't retrieve " + source + " through the content store: " + e.getMessage());
 		}
+		return false;
+	}
 
-		// open the file for 'add' to the temporary client
+	/**
+	 * Opens a stream on the contents of a file in the repository. The contents are read from the server through a
+	 * bounded buffer while the caller consumes the stream, nothing is written to disk.
+	 * 
+	 * @param source Path to the resource in perforce depot notation
+	 * @return stream of the file contents, has to be closed by the caller
+	 * @throws IOException If the file can't be read from perforce.
+	 */
+	public InputStream openStream(String source) throws IOException {
+		Message.debug("Opening stream on " + source);
+
+		IOptionsServer server = checkout();
 		try {
-			if (publishTransaction == null) { // haven't initialised transaction on a previous put
-				// create a new temporary client for publishing 
-				publishTransaction = new P4PublishTransaction(server,destination,moduleRevisionId);
+			InputStream p4Content = server.getFileContents(FileSpecBuilder.makeFileSpecList(pin(source)), false, true);
+			if (p4Content == null) {
+				throw new IOException("No content returned for " + source);
 			}
-			publishTransaction.addPutOperation(server, source, destination, overwrite);
-		} catch (ConnectionException e) {
-			e.printStackTrace();
-			throw new IOException("Connection-problem while adding files to perforce");
-		} catch (AccessException e) {
-			e.printStackTrace();
-			throw new IOException("Access-problem while adding files to perforce");
-		} catch (RequestException e) {
-			e.printStackTrace();
-			throw new IOException("Request-problem while adding files to perforce");
+			InputStream stream = new P4ContentStream(p4Content, server);
+			// the connection is handed back to the pool once the stream is closed
+			server = null;
+			return stream;
 		} catch (P4JavaException e) {
-			e.printStackTrace();
-			throw new IOException("Perforce-problem while adding files to perforce");
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new IOException("Problem while adding files to perforce");
+			Message.error("\tcouldn't open stream on " + source);
+			throw (IOException) new IOException("Perforce problem while reading " + source).initCause(e);
+		} finally {
+			if (server != null) { release(server); }
 		}
 	}
 
 	/**
-	 * Gets a P4Resource.
+	 * Retrieves a number of files from the repository with as few server round trips as possible.
 	 * 
-	 * @param source Path to the resource in perforce in p4-depot-notation
-	 * @return The resource.
-	 * @throws IOException Never thrown, just here to satisfy interface.
+	 * All binary files are fetched by a single fstat and a single print whose output is split client-side using the
+	 * per-file header lines and the sizes reported by fstat. Each split file is verified against the server-side
+	 * digest. Files that can't be fetched that way (text files, digest mismatches, unexpected stream layout) are
+	 * retrieved one by one.
+	 * 
+	 * If more than one download thread is configured, the files are split into that many batches which are
+	 * retrieved in parallel over separate connections.
+	 * 
+	 * No transfer events are fired, {@link #get(String, File)} fires them when Ivy takes the files.
+	 * 
+	 * @param files Map of depot paths to the locations where the files should be retrieved to.
+	 * @throws IOException If an error occurs retrieving the files.
 	 */
-	public Resource getResource(String source) throws IOException {
-		Resource resource = (Resource) resourcesCache.get(source);
-		if (resource == null) {
-			resource = new P4Resource(this, source);
-			resourcesCache.put(source, resource);
+	public void getAll(Map<String, File> files) throws IOException {
+		if (files.isEmpty()) {
+			return;
+		}
+		Message.debug("Getting " + files.size() + " files in one batch");
+
+		if ((downloadThreads > 1) && (files.size() > 1)) {
+			getAllParallel(files);
+		} else {
+			IOptionsServer server = checkout();
+			try {
+				getAll(server, files);
+			} finally {
+				release(server);
+			}
 		}
-		return resource;
 	}
 
 	/**
-	 * Return a listing of resources located at a certain location.
+	 * Retrieves a number of files in parallel. The files are split into one batch per download thread, every
+	 * thread retrieves its batch over its own connection. Contents are streamed to disk, so memory use is bounded
+	 * by the number of threads no matter how many files are retrieved.
 	 * 
-	 * @param parent The parent-directory in perforce from which to generate the listing
-	 * @return A listing of the parent directory's file content, as a List of Strings.
-	 * @throws IOException On listing failure.
+	 * @param files Map of depot paths to the locations where the files should be retrieved to.
+	 * @throws IOException If an error occurs retrieving any of the files.
 	 */
-	public List<String> list(String parent) throws IOException {
-		if (!authenticated) {
-			authenticate();
+	private void getAllParallel(Map<String, File> files) throws IOException {
+		int threads = Math.min(downloadThreads, files.size());
+		List<Map<String, File>> batches = new ArrayList<Map<String, File>>();
+		for (int i = 0; i < threads; i++) {
+			batches.add(new LinkedHashMap<String, File>());
+		}
+		int i = 0;
+		for (Entry<String, File> entry : files.entrySet()) {
+			batches.get(i++ % threads).put(entry.getKey(), entry.getValue());
 		}
 
+		ExecutorService executor = getDownloadExecutor();
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
 		try {
-			List<String> list = new ArrayList<String>();
-			List<IFileSpec> depotFiles = server.getDepotFiles(FileSpecBuilder.makeFileSpecList(parent + "/*"), false);
-			List<IFileSpec> depotDirs = server.getDirectories(FileSpecBuilder.makeFileSpecList(parent + "*"), false, false, false);
+			for (final Map<String, File> batch : batches) {
+				results.add(executor.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						IOptionsServer connection = checkout();
+						try {
+							getAll(connection, batch);
+						} finally {
+							release(connection);
+						}
+						return null;
+					}
+				}));
+			}
 
-			// Add files to return list
-			if ((depotFiles != null) &&		// Make this bullet-proof since the p4java-api sometimes returns weird results
-					(depotFiles.isEmpty() == false) &&  
-					(depotFiles.get(0) != null) &&
-					(depotFiles.get(0).getAction() != null)) {
-				for ( Iterator<IFileSpec> iterator = depotFiles.iterator(); iterator.hasNext(); ) {
-					String path = iterator.next().getDepotPathString();
-					if (path != null) {
-						String[] parts = path.split("/", -1);
-						list.add(parts[parts.length - 1]);
+			IOException failure = null;
+			for (Future<Object> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					Message.error("\tparallel download failed: " + e.getCause());
+					if (failure == null) {
+						failure = (IOException) new IOException("Parallel download failed").initCause(e.getCause());
 					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for parallel downloads");
 				}
 			}
-			// Add directories to return list
-			if ((depotDirs != null) &&
-					(depotDirs.isEmpty() == false)) {
-				for ( Iterator<IFileSpec> iterator = depotDirs.iterator(); iterator.hasNext(); ) {
-					String path = iterator.next().getOriginalPathString();
-					if (path != null) {
-						String[] parts = path.split("/", -1);
-						list.add(parts[parts.length - 1]);
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			// the threads are kept for the next downloads, only the batches that didn't finish are dropped
+			for (Future<Object> result : results) {
+				result.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Gets the threads running parallel downloads, creating them on first use.
+	 * 
+	 * @return the executor
+	 */
+	private synchronized ExecutorService getDownloadExecutor() {
+		if (downloadExecutor == null) {
+			downloadExecutor = Executors.newFixedThreadPool(downloadThreads, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "p4 download");
+					// downloads must not keep the JVM alive if the repository isn't closed
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return downloadExecutor;
+	}
+
+	/**
+	 * Closes the idle server connections and stops the download threads. The repository can still be used
+	 * afterwards, connections and threads are created again as needed.
+	 */
+	public synchronized void close() {
+		if (downloadExecutor != null) {
+			downloadExecutor.shutdown();
+			downloadExecutor = null;
+		}
+		if (connectionPool != null) {
+			connectionPool.close();
+		}
+	}
+
+	/**
+	 * Gets the head revision of a file, bypassing all caches and a pinned changelist. Used to read files that are
+	 * about to be updated at a known revision.
+	 * 
+	 * @param source Path to the resource in perforce depot notation
+	 * @return the head revision or 0 if the file doesn't exist or is deleted
+	 * @throws IOException If the file can't be looked up.
+	 */
+	public int getHeadRevision(String source) throws IOException {
+		IOptionsServer server = checkout();
+		try {
+			List<IFileSpec> depotFiles = server.getDepotFiles(FileSpecBuilder.makeFileSpecList(source), false);
+			if ((depotFiles == null) || depotFiles.isEmpty() || (depotFiles.get(0) == null)
+					|| (depotFiles.get(0).getOpStatus() != FileSpecOpStatus.VALID)
+					|| (depotFiles.get(0).getAction() == null) || (depotFiles.get(0).getAction() == FileAction.DELETE)
+					|| (depotFiles.get(0).getAction() == FileAction.MOVE_DELETE)) {
+				return 0;
+			}
+			return depotFiles.get(0).getEndRevision();
+		} catch (P4JavaException e) {
+			throw (IOException) new IOException("Perforce problem while looking up " + source).initCause(e);
+		} finally {
+			release(server);
+		}
+	}
+
+	/**
+	 * Opens a stream on the head revision of a file, or the revision given with the path, bypassing all caches and a
+	 * pinned changelist. Used to read files that are about to be updated.
+	 * 
+	 * @param source Path to the resource in perforce depot notation, optionally followed by #revision
+	 * @return stream of the file contents that has to be closed by the caller, or null if the file doesn't exist
+	 * @throws IOException If the file can't be read from perforce.
+	 */
+	public InputStream openHeadStream(String source) throws IOException {
+		IOptionsServer server = checkout();
+		try {
+			if (!P4Utils.p4FileExists(server, source)) {
+				return null;
+			}
+			InputStream p4Content = server.getFileContents(FileSpecBuilder.makeFileSpecList(source), false, true);
+			if (p4Content == null) {
+				throw new IOException("No content returned for " + source);
+			}
+			InputStream stream = new P4ContentStream(p4Content, server);
+			// the connection is handed back to the pool once the stream is closed
+			server = null;
+			return stream;
+		} catch (P4JavaException e) {
+			Message.error("\tcouldn't open stream on " + source);
+			throw (IOException) new IOException("Perforce problem while reading " + source).initCause(e);
+		} finally {
+			if (server != null) { release(server); }
+		}
+	}
+
+	/**
+	 * Retrieves a number of files over the given connection using a single batched print where possible.
+	 * 
+	 * @param server authenticated connection to use
+	 * @param files Map of depot paths to the locations where the files should be retrieved to.
+	 * @throws IOException If an error occurs retrieving the files.
+	 */
+	private void getAll(IOptionsServer server, Map<String, File> files) throws IOException {
+		Map<String, File> remaining = new LinkedHashMap<String, File>(files);
+		Map<IExtendedFileSpec, File> batch = new LinkedHashMap<IExtendedFileSpec, File>();
+		try {
+			List<String> paths = new ArrayList<String>();
+			for (String source : files.keySet()) {
+				paths.add(pin(source));
+			}
+			List<IExtendedFileSpec> specs = server.getExtendedFiles(FileSpecBuilder.makeFileSpecList(paths),
+					new GetExtendedFilesOptions(fstatSizeAndDigest));
+			if (specs != null) {
+				P4MetadataCache cache = getMetadataCache();
+				for (IExtendedFileSpec spec : specs) {
+					if ((cache != null) && (spec != null) && (spec.getDepotPathString() != null)) {
+						cache.put(spec.getDepotPathString(), P4FileMetadata.fromSpec(spec));
+					}
+					if (isVerbatim(spec) && remaining.containsKey(spec.getDepotPathString())) {
+						File destination = remaining.get(spec.getDepotPathString());
+						if ((contentStore != null) && contentStore.materialize(spec.getDigest(), destination)) {
+							remaining.remove(spec.getDepotPathString());
+						} else {
+							batch.put(spec, destination);
+						}
+					}
+				}
+			}
+		} catch (P4JavaException e) {
+			Message.warn("\tcouldn't stat files for batched retrieval: " + e.getMessage());
+		}
+
+		if (batch.size() > 1) {
+			List<IFileSpec> printSpecs = new ArrayList<IFileSpec>();
+			for (IExtendedFileSpec spec : batch.keySet()) {
+				// pin the head revision reported by fstat so sizes and digests match the printed contents
+				printSpecs.addAll(FileSpecBuilder.makeFileSpecList(spec.getDepotPathString() + "#" + spec.getHeadRev()));
+			}
+			InputStream p4Content = null;
+			try {
+				p4Content = new BufferedInputStream(server.getFileContents(printSpecs, false, false), transferBuffer);
+				for (Entry<IExtendedFileSpec, File> entry : batch.entrySet()) {
+					IExtendedFileSpec spec = entry.getKey();
+					if (readBatchedFile(p4Content, spec, entry.getValue())) {
+						if (contentStore != null) {
+							contentStore.store(spec.getDigest(), entry.getValue());
+						}
+						remaining.remove(spec.getDepotPathString());
+					}
+				}
+			} catch (P4JavaException e) {
+				Message.warn("\tbatched retrieval failed, falling back to single file retrieval: " + e.getMessage());
+			} catch (IOException e) {
+				// the stream can't be trusted beyond this point
+				Message.warn("\tbatched retrieval failed, falling back to single file retrieval: " + e.getMessage());
+			} finally {
+				if (p4Content != null) { p4Content.close(); }
+			}
+		}
+
+		for (Entry<String, File> entry : remaining.entrySet()) {
+			fetch(server, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Fetches a number of files ahead of Ivy's single get-requests. Subsequent calls to {@link #get(String, File)}
+	 * for one of the sources are served from the prefetched files.
+	 * 
+	 * @param sources Depot paths of the files to prefetch.
+	 * @throws IOException If an error occurs retrieving the files.
+	 */
+	public void prefetch(Collection<String> sources) throws IOException {
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		for (String source : sources) {
+			if (!prefetchedFiles.get().containsKey(source) && !files.containsKey(source)) {
+				files.put(source, File.createTempFile("ivyp4", ".prefetch"));
+			}
+		}
+		try {
+			getAll(files);
+			prefetchedFiles.get().putAll(files);
+		} catch (IOException e) {
+			for (File f : files.values()) {
+				f.delete();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes all prefetched files that haven't been requested by Ivy.
+	 */
+	public void clearPrefetched() {
+		for (File f : prefetchedFiles.get().values()) {
+			f.delete();
+		}
+		prefetchedFiles.get().clear();
+	}
+
+	/**
+	 * Checks whether a file is printed byte by byte like it is stored on the server, so that its size and digest as
+	 * reported by fstat match the printed contents. That's the case for binary files without keyword expansion.
+	 * 
+	 * @param spec fstat result of the file
+	 * @return true if the file can be split off a batched print stream and verified against its digest
+	 */
+	private static boolean isVerbatim(IExtendedFileSpec spec) {
+		if ((spec == null) || (spec.getHeadAction() == null) || (spec.getDepotPathString() == null)
+				|| (spec.getHeadType() == null) || (spec.getDigest() == null)) {
+			return false;
+		}
+		String type = spec.getHeadType();
+		return type.contains("binary") && !type.contains("k");
+	}
+
+	/**
+	 * Reads a single file off a batched print stream: the header line followed by exactly as many bytes as fstat
+	 * reported for the file.
+	 * 
+	 * @param p4Content the batched print stream
+	 * @param spec fstat result of the file that is expected next in the stream
+	 * @param destination where the file contents should be written to
+	 * @return true if the file was read and matches the server-side digest
+	 * @throws IOException If the stream doesn't have the expected layout or the destination can't be written
+	 */
+	private boolean readBatchedFile(InputStream p4Content, IExtendedFileSpec spec, File destination) throws IOException {
+		String header = readHeaderLine(p4Content);
+		if ((header == null) || !header.startsWith(spec.getDepotPathString() + "#")) {
+			throw new IOException("unexpected header '" + header + "' in batched print of " + spec.getDepotPathString());
+		}
+
+		String digest = copyToFile(p4Content, destination, spec.getFileSize());
+		if (!spec.getDigest().equalsIgnoreCase(digest)) {
+			Message.warn("\tdigest mismatch in batched print of " + spec.getDepotPathString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes stream contents to a file and computes their MD5 digest on the way.
+	 * 
+	 * @param in the stream to read from
+	 * @param destination the file to write to
+	 * @param length number of bytes to copy, -1 to copy until the end of the stream
+	 * @return MD5 digest of the copied bytes as lowercase hex string
+	 * @throws IOException If the stream ends before length bytes were read or the destination can't be written
+	 */
+	private static String copyToFile(InputStream in, File destination, long length) throws IOException {
+		MessageDigest md5 = null;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw (IOException) new IOException("MD5 not available").initCause(e);
+		}
+
+		OutputStream destStream = new FileOutputStream(destination);
+		try {
+			byte[] buffer = new byte[transferBuffer];
+			long left = (length < 0) ? Long.MAX_VALUE : length;
+			while (left > 0) {
+				int len = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+				if (len == -1) {
+					if (length < 0) {
+						break;
 					}
+					throw new IOException("stream ended prematurely while writing " + destination);
+				}
+				md5.update(buffer, 0, len);
+				destStream.write(buffer, 0, len);
+				left -= len;
+			}
+		} finally {
+			destStream.close();
+		}
+		return toHex(md5.digest());
+	}
+
+	/**
+	 * Reads a header line (terminated by a newline) off a print stream. Empty lines are skipped.
+	 * 
+	 * @param in the print stream
+	 * @return the header line without line terminator or null if the stream ended
+	 * @throws IOException If an error occurs reading the stream
+	 */
+	private static String readHeaderLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int c; (c = in.read()) != -1; ) {
+			if (c == '\n') {
+				if (line.length() > 0) {
+					return line.toString();
+				}
+			} else if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return (line.length() > 0) ? line.toString() : null;
+	}
+
+	/**
+	 * Formats bytes as lowercase hex string.
+	 * 
+	 * @param bytes the bytes
+	 * @return hex representation
+	 */
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Copy a file locally (on filesystem)
+	 * 
+	 * @param src sourcefile
+	 * @param dst targetfile
+	 * @throws IOException
+	 */
+	private static void copyFile(File src, File dst) throws IOException {
+		InputStream in = new FileInputStream(src);
+		try {
+			OutputStream out = new FileOutputStream(dst);
+			try {
+				byte[] buffer = new byte[transferBuffer];
+				for (int len; (len = in.read(buffer)) != -1; ) {
+					out.write(buffer, 0, len);
 				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Handles a request to add/update a file to/in the repository.
+	 * 
+	 * @param source The source file.
+	 * @param destination The location of the file in the repository.
+	 * @param overwrite Whether to overwrite the file if it already exists.
+	 * @throws IOException If an error occurs putting a file (invalid path, invalid login credentials etc.)
+	 */
+	public void put(File source, String destination, boolean overwrite) throws IOException {
+		put(source, destination, overwrite, -1);
+	}
+
+	/**
+	 * Handles a request to update a file in the repository that was read at a known revision. If another submit
+	 * changed the file since, committing the transaction fails instead of overwriting that change.
+	 * 
+	 * @param source The source file.
+	 * @param destination The location of the file in the repository.
+	 * @param overwrite Whether to overwrite the file if it already exists.
+	 * @param baseRevision The revision the new contents are based on, 0 if the file didn't exist, -1 if unknown.
+	 * @throws IOException If an error occurs putting a file (invalid path, invalid login credentials etc.)
+	 */
+	public synchronized void put(File source, String destination, boolean overwrite, int baseRevision)
+			throws IOException {
+		fireTransferInitiated(getResource(destination), TransferEvent.REQUEST_PUT);
+		Message.debug("Putting source "+source.getName()+" to destination "+destination);
+
+		if (publishServer == null) {
+			// the transaction changes the connection's current client, so it gets a connection of its own
+			publishServer = getConnectionPool().openConnection();
+		}
+
+		// open the file for 'add' to the temporary client
+		try {
+			if (publishTransaction == null) { // haven't initialised transaction on a previous put
+				// create a new temporary client for publishing 
+				publishTransaction = new P4PublishTransaction(publishServer, destination, moduleRevisionId,
+						getPublishClientPool(destination));
+			}
+			publishTransaction.addPutOperation(publishServer, source, destination, overwrite, baseRevision);
+			publishedPaths.add(destination);
+		} catch (ConnectionException e) {
+			e.printStackTrace();
+			throw new IOException("Connection-problem while adding files to perforce");
+		} catch (AccessException e) {
+			e.printStackTrace();
+			throw new IOException("Access-problem while adding files to perforce");
+		} catch (RequestException e) {
+			e.printStackTrace();
+			throw new IOException("Request-problem while adding files to perforce");
+		} catch (P4JavaException e) {
+			e.printStackTrace();
+			throw new IOException("Perforce-problem while adding files to perforce");
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException("Problem while adding files to perforce");
+		}
+	}
+
+	/**
+	 * Gets the pool of publish clients mapping the depot of a destination.
+	 * 
+	 * @param destination target location in perforce depot notation
+	 * @return the pool or null if a client is created per transaction
+	 * @throws IOException If the server can't be determined
+	 */
+	private P4ClientPool getPublishClientPool(String destination) throws IOException {
+		if (publishClients <= 0) {
+			return null;
+		}
+		String depot = destination.substring(0, destination.indexOf('/', 2));
+		return P4ClientPool.getShared(getConnectionPool(), getServerUriString(), publishServer.getUserName(), depot,
+				publishClients);
+	}
+
+	/**
+	 * Gets a P4Resource.
+	 * 
+	 * @param source Path to the resource in perforce in p4-depot-notation
+	 * @return The resource.
+	 * @throws IOException If the submitted changes can't be checked.
+	 */
+	public Resource getResource(String source) throws IOException {
+		checkChanges();
+		Resource resource = resourcesCache.get(source);
+		if (resource == null) {
+			resource = new P4Resource(this, source);
+			Resource known = resourcesCache.putIfAbsent(source, resource);
+			if (known != null) {
+				resource = known;
+			}
+		}
+		return resource;
+	}
+
+	/**
+	 * Resolves several resources with as few fstat requests as possible, so later requests for them are answered
+	 * from the resource cache instead of asking the server for each. Resources resolved already, or answered by the
+	 * snapshot or the metadata cache, are skipped.
+	 * 
+	 * @param sources Paths to the resources in perforce in p4-depot-notation
+	 * @throws IOException If the resources can't be resolved due to perforce-access problems
+	 */
+	public void resolveResources(Collection<String> sources) throws IOException {
+		checkChanges();
+		P4SnapshotIndex index = getSnapshotIndex();
+		P4MetadataCache cache = getMetadataCache();
+		List<String> unresolved = new ArrayList<String>();
+		for (String source : new LinkedHashSet<String>(sources)) {
+			Resource resource = resourcesCache.get(source);
+			if (((resource instanceof P4Resource) && ((P4Resource) resource).isResolved())
+					|| ((index != null) && index.covers(source)) || ((cache != null)
+					&& (cache.get(source, ttlFor(source, metadataTtl), ttlFor(source, missingTtl)) != null))) {
+				continue;
+			}
+			unresolved.add(source);
+		}
+		if (unresolved.size() < 2) {
+			// a single lookup goes the usual way
+			return;
+		}
+		Message.debug("Resolving " + unresolved.size() + " resources in batches of " + maxBatchSize);
+		for (int i = 0; i < unresolved.size(); i += maxBatchSize) {
+			List<String> batch = unresolved.subList(i, Math.min(unresolved.size(), i + maxBatchSize));
+			Map<String, P4FileMetadata> metadata = fetchMetadata(batch, cache);
+			for (String source : batch) {
+				P4FileMetadata fileMetadata = metadata.get(source);
+				resourcesCache.remove(source);
+				resourcesCache.putIfAbsent(source, fileMetadata.exists() ? toResource(source, fileMetadata)
+						: new P4Resource(this, source, false, 0, 0));
+			}
+		}
+	}
+
+	/**
+	 * Return a listing of resources located at a certain location.
+	 * 
+	 * @param parent The parent-directory in perforce from which to generate the listing
+	 * @return A listing of the parent directory's file content, as a List of Strings.
+	 * @throws IOException On listing failure.
+	 */
+	public List<String> list(String parent) throws IOException {
+		checkChanges();
+		P4MetadataCache cache = getMetadataCache();
+		if (cache != null) {
+			List<String> cached = cache.getListing(parent, ttlFor(parent, listingTtl));
+			if (cached != null) {
+				Message.debug("Using cached listing of " + parent);
+				return cached;
+			}
+		}
+
+		P4SnapshotIndex index = getSnapshotIndex();
+		String dir = parent.endsWith("/") ? parent.substring(0, parent.length() - 1) : parent;
+		if ((index != null) && index.covers(dir)) {
+			return index.list(dir);
+		}
+
+		final String directory = parent;
+		final P4MetadataCache metadataCache = cache;
+		return listingFlights.execute(getServerUriString() + pin(parent), new Callable<List<String>>() {
+			public List<String> call() throws IOException {
+				return fetchListing(directory, metadataCache);
+			}
+		});
+	}
+
+	/**
+	 * Lists a directory on the server and stores the listing in the metadata cache.
+	 * 
+	 * @param parent The parent-directory in perforce from which to generate the listing
+	 * @param cache the metadata cache to fill (may be null)
+	 * @return A listing of the parent directory's file content, as a List of Strings.
+	 * @throws IOException On listing failure.
+	 */
+	private List<String> fetchListing(String parent, P4MetadataCache cache) throws IOException {
+		P4MetadataStore store = getMetadataStore();
+		if (store != null) {
+			List<String> stored = store.getListing(storeKey(parent), storeTtl(listingTtl));
+			if (stored != null) {
+				Message.debug("Using stored listing of " + parent);
+				if (cache != null) {
+					cache.putListing(parent, stored);
+				}
+				return stored;
+			}
+		}
+
+		IOptionsServer server = checkout();
+		try {
+			List<String> list = new ArrayList<String>();
+			listDirectory(server, parent, (ttlFor(parent, metadataTtl) > 0) ? cache : null, list);
+			if (cache != null) {
+				cache.putListing(parent, list);
+			}
+			if (store != null) {
+				store.putListing(storeKey(parent), list);
 			}
 			return list;
 		} catch (ConnectionException e) {
@@ -337,46 +1253,846 @@ public class P4Repository extends AbstractRepository {
 			Message.error("Perforce access problem while listing ressources for " + parent);
 			e.printStackTrace();
 			throw new IOException("Perforce access problem");
+		} catch (P4JavaException e) {
+			Message.error("Perforce problem while listing ressources for " + parent);
+			e.printStackTrace();
+			throw new IOException("Perforce problem");
+		} finally {
+			release(server);
+		}
+	}
+
+
+	/**
+	 * Lists the files and subdirectories of a directory on the server. If a listing limit is set, the files are
+	 * listed with a limited request first; a directory holding more files than the limit is listed again without
+	 * the limit, since Ivy must never take the first files of a directory for all of them.
+	 * 
+	 * @param server authenticated connection to use
+	 * @param parent The parent-directory in perforce from which to generate the listing
+	 * @param cache the metadata cache to store the metadata of the listed files in (null to list names only)
+	 * @param list receives the names of the files and subdirectories
+	 * @throws P4JavaException On listing failure.
+	 */
+	void listDirectory(IOptionsServer server, String parent, P4MetadataCache cache, List<String> list)
+			throws P4JavaException {
+		if (cache != null) {
+			// fstat instead of files, so the metadata of the listed files can be cached on the way
+			List<IExtendedFileSpec> extendedFiles = null;
+			if (listingLimit > 0) {
+				extendedFiles = server.getExtendedFiles(FileSpecBuilder.makeFileSpecList(pin(parent + "/*")),
+						new GetExtendedFilesOptions(fstatSizeAndDigest, "-m" + (listingLimit + 1)));
+			}
+			if ((listingLimit <= 0) || exceedsLimit(extendedFiles)) {
+				logUnlimited(parent);
+				extendedFiles = server.getExtendedFiles(FileSpecBuilder.makeFileSpecList(pin(parent + "/*")),
+						new GetExtendedFilesOptions(fstatSizeAndDigest));
+			}
+			if (extendedFiles != null) {
+				for (IExtendedFileSpec spec : extendedFiles) {
+					if ((spec != null) && (spec.getHeadAction() != null) && (spec.getDepotPathString() != null)) {
+						cache.put(spec.getDepotPathString(), P4FileMetadata.fromSpec(spec));
+						list.add(getName(spec.getDepotPathString()));
+					}
+				}
+			}
+		} else {
+			List<IFileSpec> depotFiles = getAllDepotFiles(server, parent + "/*");
+
+			// Add files to return list
+			if ((depotFiles != null) &&		// Make this bullet-proof since the p4java-api sometimes returns weird results
+					(depotFiles.isEmpty() == false) &&  
+					(depotFiles.get(0) != null) &&
+					(depotFiles.get(0).getAction() != null)) {
+				for ( Iterator<IFileSpec> iterator = depotFiles.iterator(); iterator.hasNext(); ) {
+					String path = iterator.next().getDepotPathString();
+					if (path != null) {
+						list.add(getName(path));
+					}
+				}
+			}
+		}
+
+		// Add directories to return list
+		List<IFileSpec> depotDirs = server.getDirectories(FileSpecBuilder.makeFileSpecList(pin(parent + "*")), false, false, false);
+		if ((depotDirs != null) &&
+				(depotDirs.isEmpty() == false)) {
+			for ( Iterator<IFileSpec> iterator = depotDirs.iterator(); iterator.hasNext(); ) {
+				String path = iterator.next().getOriginalPathString();
+				if (path != null) {
+					list.add(getName(path));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the recursive listing of a directory is kept for later requests, by the snapshot or the metadata
+	 * cache. Otherwise every recursive listing goes to the server, which costs more than listing level by level.
+	 * 
+	 * @param root depot path of the directory
+	 * @return true if recursive listings of the directory are reused
+	 * @throws IOException If the server can't be determined
+	 */
+	public boolean keepsTree(String root) throws IOException {
+		P4SnapshotIndex index = getSnapshotIndex();
+		if ((index != null) && index.covers(root)) {
+			return true;
+		}
+		return (getMetadataCache() != null) && (ttlFor(root, listingTtl) > 0);
+	}
+
+	/**
+	 * Lists the depot paths of all files below a directory with a single request. Deleted files aren't listed.
+	 * 
+	 * @param root Depot path of the directory
+	 * @return depot paths of all files below the directory
+	 * @throws IOException On listing failure.
+	 */
+	public List<String> listTree(String root) throws IOException {
+		checkChanges();
+		P4SnapshotIndex index = getSnapshotIndex();
+		if ((index != null) && index.covers(root)) {
+			return index.listTree(root);
+		}
+		P4MetadataCache cache = getMetadataCache();
+		if (cache != null) {
+			List<String> cached = cache.getTree(root, ttlFor(root, listingTtl));
+			if (cached != null) {
+				Message.debug("Using cached listing of " + root + "/...");
+				return cached;
+			}
+		}
+
+		IOptionsServer server = checkout();
+		try {
+			List<String> paths = new ArrayList<String>();
+			listTree(server, root, paths);
+			Message.debug("Listed " + paths.size() + " files below " + root);
+			if (cache != null) {
+				cache.putTree(root, paths);
+			}
+			return paths;
+		} catch (P4JavaException e) {
+			Message.error("Perforce problem while listing files below " + root);
+			e.printStackTrace();
+			throw new IOException("Perforce access problem");
+		} finally {
+			release(server);
+		}
+	}
+
+
+	/**
+	 * Lists the depot paths of all files below a directory. If a listing limit is set and the directory holds more
+	 * files, the files directly in it and the trees of its subdirectories are listed one after the other instead, so
+	 * no single recursive files request returns more than the limit. A single directory holding more files than the
+	 * limit is listed without the limit.
+	 * 
+	 * @param server authenticated connection to use
+	 * @param root Depot path of the directory
+	 * @param paths receives the depot paths of all files below the directory, except deleted ones
+	 * @throws P4JavaException On listing failure.
+	 */
+	void listTree(IOptionsServer server, String root, List<String> paths) throws P4JavaException {
+		List<IFileSpec> depotFiles = getDepotFiles(server, root + "/...");
+		if (!exceedsLimit(depotFiles)) {
+			addFiles(depotFiles, paths);
+			return;
+		}
+		depotFiles = null;
+		Message.debug("More than " + listingLimit + " files below " + root + ", listing its subdirectories one by one");
+		addFiles(getAllDepotFiles(server, root + "/*"), paths);
+		List<IFileSpec> depotDirs = server.getDirectories(FileSpecBuilder.makeFileSpecList(pin(root + "/*")), false,
+				false, false);
+		if (depotDirs != null) {
+			for (IFileSpec dir : depotDirs) {
+				if ((dir != null) && (dir.getOpStatus() == FileSpecOpStatus.VALID)
+						&& (dir.getOriginalPathString() != null)) {
+					listTree(server, dir.getOriginalPathString(), paths);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lists files on the server, at most one more than the listing limit if one is set.
+	 * 
+	 * @param server authenticated connection to use
+	 * @param path depot path with wildcards
+	 * @return the files (may be null)
+	 * @throws P4JavaException On listing failure.
+	 */
+	private List<IFileSpec> getDepotFiles(IOptionsServer server, String path) throws P4JavaException {
+		return getDepotFilesAt(server, pin(path));
+	}
+
+	/**
+	 * Lists all files of a single directory on the server. If a listing limit is set, a limited request is tried
+	 * first and the directory is only listed without the limit if it holds more files.
+	 * 
+	 * @param server authenticated connection to use
+	 * @param path depot path of the files of a directory, e.g. //depot/dir/*
+	 * @return the files (may be null)
+	 * @throws P4JavaException On listing failure.
+	 */
+	private List<IFileSpec> getAllDepotFiles(IOptionsServer server, String path) throws P4JavaException {
+		List<IFileSpec> depotFiles = getDepotFiles(server, path);
+		if (!exceedsLimit(depotFiles)) {
+			return depotFiles;
+		}
+		logUnlimited(path);
+		return server.getDepotFiles(FileSpecBuilder.makeFileSpecList(pin(path)), false);
+	}
+
+	/**
+	 * Logs that a directory exceeding the listing limit is listed without it.
+	 * 
+	 * @param path depot path of the directory
+	 */
+	private void logUnlimited(String path) {
+		Message.debug("More than " + listingLimit + " files in " + path + ", listing them without the limit");
+	}
+
+	/**
+	 * Lists files on the server at a given revision, at most one more than the listing limit if one is set.
+	 * 
+	 * @param server authenticated connection to use
+	 * @param path depot path with wildcards and revision
+	 * @return the files (may be null)
+	 * @throws P4JavaException On listing failure.
+	 */
+	private List<IFileSpec> getDepotFilesAt(IOptionsServer server, String path) throws P4JavaException {
+		if (listingLimit <= 0) {
+			return server.getDepotFiles(FileSpecBuilder.makeFileSpecList(path), false);
+		}
+		return server.getDepotFiles(FileSpecBuilder.makeFileSpecList(path),
+				new GetDepotFilesOptions("-m" + (listingLimit + 1)));
+	}
+
+	/**
+	 * Checks whether a listing holds more entries than the listing limit.
+	 * 
+	 * @param specs result of a listing request (may be null)
+	 * @return true if a limit is set and exceeded
+	 */
+	private boolean exceedsLimit(List<?> specs) {
+		return (listingLimit > 0) && (specs != null) && (specs.size() > listingLimit);
+	}
+
+	/**
+	 * Adds the depot paths of the files of a listing, except deleted ones.
+	 * 
+	 * @param depotFiles result of a files request (may be null)
+	 * @param paths receives the depot paths
+	 */
+	private static void addFiles(List<IFileSpec> depotFiles, List<String> paths) {
+		if (depotFiles != null) {
+			for (IFileSpec spec : depotFiles) {
+				if ((spec != null) && (spec.getOpStatus() == FileSpecOpStatus.VALID)
+						&& (spec.getDepotPathString() != null) && (spec.getAction() != FileAction.DELETE)
+						&& (spec.getAction() != FileAction.MOVE_DELETE)) {
+					paths.add(spec.getDepotPathString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param path a depot path
+	 * @return the last segment of the path
+	 */
+	static String getName(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Fetch the needed file information for a given file (size, last modification time) and report it back in a
+	 * P4Resource.
+	 * 
+	 * @param repositorySource Full path to resource in perforce in depot-notation
+	 * @return P4Resource filled with the needed informations
+	 * @throws IOException If resource can't be resolved due to perforce-access problems
+	 */
+	protected P4Resource resolveResource(String repositorySource)  throws IOException {
+		Message.debug("Resolve resource for " + repositorySource );
+
+		checkChanges();
+		P4SnapshotIndex index = getSnapshotIndex();
+		if ((index != null) && index.covers(repositorySource)) {
+			return toResource(repositorySource, index.lookup(repositorySource));
+		}
+		P4BloomFilter filter = existingFiles;
+		if ((filter != null) && (pinnedChangelist <= 0) && repositorySource.startsWith(changeRoot + "/")
+				&& !filter.mightContain(repositorySource)) {
+			Message.debug(repositorySource + " is not in the existence filter");
+			return missingResource;
+		}
+		P4MetadataCache cache = getMetadataCache();
+		if (cache != null) {
+			long positiveTtl = ttlFor(repositorySource, metadataTtl);
+			long negativeTtl = ttlFor(repositorySource, missingTtl);
+			P4FileMetadata cached = cache.get(repositorySource, positiveTtl, negativeTtl);
+			if ((cached == null) && prefetchMetadata && !cache.isCovered(repositorySource, positiveTtl)) {
+				prefetchDirectory(repositorySource, cache);
+				cached = cache.get(repositorySource, positiveTtl, negativeTtl);
+			}
+			if (cached != null) {
+				Message.debug("Using cached metadata for " + repositorySource);
+				return toResource(repositorySource, cached);
+			}
+			if (cache.isCovered(repositorySource, negativeTtl)) {
+				Message.debug("Directory of " + repositorySource + " is cached completely");
+				return toResource(repositorySource, P4FileMetadata.MISSING);
+			}
+		}
+
+		final String depotPath = repositorySource;
+		final P4MetadataCache metadataCache = cache;
+		P4FileMetadata metadata = metadataFlights.execute(getServerUriString() + pin(repositorySource),
+				new Callable<P4FileMetadata>() {
+					public P4FileMetadata call() throws IOException {
+						return fetchMetadata(depotPath, metadataCache);
+					}
+				});
+		return toResource(repositorySource, metadata);
+	}
+
+	/**
+	 * Fetches the metadata of a file from the server and stores it in the metadata cache.
+	 * 
+	 * @param repositorySource Full path to resource in perforce in depot-notation
+	 * @param cache the metadata cache to fill (may be null)
+	 * @return metadata of the file
+	 * @throws IOException If resource can't be resolved due to perforce-access problems
+	 */
+	private P4FileMetadata fetchMetadata(String repositorySource, P4MetadataCache cache) throws IOException {
+		P4MetadataStore store = getMetadataStore();
+		if (store != null) {
+			P4FileMetadata stored = store.getMetadata(storeKey(repositorySource), storeTtl(metadataTtl),
+					storeTtl(missingTtl));
+			if (stored != null) {
+				Message.debug("Using stored metadata for " + repositorySource);
+				if (cache != null) {
+					cache.put(repositorySource, stored);
+				}
+				return stored;
+			}
+		}
+
+		P4Batcher<P4FileMetadata> batcher = getMetadataBatcher();
+		P4FileMetadata metadata;
+		if (batcher != null) {
+			metadata = batcher.get(repositorySource);
+		} else {
+			metadata = fetchMetadata(Collections.singletonList(repositorySource), cache).get(repositorySource);
+		}
+		return (metadata != null) ? metadata : P4FileMetadata.MISSING;
+	}
+
+	/**
+	 * Fetches the metadata of several files from the server with a single fstat and stores it in the metadata cache.
+	 * 
+	 * @param repositorySources Full paths to resources in perforce in depot-notation
+	 * @param cache the metadata cache to fill (may be null)
+	 * @return metadata of the files keyed by path
+	 * @throws IOException If the resources can't be resolved due to perforce-access problems
+	 */
+	private Map<String, P4FileMetadata> fetchMetadata(List<String> repositorySources, P4MetadataCache cache)
+			throws IOException {
+		List<String> pinned = new ArrayList<String>(repositorySources.size());
+		for (String repositorySource : repositorySources) {
+			pinned.add(pin(repositorySource));
+		}
+		List<IExtendedFileSpec> depotFiles = null;
+		IOptionsServer server = checkout();
+		try {
+			depotFiles = server.getExtendedFiles(FileSpecBuilder.makeFileSpecList(pinned),
+					new GetExtendedFilesOptions(fstatSizeAndDigest));
+		} catch (P4JavaException e) {
+			Message.error("Perforce problem while trying to access " + repositorySources);
+			e.printStackTrace();
+			throw new IOException("Perforce access problem");
+		} finally {
+			release(server);
+		}
+
+		P4MetadataStore store = getMetadataStore();
+		Map<String, P4FileMetadata> metadata = matchMetadata(repositorySources, depotFiles);
+		for (String repositorySource : repositorySources) {
+			if (cache != null) {
+				cache.put(repositorySource, metadata.get(repositorySource));
+			}
+			if (store != null) {
+				store.putMetadata(storeKey(repositorySource), metadata.get(repositorySource));
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Matches the results of an fstat request to the paths asked for. Missing files are reported as errors without
+	 * a depot path, so the results are matched by path. The server may report a path with a different case (on a
+	 * case-insensitive server) or escaping of special characters than asked for, so paths are compared ignoring
+	 * both.
+	 * 
+	 * @param repositorySources Full paths to resources in perforce in depot-notation, as asked for
+	 * @param depotFiles result of the fstat request (may be null)
+	 * @return metadata of every path asked for, {@link P4FileMetadata#MISSING} for the paths not found
+	 */
+	static Map<String, P4FileMetadata> matchMetadata(List<String> repositorySources,
+			List<IExtendedFileSpec> depotFiles) {
+		Map<String, P4FileMetadata> metadata = new HashMap<String, P4FileMetadata>();
+		if ((depotFiles != null) && !depotFiles.isEmpty()) {
+			if (repositorySources.size() == 1) {
+				metadata.put(repositorySources.get(0), P4FileMetadata.fromSpec(depotFiles.get(0)));
+			} else {
+				Map<String, String> byKey = new HashMap<String, String>();
+				for (String repositorySource : repositorySources) {
+					byKey.put(matchKey(repositorySource), repositorySource);
+				}
+				for (IExtendedFileSpec spec : depotFiles) {
+					if ((spec != null) && (spec.getDepotPathString() != null)) {
+						String repositorySource = byKey.get(matchKey(spec.getDepotPathString()));
+						if (repositorySource != null) {
+							metadata.put(repositorySource, P4FileMetadata.fromSpec(spec));
+						}
+					}
+				}
+			}
+		}
+		for (String repositorySource : repositorySources) {
+			if (!metadata.containsKey(repositorySource)) {
+				metadata.put(repositorySource, P4FileMetadata.MISSING);
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Builds the key a depot path is matched by, ignoring case and the escaping of special characters.
+	 * 
+	 * @param path depot path
+	 * @return the key
+	 */
+	private static String matchKey(String path) {
+		return path.replace("%40", "@").replace("%23", "#").replace("%2A", "*").replace("%2a", "*")
+				.replace("%25", "%").toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Gets the batcher that merges the fstat requests of concurrent lookups, creating it on first use.
+	 * 
+	 * @return the batcher or null if lookups aren't batched
+	 */
+	private synchronized P4Batcher<P4FileMetadata> getMetadataBatcher() {
+		if ((metadataBatcher == null) && (batchWindow > 0)) {
+			metadataBatcher = new P4Batcher<P4FileMetadata>(new P4Batcher.Loader<P4FileMetadata>() {
+				public Map<String, P4FileMetadata> load(List<String> keys) throws IOException {
+					if (keys.size() > 1) {
+						Message.debug("Resolving a batch of " + keys.size() + " resources");
+					}
+					return fetchMetadata(keys, getMetadataCache());
+				}
+			}, batchWindow, maxBatchSize);
+		}
+		return metadataBatcher;
+	}
+
+	/**
+	 * Fetches the metadata of all files in the directory tree of a resource with a single fstat and stores it in the
+	 * metadata cache. Subsequent lookups of sibling files are answered from the cache.
+	 * 
+	 * @param repositorySource Full path to a resource in perforce in depot-notation
+	 * @param cache the metadata cache to fill
+	 * @throws IOException If no server connection could be established
+	 */
+	private void prefetchDirectory(String repositorySource, P4MetadataCache cache) throws IOException {
+		String dir = P4MetadataCache.getParent(repositorySource);
+		if (dir == null) {
+			return;
+		}
+		String limit = getPrefetchLimit(repositorySource);
+		for (int i = 0; (i < prefetchLevels) && (limit != null) && !dir.equals(limit) && dir.startsWith(limit + "/");
+				i++) {
+			dir = P4MetadataCache.getParent(dir);
+		}
+		Message.debug("Prefetching metadata of " + dir + "/...");
+
+		IOptionsServer server = checkout();
+		try {
+			List<IExtendedFileSpec> depotFiles = server.getExtendedFiles(
+					FileSpecBuilder.makeFileSpecList(pin(dir + "/...")), new GetExtendedFilesOptions(fstatSizeAndDigest));
+			if (depotFiles != null) {
+				for (IExtendedFileSpec spec : depotFiles) {
+					if ((spec != null) && (spec.getDepotPathString() != null)) {
+						cache.put(spec.getDepotPathString(), P4FileMetadata.fromSpec(spec));
+					}
+				}
+			}
+			cache.markComplete(dir);
+		} catch (P4JavaException e) {
+			// not fatal - the resource will be resolved on its own
+			Message.warn("Couldn't prefetch metadata of " + dir + ": " + e.getMessage());
+		} finally {
+			release(server);
+		}
+	}
+
+	/**
+	 * Gets the directory prefetching the metadata of a file may climb up to: the deepest of the prefetch roots and the
+	 * change root that contains the file.
+	 * 
+	 * @param repositorySource Full path to a resource in perforce in depot-notation
+	 * @return the directory or null if no root contains the file, prefetching doesn't climb then
+	 */
+	private String getPrefetchLimit(String repositorySource) {
+		String limit = null;
+		List<String> roots = new ArrayList<String>(prefetchRoots);
+		if (changeRoot != null) {
+			roots.add(changeRoot);
+		}
+		for (String root : roots) {
+			if (repositorySource.startsWith(root + "/") && ((limit == null) || (root.length() > limit.length()))) {
+				limit = root;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * Makes sure that nothing that changed since the current resolve started is served from the caches. Asks the
+	 * server for the files submitted below the change root after the watermark changelist and evicts exactly these
+	 * from the caches, which is a single request if nothing changed. Only checks once per resolve, see
+	 * {@link #markChangesUnchecked()}.
+	 * 
+	 * @throws IOException If the changes can't be fetched from the server.
+	 */
+	private void checkChanges() throws IOException {
+		if ((changeRoot == null) || (pinnedChangelist > 0) || changesChecked) {
+			return;
+		}
+		synchronized (changesLock) {
+			if (changesChecked) {
+				return;
+			}
+			P4SnapshotIndex index = getSnapshotIndex();
+			IOptionsServer server = checkout();
+			try {
+				if (index != null) {
+					List<String> changedPaths = index.refresh(server);
+					for (String path : changedPaths) {
+						evict(path);
+					}
+					if (!changedPaths.isEmpty()) {
+						Message.debug("Evicted " + changedPaths.size() + " changed files below " + changeRoot);
+					}
+				} else if (changeWatermark < 0) {
+					List<IChangelistSummary> changes = server.getChangelists(1,
+							FileSpecBuilder.makeFileSpecList(changeRoot + "/..."), null, null, false, false, true, false);
+					changeWatermark = ((changes != null) && !changes.isEmpty() && (changes.get(0) != null))
+							? changes.get(0).getId() : 0;
+					Message.debug("Tracking changes below " + changeRoot + " from change " + changeWatermark);
+					// the shared cache may hold entries other repositories read before the watermark, which would
+					// be trusted without expiry from now on
+					P4MetadataCache cache = getMetadataCache();
+					if (cache != null) {
+						cache.invalidateTree(changeRoot);
+					}
+				} else {
+					List<IFileSpec> changedFiles = server.getDepotFiles(FileSpecBuilder.makeFileSpecList(
+							changeRoot + "/...@" + (changeWatermark + 1) + ",@now"), false);
+					evictChanged(changedFiles);
+				}
+				if ((index == null) && existenceFilter && (existingFiles == null) && !existenceFilterTooLarge
+						&& (pinnedChangelist <= 0)) {
+					existingFiles = buildExistenceFilter(server);
+				}
+				changesChecked = true;
+			} catch (IOException e) {
+				Message.error("Problem while checking for changes below " + changeRoot + ": " + e.getMessage());
+				throw e;
+			} catch (P4JavaException e) {
+				Message.error("Perforce problem while checking for changes below " + changeRoot);
+				e.printStackTrace();
+				throw new IOException("Perforce access problem");
+			} finally {
+				release(server);
+			}
+		}
+	}
+
+	/**
+	 * Evicts files changed by newly submitted changelists from the caches and advances the watermark. The content
+	 * store needs no eviction since its files are keyed by digest.
+	 * 
+	 * @param changedFiles the files submitted after the watermark changelist
+	 * @throws IOException If the server can't be determined
+	 */
+	private void evictChanged(List<IFileSpec> changedFiles) throws IOException {
+		if (changedFiles == null) {
+			return;
+		}
+		P4BloomFilter filter = existingFiles;
+		int evicted = 0;
+		for (IFileSpec spec : changedFiles) {
+			if ((spec == null) || (spec.getOpStatus() != FileSpecOpStatus.VALID) || (spec.getDepotPathString() == null)) {
+				continue;
+			}
+			evict(spec.getDepotPathString());
+			// edits of known files would only fill the filter up
+			if ((filter != null) && !filter.mightContain(spec.getDepotPathString())) {
+				filter.add(spec.getDepotPathString());
+			}
+			changeWatermark = Math.max(changeWatermark, spec.getChangelistId());
+			evicted++;
+		}
+		if (evicted > 0) {
+			Message.debug("Evicted " + evicted + " changed files below " + changeRoot + ", now at change "
+					+ changeWatermark);
+		}
+		if ((filter != null) && filter.isOverfilled()) {
+			Message.debug("Existence filter of " + changeRoot + " holds " + filter.size() + " files, rebuilding it");
+			existingFiles = null;
+		}
+	}
+
+	/**
+	 * Builds the Bloom filter of all files below the change root with a single request at the watermark changelist,
+	 * so files submitted later are added by the next checks for changes. A filter missing files would report them as
+	 * missing, so if there are more files than the listing limit no filter is built.
+	 * 
+	 * @param server authenticated connection to use
+	 * @return the filter or null if there are too many files
+	 * @throws P4JavaException If the files can't be listed.
+	 */
+	private P4BloomFilter buildExistenceFilter(IOptionsServer server) throws P4JavaException {
+		List<IFileSpec> depotFiles = getDepotFilesAt(server, changeRoot + "/...@" + changeWatermark);
+		if (exceedsLimit(depotFiles)) {
+			Message.warn("More than " + listingLimit + " files below " + changeRoot
+					+ ", not keeping an existence filter");
+			existenceFilterTooLarge = true;
+			return null;
+		}
+		int count = (depotFiles != null) ? depotFiles.size() : 0;
+		// room to grow until the filter is rebuilt
+		P4BloomFilter filter = new P4BloomFilter(count + count / 2 + 1000, existenceFilterFalsePositives);
+		if (depotFiles != null) {
+			for (IFileSpec spec : depotFiles) {
+				// deleted files are added as well, a lookup reports them like fstat does
+				if ((spec != null) && (spec.getOpStatus() == FileSpecOpStatus.VALID)
+						&& (spec.getDepotPathString() != null)) {
+					filter.add(spec.getDepotPathString());
+				}
+			}
+		}
+		Message.debug("Built existence filter of " + filter.size() + " files below " + changeRoot);
+		return filter;
+	}
+
+	/**
+	 * Evicts a changed file from the caches.
+	 * 
+	 * @param path depot path of the file
+	 * @throws IOException If the server can't be determined
+	 */
+	private void evict(String path) throws IOException {
+		resourcesCache.remove(path);
+		P4MetadataCache cache = getMetadataCache();
+		if (cache != null) {
+			cache.invalidate(path);
+		}
+		P4MetadataStore store = getMetadataStore();
+		if (store != null) {
+			store.remove(getServerUriString(), path);
+		}
+	}
+
+	/**
+	 * Gets the metadata store shared with other JVMs on the host, opening it on first use.
+	 * 
+	 * @return the store or null if none is used or nothing is cached
+	 */
+	private synchronized P4MetadataStore getMetadataStore() {
+		if ((metadataStoreFile == null) || ((metadataTtl <= 0) && (missingTtl <= 0) && (listingTtl <= 0)
+				&& (pinnedChangelist <= 0))) {
+			return null;
+		}
+		if (metadataStore == null) {
+			metadataStore = P4MetadataStore.getShared(metadataStoreFile, P4MetadataStore.DEFAULT_CAPACITY);
+			metadataStore.setRetention(Math.max(metadataTtl, Math.max(missingTtl, listingTtl)));
+		}
+		return metadataStore;
+	}
+
+	/**
+	 * Determines how long an entry of the shared metadata store may be used. Entries of other JVMs aren't covered by
+	 * this JVM's change tracking, so they are trusted for the configured time only, unless reads are pinned.
+	 * 
+	 * @param ttl configured time to live in milliseconds
+	 * @return time to live in milliseconds
+	 */
+	private long storeTtl(long ttl) {
+		return (pinnedChangelist > 0) ? Long.MAX_VALUE : ttl;
+	}
+
+	/**
+	 * Gets the snapshot of the change root's metadata. Snapshots are only kept of reads at head.
+	 * 
+	 * @return the snapshot or null if none is kept
+	 */
+	private synchronized P4SnapshotIndex getSnapshotIndex() {
+		if ((snapshotFile == null) || (changeRoot == null) || (pinnedChangelist > 0)) {
+			return null;
+		}
+		if (snapshotIndex == null) {
+			snapshotIndex = new P4SnapshotIndex(snapshotFile, changeRoot);
+		}
+		return snapshotIndex;
+	}
+
+	/**
+	 * Tells the repository that a new resolve started, so the submitted changes are checked again on the next
+	 * request.
+	 */
+	public void markChangesUnchecked() {
+		changesChecked = false;
+	}
+
+	/**
+	 * Gets the time to live of cached data about a depot path. Data below the change root never expires since it is
+	 * evicted as soon as it changes, neither does data read at a pinned changelist.
+	 * 
+	 * @param path depot path
+	 * @param ttl the configured time to live in milliseconds
+	 * @return the time to live to use in milliseconds
+	 */
+	private long ttlFor(String path, long ttl) {
+		if (pinnedChangelist > 0) {
+			return Long.MAX_VALUE;
+		}
+		if ((changeRoot != null) && (path.equals(changeRoot) || path.startsWith(changeRoot + "/"))) {
+			return Long.MAX_VALUE;
+		}
+		return ttl;
+	}
+
+	/**
+	 * Pins a depot path to the configured changelist.
+	 * 
+	 * @param path depot path or pattern without revision
+	 * @return the path at the pinned changelist, or the path itself if reads aren't pinned
+	 */
+	private String pin(String path) {
+		return (pinnedChangelist > 0) ? path + "@" + pinnedChangelist : path;
+	}
+
+	/**
+	 * Builds the key of a path in the shared metadata store, which may also hold entries of other servers.
+	 * 
+	 * @param path depot path without revision
+	 * @return the pinned path, prefixed with the server
+	 * @throws IOException If the server can't be determined
+	 */
+	private String storeKey(String path) throws IOException {
+		return getServerUriString() + pin(path);
+	}
+
+	/**
+	 * Creates a resolved P4Resource from file metadata.
+	 * 
+	 * @param repositorySource Full path to resource in perforce in depot-notation
+	 * @param metadata metadata of the file
+	 * @return P4Resource filled with the metadata
+	 */
+	private P4Resource toResource(String repositorySource, P4FileMetadata metadata) {
+		if (metadata.exists()) {
+			Message.debug("Resource found at " + repositorySource + ", returning resolved resource");
+			return new P4Resource(this, repositorySource, true, metadata.getHeadTime(), metadata.getSize());
+		} else {
+			Message.debug("No resource found at " + repositorySource + ", returning default resource");
+			return missingResource;
 		}
 	}
 
+	/**
+	 * Gets the metadata cache shared with other repositories using the same server.
+	 * 
+	 * @return the shared cache or null if neither metadata nor listings are cached
+	 * @throws IOException If the server can't be determined
+	 */
+	private synchronized P4MetadataCache getMetadataCache() throws IOException {
+		if ((metadataTtl <= 0) && (missingTtl <= 0) && (listingTtl <= 0) && (changeRoot == null)
+				&& (pinnedChangelist <= 0)) {
+			return null;
+		}
+		if (metadataCache == null) {
+			// what is seen at a pinned changelist differs from what is seen at head
+			String key = (pinnedChangelist > 0) ? getServerUriString() + "@" + pinnedChangelist : getServerUriString();
+			metadataCache = P4MetadataCache.getShared(key);
+			if (missingCacheSize > 0) {
+				metadataCache.setMissingCacheSize(missingCacheSize);
+			}
+			// entries read at a pinned changelist never expire, those below the change root are dropped on change
+			metadataCache.setRetention((pinnedChangelist > 0) ? Long.MAX_VALUE
+					: Math.max(metadataTtl, Math.max(missingTtl, listingTtl)));
+			if (changeRoot != null) {
+				metadataCache.retain(changeRoot);
+			}
+		}
+		return metadataCache;
+	}
 
 	/**
-	 * Fetch the needed file information for a given file (size, last modification time) and report it back in a
-	 * P4Resource.
+	 * Sets the time concurrent lookups wait to be merged into one fstat.
 	 * 
-	 * @param repositorySource Full path to resource in perforce in depot-notation
-	 * @return P4Resource filled with the needed informations
-	 * @throws IOException If resource can't be resolved due to perforce-access problems
+	 * @param batchWindow time in milliseconds, 0 to resolve every lookup on its own
 	 */
-	protected P4Resource resolveResource(String repositorySource)  throws IOException {
-		Message.debug("Resolve resource for " + repositorySource );
-		P4Resource result = null;
+	public synchronized void setBatchWindow(long batchWindow) {
+		this.batchWindow = batchWindow;
+		this.metadataBatcher = null;
+	}
 
-		if (!authenticated) {
-			authenticate();
-		}
+	/**
+	 * @return time in milliseconds concurrent lookups wait to be merged into one fstat
+	 */
+	public long getBatchWindow() {
+		return batchWindow;
+	}
 
-		List<IExtendedFileSpec> depotFiles = null;
-		try {
-			depotFiles = server.getExtendedFiles(FileSpecBuilder.makeFileSpecList(repositorySource),null);
-		} catch (P4JavaException e) {
-			Message.error("Perforce problem while trying to access " + repositorySource);
-			e.printStackTrace();
-			throw new IOException("Perforce access problem");
-		}
+	/**
+	 * Sets the maximum number of lookups merged into one fstat.
+	 * 
+	 * @param maxBatchSize maximum number of lookups
+	 */
+	public synchronized void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.metadataBatcher = null;
+	}
 
-		if ((depotFiles != null) && (depotFiles.get(0) != null) && (depotFiles.get(0).getHeadAction() != null)) {
-			IExtendedFileSpec f = depotFiles.get(0);
-			Message.debug("Resource found at " + repositorySource + ", returning resolved resource");
-			// f.getFileSize() returns 0 - don't know why (but it seems we can live with it)
-			result = new P4Resource(this, repositorySource, true, f.getHeadTime().getTime(), f.getFileSize());
-		} else {
-			Message.debug("No resource found at " + repositorySource + ", returning default resource");
-			result = new P4Resource();
-		} 
+	/**
+	 * @return maximum number of lookups merged into one fstat
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
 
-		return result;
+	/**
+	 * Sets the number of files a single listing request may return. Larger trees are listed directory by directory;
+	 * a single directory holding more files is still listed completely, without the limit.
+	 * 
+	 * @param listingLimit maximum number of files, 0 for no limit
+	 */
+	public synchronized void setListingLimit(int listingLimit) {
+		this.listingLimit = Math.max(0, listingLimit);
+		existenceFilterTooLarge = false;
+	}
+
+	/**
+	 * @return maximum number of files a single listing request may return (0 for no limit)
+	 */
+	public int getListingLimit() {
+		return listingLimit;
 	}
 
 	/**
@@ -443,6 +2159,323 @@ public class P4Repository extends AbstractRepository {
 		return p4Passwd;
 	}
 
+	/**
+	 * Set the local content store that retrieved files are kept in
+	 * @param contentStore The content store (null to disable it)
+	 */
+	public void setContentStore(P4ContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+
+	/**
+	 * Get the local content store that retrieved files are kept in
+	 * @return The content store (may be null)
+	 */
+	public P4ContentStore getContentStore() {
+		return contentStore;
+	}
+
+	/**
+	 * Set how long cached metadata of existing files stays valid
+	 * @param metadataTtl Time to live in milliseconds (0 disables caching)
+	 */
+	public void setMetadataTtl(long metadataTtl) {
+		this.metadataTtl = metadataTtl;
+	}
+
+	/**
+	 * Get how long cached metadata of existing files stays valid
+	 * @return Time to live in milliseconds
+	 */
+	public long getMetadataTtl() {
+		return metadataTtl;
+	}
+
+	/**
+	 * Set how long cached results for missing files stay valid
+	 * @param missingTtl Time to live in milliseconds (0 disables caching)
+	 */
+	public void setMissingTtl(long missingTtl) {
+		this.missingTtl = missingTtl;
+	}
+
+	/**
+	 * Get how long cached results for missing files stay valid
+	 * @return Time to live in milliseconds
+	 */
+	public long getMissingTtl() {
+		return missingTtl;
+	}
+
+	/**
+	 * @param changeRoot Depot path whose submitted changes are tracked to invalidate cached data (null to rely on time
+	 *            to live settings only)
+	 */
+	public void setChangeRoot(String changeRoot) {
+		this.changeRoot = ((changeRoot != null) && changeRoot.endsWith("/"))
+				? changeRoot.substring(0, changeRoot.length() - 1) : changeRoot;
+	}
+
+	/**
+	 * @return Depot path whose submitted changes are tracked
+	 */
+	public String getChangeRoot() {
+		return changeRoot;
+	}
+
+	/**
+	 * @param resourceCacheSize maximum number of resources kept in the resources cache (empties the cache)
+	 */
+	public synchronized void setResourceCacheSize(int resourceCacheSize) {
+		this.resourceCacheSize = resourceCacheSize;
+		resourcesCache = new P4LruCache<String, Resource>(resourceCacheSize, softResourceCache);
+	}
+
+	/**
+	 * @return maximum number of resources kept in the resources cache
+	 */
+	public int getResourceCacheSize() {
+		return resourceCacheSize;
+	}
+
+	/**
+	 * @param softResourceCache true to let the garbage collector drop cached resources when memory gets tight
+	 *            (empties the cache)
+	 */
+	public synchronized void setSoftResourceCache(boolean softResourceCache) {
+		this.softResourceCache = softResourceCache;
+		resourcesCache = new P4LruCache<String, Resource>(resourceCacheSize, softResourceCache);
+	}
+
+	/**
+	 * @return true if the garbage collector may drop cached resources
+	 */
+	public boolean isSoftResourceCache() {
+		return softResourceCache;
+	}
+
+	/**
+	 * @return the resources cache, e.g. to look at its hit, miss and eviction counters
+	 */
+	public P4LruCache<String, Resource> getResourceCache() {
+		return resourcesCache;
+	}
+
+	/**
+	 * @param existenceFilter Whether a Bloom filter of the files below the change root answers lookups of files that
+	 *            don't exist
+	 */
+	public synchronized void setExistenceFilter(boolean existenceFilter) {
+		this.existenceFilter = existenceFilter;
+		existenceFilterTooLarge = false;
+		if (!existenceFilter) {
+			existingFiles = null;
+		}
+	}
+
+	/**
+	 * @return Whether a Bloom filter of the files below the change root answers lookups of files that don't exist
+	 */
+	public boolean isExistenceFilter() {
+		return existenceFilter;
+	}
+
+	/**
+	 * @param snapshotFile File of the memory-mapped snapshot of the change root's metadata (null to keep no snapshot)
+	 */
+	public synchronized void setSnapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+		this.snapshotIndex = null;
+	}
+
+	/**
+	 * @return File of the memory-mapped snapshot of the change root's metadata
+	 */
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * @param metadataStoreFile File of the metadata store shared with other JVMs on the host (null to use none)
+	 */
+	public synchronized void setMetadataStoreFile(File metadataStoreFile) {
+		this.metadataStoreFile = metadataStoreFile;
+		this.metadataStore = null;
+	}
+
+	/**
+	 * @return File of the metadata store shared with other JVMs on the host
+	 */
+	public File getMetadataStoreFile() {
+		return metadataStoreFile;
+	}
+
+	/**
+	 * @param pinnedChangelist Changelist all reads are pinned to (0 to read at head)
+	 */
+	public synchronized void setPinnedChangelist(int pinnedChangelist) {
+		this.pinnedChangelist = Math.max(0, pinnedChangelist);
+		// cached data from the previous changelist doesn't apply anymore
+		metadataCache = null;
+		resourcesCache.clear();
+	}
+
+	/**
+	 * @return Changelist all reads are pinned to (0 if reads are at head)
+	 */
+	public int getPinnedChangelist() {
+		return pinnedChangelist;
+	}
+
+	/**
+	 * @param missingCacheSize Maximum number of missing files remembered by the shared metadata cache
+	 */
+	public synchronized void setMissingCacheSize(int missingCacheSize) {
+		this.missingCacheSize = missingCacheSize;
+		if ((metadataCache != null) && (missingCacheSize > 0)) {
+			metadataCache.setMissingCacheSize(missingCacheSize);
+		}
+	}
+
+	/**
+	 * @return Maximum number of missing files remembered by the shared metadata cache (0 if not set)
+	 */
+	public int getMissingCacheSize() {
+		return missingCacheSize;
+	}
+
+	/**
+	 * @param listingTtl Time to live of cached directory listings in milliseconds (0 disables caching)
+	 */
+	public void setListingTtl(long listingTtl) {
+		this.listingTtl = listingTtl;
+	}
+
+	/**
+	 * @return Time to live of cached directory listings in milliseconds
+	 */
+	public long getListingTtl() {
+		return listingTtl;
+	}
+
+	/**
+	 * Set whether the metadata of a resource's whole directory tree is fetched when the first resource in it is
+	 * resolved. Only effective if metadata is cached (see {@link #setMetadataTtl(long)}).
+	 * @param prefetchMetadata true to prefetch metadata
+	 */
+	public void setPrefetchMetadata(boolean prefetchMetadata) {
+		this.prefetchMetadata = prefetchMetadata;
+	}
+
+	/**
+	 * Get whether the metadata of a resource's whole directory tree is prefetched
+	 * @return true if metadata is prefetched
+	 */
+	public boolean isPrefetchMetadata() {
+		return prefetchMetadata;
+	}
+
+	/**
+	 * Set the number of directory levels above a resource's directory that are included when prefetching metadata,
+	 * e.g. 1 to cover all revisions of a module with the pattern [organisation]/[module]/[revision]/[artifact].[ext]
+	 * @param prefetchLevels Number of directory levels
+	 */
+	public void setPrefetchLevels(int prefetchLevels) {
+		this.prefetchLevels = Math.max(0, prefetchLevels);
+	}
+
+	/**
+	 * Add a directory that prefetching metadata doesn't climb above, e.g. the fixed part of a pattern
+	 * @param root depot path of the directory
+	 */
+	public void addPrefetchRoot(String root) {
+		prefetchRoots.add(root);
+	}
+
+	/**
+	 * Get the number of directory levels above a resource's directory that are included when prefetching metadata
+	 * @return Number of directory levels
+	 */
+	public int getPrefetchLevels() {
+		return prefetchLevels;
+	}
+
+	/**
+	 * Set the maximum number of server connections the repository keeps open
+	 * @param maxConnections Maximum number of connections
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+		this.maxConnections = Math.max(1, maxConnections);
+		if (connectionPool != null) {
+			connectionPool.setMaxConnections(Math.max(this.maxConnections, downloadThreads));
+		}
+	}
+
+	/**
+	 * Set the number of long-lived clients per depot kept for publishing
+	 * @param publishClients Number of clients (0 creates a client per publish transaction)
+	 */
+	public void setPublishClients(int publishClients) {
+		this.publishClients = Math.max(0, publishClients);
+	}
+
+	/**
+	 * Get the number of long-lived clients per depot kept for publishing
+	 * @return Number of clients (0 if a client is created per publish transaction)
+	 */
+	public int getPublishClients() {
+		return publishClients;
+	}
+
+	/**
+	 * Set whether publish transactions are cleaned up in the background once committed. Only transactions with a
+	 * pooled client are, since a client created for the transaction would be left behind if the JVM exits first.
+	 * @param asyncCleanup true to return from the commit right after the submit
+	 */
+	public void setAsyncCleanup(boolean asyncCleanup) {
+		this.asyncCleanup = asyncCleanup;
+	}
+
+	/**
+	 * Get whether publish transactions with pooled clients are cleaned up in the background once committed
+	 * @return true if the commit returns right after the submit
+	 */
+	public boolean isAsyncCleanup() {
+		return asyncCleanup;
+	}
+
+	/**
+	 * Get the maximum number of server connections the repository keeps open
+	 * @return Maximum number of connections
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Set the number of files that are downloaded in parallel, each over its own connection
+	 * @param downloadThreads Number of parallel downloads (1 downloads serially)
+	 */
+	public synchronized void setDownloadThreads(int downloadThreads) {
+		this.downloadThreads = Math.max(1, downloadThreads);
+		if (connectionPool != null) {
+			connectionPool.setMaxConnections(Math.max(maxConnections, this.downloadThreads));
+		}
+		if (downloadExecutor != null) {
+			// running downloads finish, the next ones use threads of the new number
+			downloadExecutor.shutdown();
+			downloadExecutor = null;
+		}
+	}
+
+	/**
+	 * Get the number of files that are downloaded in parallel
+	 * @return Number of parallel downloads
+	 */
+	public int getDownloadThreads() {
+		return downloadThreads;
+	}
+
 	/**
 	 * Gets the manifest associated with the passed class.
 	 * 
@@ -479,7 +2512,7 @@ public class P4Repository extends AbstractRepository {
 	 * 
 	 * @param mrid The P4 submit message to use for this publish transaction.
 	 */
-	public void beginPublishTransaction(ModuleRevisionId mrid) {
+	public synchronized void beginPublishTransaction(ModuleRevisionId mrid) {
 		ensureNoPublishTransaction();
 		Message.debug("Starting transaction " + mrid + " ...");
 		this.moduleRevisionId = mrid;
@@ -488,25 +2521,129 @@ public class P4Repository extends AbstractRepository {
 	/**
 	 * Revert any leftovers of a started transaction in perforce and on the filesystem
 	 */
-	public void abortPublishTransaction() {
-		P4Utils.deleteClient(server, publishTransaction.getTmpClient());
+	public synchronized void abortPublishTransaction() {
+		if (publishTransaction != null) {
+			publishTransaction.cleanup(publishServer);
+			publishTransaction = null;
+		}
+		closePublishServer();
+		publishedPaths.clear();
+	}
+
+	/**
+	 * Commits the previously started publish transaction.
+	 * 
+	 * @throws IOException If an error occurs committing the transaction.
+	 */
+	public synchronized void commitPublishTransaction() throws IOException {
+		commitPublishTransaction(false);
+	}
+
+	/**
+	 * Commits the previously started publish transaction unless files put based on a known revision were changed by
+	 * another submit. In that case the transaction stays open without these files, so they can be put again based
+	 * on their new head revision before committing again.
+	 * 
+	 * @return true if the transaction was committed, false if files put based on a known revision were changed
+	 * @throws IOException If an error occurs committing the transaction.
+	 */
+	public synchronized boolean tryCommitPublishTransaction() throws IOException {
+		return commitPublishTransaction(true);
 	}
 
 	/**
 	 * Commits the previously started publish transaction.
 	 * 
+	 * @param keepOnConflict whether to keep the transaction open if files put based on a known revision were changed
+	 * @return true if the transaction was committed, false if it was kept open
 	 * @throws IOException If an error occurs committing the transaction.
 	 */
-	public void commitPublishTransaction() throws IOException {
+	private boolean commitPublishTransaction(boolean keepOnConflict) throws IOException {
 		ensurePublishTransaction();
 		Message.debug("Committing transaction...");
+		boolean kept = false;
 		try {
-			publishTransaction.commit(server);
+			publishTransaction.commit(publishServer);
+			return true;
 		} catch (P4JavaException e) {
+			if (keepOnConflict && publishTransaction.hasConflicts()) {
+				Message.info(e.getMessage());
+				kept = true;
+				return false;
+			}
 			Message.error("Perforce problem while committing transaction: " + e.getMessage());
 			throw (IOException) new IOException().initCause(e);
 		} finally {
-			publishTransaction = null;
+			if (!kept) {
+				// a client created for the transaction would be left behind if the JVM exits before the cleanup is
+				// done
+				if (asyncCleanup && publishTransaction.isPooled()) {
+					cleanupInBackground(publishTransaction, publishServer);
+					publishServer = null;
+				} else {
+					publishTransaction.cleanup(publishServer);
+					closePublishServer();
+				}
+				publishTransaction = null;
+				invalidatePublishedPaths();
+			}
+		}
+	}
+
+	/**
+	 * Cleans up a committed transaction in a thread of its own, which closes the transaction's connection afterwards.
+	 * The thread keeps the JVM alive until it is done, but not a call to System.exit. Only used for pooled clients,
+	 * whose pool cleans up what such an exit leaves behind at the next checkout.
+	 * 
+	 * @param transaction the committed transaction
+	 * @param server dedicated connection of the transaction
+	 */
+	private static void cleanupInBackground(final P4PublishTransaction transaction, final IOptionsServer server) {
+		new Thread("p4 publish cleanup") {
+			@Override
+			public void run() {
+				try {
+					transaction.cleanup(server);
+				} finally {
+					P4ConnectionPool.disconnect(server);
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Drops everything cached about the paths put by the last publish transaction.
+	 * 
+	 * @throws IOException If the server can't be determined
+	 */
+	private void invalidatePublishedPaths() throws IOException {
+		P4MetadataCache cache = getMetadataCache();
+		P4MetadataStore store = getMetadataStore();
+		P4BloomFilter filter = existingFiles;
+		for (String path : publishedPaths) {
+			if ((filter != null) && !filter.mightContain(path)) {
+				filter.add(path);
+			}
+			resourcesCache.remove(path);
+			if (cache != null) {
+				cache.invalidate(path);
+			}
+			if (store != null) {
+				store.remove(getServerUriString(), path);
+			}
+		}
+		publishedPaths.clear();
+		// pick up the new change on the next request
+		changesChecked = false;
+	}
+
+	/**
+	 * Closes the dedicated connection of a publish transaction.
+	 */
+	private void closePublishServer() {
+		if (publishServer != null) {
+			P4ConnectionPool.disconnect(publishServer);
+			publishServer = null;
 		}
 	}
 
@@ -521,4 +2658,43 @@ public class P4Repository extends AbstractRepository {
 		}
 	}
 
+	/**
+	 * Stream on file contents printed by the server. Reads through a buffer of fixed size and releases the
+	 * server-side stream and the connection once it is closed.
+	 */
+	private class P4ContentStream extends FilterInputStream {
+
+		/**
+		 * The connection the contents are printed over
+		 */
+		private IOptionsServer server;
+
+		/**
+		 * Whether the stream was closed already
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Wraps a stream returned by the server.
+		 * 
+		 * @param p4Content stream returned by the server
+		 * @param server the connection the contents are printed over
+		 */
+		P4ContentStream(InputStream p4Content, IOptionsServer server) {
+			super(new BufferedInputStream(p4Content, transferBuffer));
+			this.server = server;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					super.close();
+				} finally {
+					release(server);
+				}
+			}
+		}
+	}
 }
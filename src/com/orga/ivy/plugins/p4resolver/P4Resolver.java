@@ -15,16 +15,118 @@
  */
 package com.orga.ivy.plugins.p4resolver;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.ivy.core.IvyContext;
+import org.apache.ivy.core.IvyPatternHelper;
+import org.apache.ivy.core.cache.DefaultRepositoryCacheManager;
+import org.apache.ivy.core.cache.RepositoryCacheManager;
+import org.apache.ivy.core.event.EventManager;
+import org.apache.ivy.core.event.IvyEvent;
+import org.apache.ivy.core.event.IvyListener;
+import org.apache.ivy.core.event.resolve.EndResolveEvent;
+import org.apache.ivy.core.event.resolve.StartResolveEvent;
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
+import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
 import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.module.status.StatusManager;
+import org.apache.ivy.core.report.DownloadReport;
+import org.apache.ivy.core.resolve.DownloadOptions;
+import org.apache.ivy.core.resolve.ResolveData;
+import org.apache.ivy.core.resolve.ResolvedModuleRevision;
+import org.apache.ivy.plugins.parser.xml.XmlModuleDescriptorParser;
+import org.apache.ivy.plugins.repository.Repository;
+import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.plugins.resolver.RepositoryResolver;
+import org.apache.ivy.plugins.resolver.util.ResolvedResource;
+import org.apache.ivy.plugins.resolver.util.ResourceMDParser;
+import org.apache.ivy.util.Message;
 
 /**
  * An Ivy resolver for Perforce repositories.
  */
 public class P4Resolver extends RepositoryResolver {
 
+	/**
+	 * Upper bound of the content store in megabytes
+	 */
+	private long contentStoreMaxSize = P4ContentStore.DEFAULT_MAX_SIZE_MB;
+
+	/**
+	 * Whether token values are listed with a single recursive request per pattern instead of one listing per level
+	 */
+	private boolean recursiveListing = false;
+
+	/**
+	 * Pattern of the depot path of the module index, e.g. //depot/repository/[organisation]/[module]/revisions.idx
+	 * (null if no index is kept)
+	 */
+	private String moduleIndex;
+
+	/**
+	 * The revision published by the running publish transaction (null if there is none)
+	 */
+	private ModuleRevisionId publishedRevision;
+
+	/**
+	 * Status of the revision published by the running publish transaction (null until its descriptor is published)
+	 */
+	private String publishedStatus;
+
+	/**
+	 * Publication date of the revision published by the running publish transaction
+	 */
+	private Date publishedDate;
+
+	/**
+	 * Digests of the artifacts published by the running publish transaction, keyed by file name
+	 */
+	private Map<String, String> publishedDigests = new LinkedHashMap<String, String>();
+
+	/**
+	 * Pattern of the names artifacts are recorded under in the module index
+	 */
+	private static final String indexedArtifactName = "[artifact](-[classifier]).[ext]";
+
+	/**
+	 * Number of times a publication submits the module index before a concurrent change of the index fails it
+	 */
+	private static final int indexCommitAttempts = 5;
+
+	/**
+	 * Prefix of latest revisions of a status
+	 */
+	private static final String latestPrefix = "latest.";
+
+	/**
+	 * Order in which patterns are tried, learned per organisation (null if patterns are tried in declared order)
+	 */
+	private P4PatternOrder patternOrder;
+
+	/**
+	 * Whether the fixed parts of the patterns were handed to the repository
+	 */
+	private boolean prefetchRootsRegistered = false;
+
+	/**
+	 * Event manager whose resolve events are listened to (null until the first dependency is resolved)
+	 */
+	private EventManager resolveEvents;
+
 	/**
 	 * Registers a new resolver for p4 patterns.
 	 */
@@ -41,19 +143,489 @@ public class P4Resolver extends RepositoryResolver {
 		return (P4Repository) getRepository();
 	}
 
+	/**
+	 * Resolves a dependency. Registers for resolve events first, so the repository learns when a new resolve starts.
+	 * 
+	 * @param dd The dependency to resolve.
+	 * @param data Data of the running resolve.
+	 * @return The resolved module or null.
+	 * @throws ParseException If a module descriptor can't be parsed.
+	 */
+	@Override
+	public ResolvedModuleRevision getDependency(DependencyDescriptor dd, ResolveData data) throws ParseException {
+		listenForResolves();
+		registerPrefetchRoots();
+		return super.getDependency(dd, data);
+	}
+
+	/**
+	 * Tells the repository the fixed parts of the patterns, so prefetching metadata never climbs above them.
+	 */
+	private synchronized void registerPrefetchRoots() {
+		if (prefetchRootsRegistered) {
+			return;
+		}
+		registerPrefetchRoots(getIvyPatterns());
+		registerPrefetchRoots(getArtifactPatterns());
+		prefetchRootsRegistered = true;
+	}
+
+	/**
+	 * Tells the repository the fixed parts of some patterns.
+	 * 
+	 * @param patterns The patterns.
+	 */
+	private void registerPrefetchRoots(Collection<?> patterns) {
+		for (Object pattern : patterns) {
+			String root = getFixedRoot((String) pattern);
+			if (root != null) {
+				getP4Repository().addPrefetchRoot(root);
+			}
+		}
+	}
+
+	/**
+	 * Registers listeners for resolves of the current Ivy instance: the repository is told about each new resolve,
+	 * since it checks for changes once per resolve, and the learned pattern order is saved when a resolve ends.
+	 */
+	private synchronized void listenForResolves() {
+		if ((getP4Repository().getChangeRoot() == null) && (patternOrder == null)) {
+			return;
+		}
+		EventManager eventManager = IvyContext.getContext().getEventManager();
+		if ((eventManager == null) || (eventManager == resolveEvents)) {
+			return;
+		}
+		if (getP4Repository().getChangeRoot() != null) {
+			eventManager.addIvyListener(new IvyListener() {
+				public void progress(IvyEvent event) {
+					getP4Repository().markChangesUnchecked();
+				}
+			}, StartResolveEvent.NAME);
+		}
+		if (patternOrder != null) {
+			eventManager.addIvyListener(new IvyListener() {
+				public void progress(IvyEvent event) {
+					patternOrder.save();
+				}
+			}, EndResolveEvent.NAME);
+		}
+		resolveEvents = eventManager;
+	}
+
+	/**
+	 * Finds a resource of a static revision, trying the pattern that found the last resource of the organisation
+	 * first. Dynamic revisions have to be looked up with all patterns anyway and are left to Ivy.
+	 * 
+	 * @param mrid The revision to find.
+	 * @param patternList The patterns in declared order.
+	 * @param artifact The artifact to find.
+	 * @param rmdparser Parser of found resources.
+	 * @param date Only resources published before this date are found (null for all).
+	 * @return The found resource or null.
+	 */
+	@Override
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	protected ResolvedResource findResourceUsingPatterns(ModuleRevisionId mrid, List patternList, Artifact artifact,
+			ResourceMDParser rmdparser, Date date) {
+		if ((patternOrder == null) || (patternList.size() < 2) || getSettings().getVersionMatcher().isDynamic(mrid)) {
+			return super.findResourceUsingPatterns(mrid, patternList, artifact, rmdparser, date);
+		}
+		List<String> patterns = patternList;
+		for (String pattern : patternOrder.order(mrid.getOrganisation(), patterns)) {
+			ResolvedResource rres = findResourceUsingPattern(mrid, pattern, artifact, rmdparser, date);
+			if (rres != null) {
+				patternOrder.recordHit(mrid.getOrganisation(), patterns, pattern);
+				return rres;
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public void beginPublishTransaction(ModuleRevisionId mrid, boolean flag) throws IOException {
 		getP4Repository().beginPublishTransaction(mrid);
+		publishedRevision = mrid;
+		publishedStatus = null;
+		publishedDate = null;
+		publishedDigests.clear();
 	}
 
 	@Override
 	public void abortPublishTransaction() throws IOException {
+		publishedRevision = null;
 		getP4Repository().abortPublishTransaction();
 	}
 
+	/**
+	 * Commits the publish transaction. The module index is updated in the same changelist as the published files. If
+	 * another publication submits the index first, the index is read again at its new head revision, this module's
+	 * revision added again and the submit retried, a few times before the publication fails.
+	 * 
+	 * @throws IOException If the transaction can't be committed.
+	 */
 	@Override
 	public void commitPublishTransaction() throws IOException {
-		getP4Repository().commitPublishTransaction();
+		try {
+			if ((moduleIndex != null) && (publishedRevision != null) && (publishedStatus != null)) {
+				for (int attempt = 1; attempt < indexCommitAttempts; attempt++) {
+					putModuleIndex();
+					if (getP4Repository().tryCommitPublishTransaction()) {
+						return;
+					}
+					Message.info("Module index changed by another publication, adding " + publishedRevision
+							+ " again");
+				}
+				putModuleIndex();
+			}
+			getP4Repository().commitPublishTransaction();
+		} finally {
+			publishedRevision = null;
+		}
+	}
+
+	/**
+	 * Publishes an artifact. With a module index, the digest of the artifact is recorded for the index, as are status
+	 * and publication date found in the module descriptor.
+	 * 
+	 * @param artifact The artifact to publish.
+	 * @param src The file to publish.
+	 * @param overwrite Whether an existing file is overwritten.
+	 * @throws IOException If the artifact can't be published.
+	 */
+	@Override
+	public void publish(Artifact artifact, File src, boolean overwrite) throws IOException {
+		super.publish(artifact, src, overwrite);
+		if ((moduleIndex == null) || (publishedRevision == null)) {
+			return;
+		}
+		publishedDigests.put(IvyPatternHelper.substitute(indexedArtifactName, artifact), P4Utils.digest(src));
+		if (artifact.isMetadata()) {
+			try {
+				ModuleDescriptor md = XmlModuleDescriptorParser.getInstance().parseDescriptor(
+						IvyContext.getContext().getSettings(), src.toURI().toURL(), false);
+				publishedStatus = md.getStatus();
+				publishedDate = md.getPublicationDate();
+			} catch (ParseException e) {
+				Message.warn("Can't read status of " + publishedRevision + " for the module index: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Adds the published revision to the module index and puts the index into the running publish transaction. The
+	 * index is read at its head revision and updated based on that revision, so a concurrent publication that
+	 * submits the index first makes this submit fail instead of losing its revision, and the index is put again.
+	 * 
+	 * @throws IOException If the index can't be read or put.
+	 */
+	private void putModuleIndex() throws IOException {
+		String indexPath = IvyPatternHelper.substitute(moduleIndex, publishedRevision);
+		P4ModuleIndex index = new P4ModuleIndex();
+		int revision = getP4Repository().getHeadRevision(indexPath);
+		InputStream in = (revision > 0) ? getP4Repository().openHeadStream(indexPath + "#" + revision) : null;
+		if (in != null) {
+			try {
+				index = P4ModuleIndex.read(in);
+			} finally {
+				in.close();
+			}
+		}
+		index.put(publishedRevision.getName(), publishedRevision.getRevision(), publishedStatus,
+				(publishedDate != null) ? publishedDate : new Date(), publishedDigests);
+
+		File tmp = File.createTempFile("ivyp4index", ".txt");
+		try {
+			index.write(tmp);
+			Message.debug("Adding " + publishedRevision + " to module index " + indexPath);
+			getP4Repository().put(tmp, indexPath, true, revision);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Reads the module index of a module.
+	 * 
+	 * @param mrid The module.
+	 * @return The index or null if the module has no index.
+	 */
+	private P4ModuleIndex readModuleIndex(ModuleRevisionId mrid) {
+		String indexPath = IvyPatternHelper.substitute(moduleIndex, mrid);
+		try {
+			Resource resource = getP4Repository().getResource(indexPath);
+			if (!resource.exists()) {
+				return null;
+			}
+			InputStream in = resource.openStream();
+			try {
+				return P4ModuleIndex.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Message.warn("Can't read module index " + indexPath + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Downloads the given artifacts. The locations of all artifacts that aren't in the cache yet are resolved in one
+	 * batch, then the artifacts are fetched from Perforce in one batch before Ivy requests them one by one.
+	 * 
+	 * @param artifacts The artifacts to download.
+	 * @param options Download options.
+	 * @return Report of the download.
+	 */
+	@Override
+	public DownloadReport download(Artifact[] artifacts, DownloadOptions options) {
+		List<Artifact> missing = new ArrayList<Artifact>();
+		List<String> candidates = new ArrayList<String>();
+		for (Artifact artifact : artifacts) {
+			if (!isInCache(artifact)) {
+				missing.add(artifact);
+				candidates.addAll(getArtifactCandidates(artifact));
+			}
+		}
+		if (candidates.size() > 1) {
+			try {
+				getP4Repository().resolveResources(candidates);
+			} catch (IOException e) {
+				// not fatal - the artifacts are resolved one by one
+				Message.warn("Batched lookup of " + missing.size() + " artifacts failed: " + e.getMessage());
+			}
+		}
+		List<String> sources = new ArrayList<String>();
+		for (Artifact artifact : missing) {
+			ResolvedResource rres = getArtifactRef(artifact, null);
+			if ((rres != null) && (rres.getResource() instanceof P4Resource)) {
+				sources.add(rres.getResource().getName());
+			}
+		}
+		if (sources.size() > 1) {
+			try {
+				getP4Repository().prefetch(sources);
+			} catch (IOException e) {
+				// not fatal - Ivy will fetch the artifacts one by one
+				Message.warn("Batched download of " + sources.size() + " artifacts failed: " + e.getMessage());
+			}
+		}
+		try {
+			return super.download(artifacts, options);
+		} finally {
+			getP4Repository().clearPrefetched();
+			Message.debug("Resource cache of " + getName() + ": " + getP4Repository().getResourceCache());
+		}
+	}
+
+	/**
+	 * Lists the depot paths an artifact may be found at, one per artifact pattern.
+	 * 
+	 * @param artifact The artifact.
+	 * @return The depot paths, empty if the revision of the artifact is dynamic.
+	 */
+	private List<String> getArtifactCandidates(Artifact artifact) {
+		List<String> candidates = new ArrayList<String>();
+		ModuleRevisionId mrid = artifact.getModuleRevisionId();
+		if (getSettings().getVersionMatcher().isDynamic(mrid)) {
+			return candidates;
+		}
+		if (isM2compatible()) {
+			mrid = convertM2IdForResourceSearch(mrid);
+		}
+		for (Object pattern : getArtifactPatterns()) {
+			candidates.add(IvyPatternHelper.substitute((String) pattern, mrid, artifact));
+		}
+		return candidates;
+	}
+
+	/**
+	 * Lists the values of a token in a pattern. With recursive listing, all files below the fixed part of the pattern
+	 * are listed with a single request (answered from the listing cache for patterns that share the fixed part) and
+	 * matched against the whole pattern, instead of listing directory after directory. That only pays off if the
+	 * listing is cached, otherwise directories are listed level by level.
+	 * 
+	 * @param pattern The pattern, possibly partially resolved.
+	 * @param token The token to list the values of.
+	 * @return The values of the token or null if the token isn't part of the pattern.
+	 */
+	@Override
+	protected String[] listTokenValues(String pattern, String token) {
+		String root = getFixedRoot(pattern);
+		if (!recursiveListing || isM2compatible() || (root == null)
+				|| (pattern.indexOf(IvyPatternHelper.getTokenString(token)) < 0)) {
+			return super.listTokenValues(pattern, token);
+		}
+		List<String> paths;
+		try {
+			if (!getP4Repository().keepsTree(root)) {
+				// without a cache, each token would list the whole tree again
+				return super.listTokenValues(pattern, token);
+			}
+			paths = getP4Repository().listTree(root);
+		} catch (IOException e) {
+			Message.warn("Recursive listing of " + root + " failed, listing level by level: " + e.getMessage());
+			return super.listTokenValues(pattern, token);
+		}
+		Set<String> values = new TreeSet<String>();
+		Pattern regex = toRegex(pattern, token);
+		for (String path : paths) {
+			Matcher matcher = regex.matcher(path);
+			// the token may sit in an optional part that didn't match
+			if (matcher.matches() && (matcher.group(1) != null)) {
+				values.add(matcher.group(1));
+			}
+		}
+		Message.debug("Found " + values.size() + " values of " + token + " in " + pattern);
+		return values.toArray(new String[values.size()]);
+	}
+
+	/**
+	 * Lists the resources matching a pattern for all revisions of a module. The revisions are taken from the module
+	 * index if it lists the module, so neither directories have to be listed nor descriptors of revisions with a
+	 * status that doesn't match to be downloaded. Otherwise the recursive token listing of
+	 * {@link #listTokenValues(String, String)} is used if enabled.
+	 * 
+	 * @param repository The repository to list.
+	 * @param mrid The module, its revision is the requested (dynamic) revision.
+	 * @param pattern The pattern of the resources.
+	 * @param artifact The artifact to list.
+	 * @return The resources found or null if revisions can't be listed.
+	 */
+	@Override
+	protected ResolvedResource[] listResources(Repository repository, ModuleRevisionId mrid, String pattern,
+			Artifact artifact) {
+		String[] revisions = null;
+		P4ModuleIndex index = (moduleIndex != null) ? readModuleIndex(mrid) : null;
+		if ((index != null) && index.getRevisions(mrid.getName()).isEmpty()) {
+			// an index shared by an organisation doesn't know modules that were never published with it
+			index = null;
+		}
+		if (index != null) {
+			revisions = getIndexedRevisions(index, mrid);
+		} else if (!recursiveListing) {
+			return super.listResources(repository, mrid, pattern, artifact);
+		}
+		String revisionToken = IvyPatternHelper.getTokenString(IvyPatternHelper.REVISION_KEY);
+		String partiallyResolvedPattern = IvyPatternHelper.substitute(pattern,
+				ModuleRevisionId.newInstance(mrid, revisionToken), artifact);
+		if (revisions == null) {
+			revisions = listTokenValues(partiallyResolvedPattern, IvyPatternHelper.REVISION_KEY);
+		}
+		if (revisions == null) {
+			return null;
+		}
+		List<ResolvedResource> resources = new ArrayList<ResolvedResource>();
+		for (String revision : revisions) {
+			String source = IvyPatternHelper.substituteToken(partiallyResolvedPattern, IvyPatternHelper.REVISION_KEY,
+					revision);
+			try {
+				resources.add(new ResolvedResource(repository.getResource(source), revision));
+			} catch (IOException e) {
+				Message.warn("Can't get resource " + source + ": " + e.getMessage());
+			}
+		}
+		return resources.toArray(new ResolvedResource[resources.size()]);
+	}
+
+	/**
+	 * Gets the revisions of a module listed in its module index. For latest.[status] requests, revisions with a less
+	 * mature status are left out.
+	 * 
+	 * @param index The module index.
+	 * @param mrid The module, its revision is the requested revision.
+	 * @return The revisions.
+	 */
+	private String[] getIndexedRevisions(P4ModuleIndex index, ModuleRevisionId mrid) {
+		StatusManager statusManager = StatusManager.getCurrent();
+		String askedStatus = mrid.getRevision().startsWith(latestPrefix)
+				? mrid.getRevision().substring(latestPrefix.length()) : null;
+		if ((askedStatus != null) && !statusManager.isStatus(askedStatus)) {
+			askedStatus = null;
+		}
+		List<String> revisions = new ArrayList<String>();
+		for (P4ModuleIndex.Revision revision : index.getRevisions(mrid.getName())) {
+			if ((askedStatus == null)
+					|| (statusManager.getPriority(revision.getStatus()) <= statusManager.getPriority(askedStatus))) {
+				revisions.add(revision.getRevision());
+			}
+		}
+		Message.debug("Found " + revisions.size() + " revisions of " + mrid.getModuleId() + " in its module index");
+		return revisions.toArray(new String[revisions.size()]);
+	}
+
+	/**
+	 * Gets the directory up to which a pattern is fixed, i.e. doesn't contain tokens or optional parts.
+	 * 
+	 * @param pattern The pattern.
+	 * @return The depot path of the directory or null if the pattern isn't below a depot.
+	 */
+	static String getFixedRoot(String pattern) {
+		int end = pattern.length();
+		int token = pattern.indexOf('[');
+		int optional = pattern.indexOf('(');
+		if (token >= 0) {
+			end = token;
+		}
+		if ((optional >= 0) && (optional < end)) {
+			end = optional;
+		}
+		int slash = pattern.lastIndexOf('/', end - 1);
+		return (slash > 2) ? pattern.substring(0, slash) : null;
+	}
+
+	/**
+	 * Converts a pattern into a regular expression matching depot paths. The first occurrence of the given token is
+	 * captured as group 1, further occurrences have to have the same value. Other tokens match any name, optional
+	 * parts may be missing.
+	 * 
+	 * @param pattern The pattern.
+	 * @param token The token to capture.
+	 * @return The regular expression.
+	 */
+	static Pattern toRegex(String pattern, String token) {
+		StringBuilder regex = new StringBuilder();
+		boolean captured = false;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			int end = (c == '[') ? pattern.indexOf(']', i) : -1;
+			if (end > i) {
+				if (!pattern.substring(i + 1, end).equals(token)) {
+					regex.append("[^/]+");
+				} else if (!captured) {
+					regex.append("([^/]+)");
+					captured = true;
+				} else {
+					regex.append("\\1");
+				}
+				i = end;
+			} else if (c == '(') {
+				regex.append("(?:");
+			} else if (c == ')') {
+				regex.append(")?");
+			} else {
+				if ("\\.[]{}*+?^$|".indexOf(c) >= 0) {
+					regex.append('\\');
+				}
+				regex.append(c);
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Checks whether an artifact is present in the repository cache already.
+	 * 
+	 * @param artifact The artifact to check.
+	 * @return true if the artifact is known to be in the cache.
+	 */
+	private boolean isInCache(Artifact artifact) {
+		RepositoryCacheManager cacheManager = getRepositoryCacheManager();
+		if (cacheManager instanceof DefaultRepositoryCacheManager) {
+			File archive = ((DefaultRepositoryCacheManager) cacheManager).getArchiveFileInCache(artifact);
+			return (archive != null) && archive.exists();
+		}
+		return false;
 	}
 
 	/**
@@ -127,4 +699,315 @@ public class P4Resolver extends RepositoryResolver {
 			getP4Repository().setP4Passwd(null);
 		}
 	}
+
+	/**
+	 * Set the directory of the local content store. Retrieved files are kept there keyed by their digest, so files
+	 * with identical contents are only transferred once.
+	 * 
+	 * @param contentStore Directory of the content store.
+	 */
+	public void setContentStore(String contentStore) {
+		if (validParameter(contentStore) && (contentStore.trim().length() > 0)) {
+			getP4Repository().setContentStore(
+					new P4ContentStore(new File(contentStore.trim()), contentStoreMaxSize * 1024 * 1024));
+		} else {
+			// optional parameter - in case it's set to an unresolved property we simply don't use a content store
+			getP4Repository().setContentStore(null);
+		}
+	}
+
+	/**
+	 * Set the upper bound of the local content store.
+	 * 
+	 * @param maxSize Size in megabytes.
+	 */
+	public void setContentStoreMaxSize(String maxSize) {
+		if (validParameter(maxSize)) {
+			contentStoreMaxSize = Long.parseLong(maxSize.trim());
+			if (getP4Repository().getContentStore() != null) {
+				getP4Repository().getContentStore().setMaxSize(contentStoreMaxSize * 1024 * 1024);
+			}
+		}
+	}
+
+	/**
+	 * Set the number of artifacts that are downloaded in parallel, each over its own connection.
+	 * 
+	 * @param downloadThreads Number of parallel downloads.
+	 */
+	public void setDownloadThreads(String downloadThreads) {
+		if (validParameter(downloadThreads)) {
+			getP4Repository().setDownloadThreads(Integer.parseInt(downloadThreads.trim()));
+		}
+	}
+
+	/**
+	 * Set the maximum number of connections to the p4 server that are kept open.
+	 * 
+	 * @param maxConnections Maximum number of connections.
+	 */
+	public void setMaxConnections(String maxConnections) {
+		if (validParameter(maxConnections)) {
+			getP4Repository().setMaxConnections(Integer.parseInt(maxConnections.trim()));
+		}
+	}
+
+	/**
+	 * Set the number of long-lived clients per depot that are kept for publishing. Publish transactions then reuse a
+	 * free client of the pool instead of creating and deleting a client each, and create one only if all are in use.
+	 * The clients belong to the p4 user on this host and are shared by all builds on the host.
+	 * 
+	 * @param publishClients Number of clients (0 creates a client per publish transaction).
+	 */
+	public void setPublishClients(String publishClients) {
+		if (validParameter(publishClients)) {
+			getP4Repository().setPublishClients(Integer.parseInt(publishClients.trim()));
+		}
+	}
+
+	/**
+	 * Set whether the client of a publish transaction is cleaned up in the background once the changelist is
+	 * submitted, so the commit returns right after the submit. Only pooled clients (see publishClients) are cleaned
+	 * up in the background.
+	 * 
+	 * @param asyncCleanup "true" to clean up in the background.
+	 */
+	public void setAsyncCleanup(String asyncCleanup) {
+		if (validParameter(asyncCleanup)) {
+			getP4Repository().setAsyncCleanup(Boolean.valueOf(asyncCleanup.trim()).booleanValue());
+		}
+	}
+
+	/**
+	 * Set how long concurrent lookups of files wait to be merged into a single request. Trades a few milliseconds of
+	 * latency for fewer server round trips when resolving in parallel.
+	 * 
+	 * @param batchWindow Time in milliseconds (0 disables batching).
+	 */
+	public void setBatchWindow(String batchWindow) {
+		if (validParameter(batchWindow)) {
+			getP4Repository().setBatchWindow(Long.parseLong(batchWindow.trim()));
+		}
+	}
+
+	/**
+	 * Set the maximum number of lookups merged into a single request. A full batch is sent without waiting for the
+	 * rest of the batch window.
+	 * 
+	 * @param maxBatchSize Maximum number of lookups.
+	 */
+	public void setMaxBatchSize(String maxBatchSize) {
+		if (validParameter(maxBatchSize)) {
+			getP4Repository().setMaxBatchSize(Integer.parseInt(maxBatchSize.trim()));
+		}
+	}
+
+	/**
+	 * Set how long metadata (existence, modification time, size) of existing files is cached. The cache is shared by
+	 * all resolvers using the same p4 server.
+	 * 
+	 * @param metadataTtl Time to live in seconds (0 disables caching).
+	 */
+	public void setMetadataTtl(String metadataTtl) {
+		if (validParameter(metadataTtl)) {
+			getP4Repository().setMetadataTtl(Long.parseLong(metadataTtl.trim()) * 1000);
+		}
+	}
+
+	/**
+	 * Set how long the result of looking up a file that doesn't exist is cached.
+	 * 
+	 * @param missingTtl Time to live in seconds (0 disables caching).
+	 */
+	public void setMissingTtl(String missingTtl) {
+		if (validParameter(missingTtl)) {
+			getP4Repository().setMissingTtl(Long.parseLong(missingTtl.trim()) * 1000);
+		}
+	}
+
+	/**
+	 * Set the depot path of the repository root whose submitted changes are tracked. At the start of each resolve the
+	 * server is asked for changes newer than the last one seen, and exactly the changed files are evicted from the
+	 * caches. Cached data below the root then never expires by time.
+	 * 
+	 * @param changeRoot Depot path of the repository root, e.g. //depot/repository
+	 */
+	public void setChangeRoot(String changeRoot) {
+		if (validParameter(changeRoot)) {
+			getP4Repository().setChangeRoot(changeRoot.trim());
+		}
+	}
+
+	/**
+	 * Set whether lookups of files below the change root that don't exist are answered locally. All files below the
+	 * change root are listed once into a Bloom filter, which is kept current from newer changelists. Requires
+	 * changeRoot to be set.
+	 *
+	 * @param existenceFilter "true" to keep the filter.
+	 */
+	public void setExistenceFilter(String existenceFilter) {
+		if (validParameter(existenceFilter)) {
+			getP4Repository().setExistenceFilter(Boolean.valueOf(existenceFilter.trim()).booleanValue());
+		}
+	}
+
+	/**
+	 * Set the file that keeps, per organisation, which pattern found the last file of a static revision. That pattern
+	 * is tried first next time, so lookups don't pay for misses on patterns of other layouts. The file is written at
+	 * the end of each resolve.
+	 *
+	 * @param patternOrder Path of the file.
+	 */
+	public void setPatternOrder(String patternOrder) {
+		if (validParameter(patternOrder)) {
+			this.patternOrder = new P4PatternOrder(new File(patternOrder.trim()));
+		}
+	}
+
+	/**
+	 * Set the file of a metadata store shared by all builds on the host. File metadata and listings fetched by one
+	 * build are then used by the others for as long as metadataTtl, missingTtl and listingTtl allow. Builds talking
+	 * to different p4 servers need different files.
+	 *
+	 * @param metadataStore Path of the store file.
+	 */
+	public void setMetadataStore(String metadataStore) {
+		if (validParameter(metadataStore)) {
+			getP4Repository().setMetadataStoreFile(new File(metadataStore.trim()));
+		}
+	}
+
+	/**
+	 * Set the file that keeps a memory-mapped snapshot of the metadata of all files below the change root. The
+	 * snapshot is built with a single request, refreshed from newer changelists at the start of each resolve and
+	 * answers all metadata lookups and listings below the change root. It survives JVM restarts. Requires changeRoot.
+	 * 
+	 * @param snapshotFile Path of the snapshot file.
+	 */
+	public void setSnapshotFile(String snapshotFile) {
+		if (validParameter(snapshotFile)) {
+			getP4Repository().setSnapshotFile(new File(snapshotFile.trim()));
+		}
+	}
+
+	/**
+	 * Set the pattern of the depot path of the module index. The index lists the published revisions with status,
+	 * publication date and artifact digests and is updated in the same changelist as each publication. Dynamic
+	 * revisions are then resolved from the index instead of directory listings and descriptors. The pattern may
+	 * contain [organisation] and [module], a per-organisation index lists the revisions of all its modules.
+	 * 
+	 * @param moduleIndex Pattern of the depot path of the index file.
+	 */
+	public void setModuleIndex(String moduleIndex) {
+		if (validParameter(moduleIndex)) {
+			this.moduleIndex = moduleIndex.trim();
+		}
+	}
+
+	/**
+	 * Set the changelist every depot path is resolved at. Nothing seen at a fixed changelist can change, so metadata
+	 * and listings are cached without expiry and resolves are reproducible. Usually set via a property, e.g.
+	 * changelist="${p4.changelist}", so resolves at head remain possible.
+	 * 
+	 * @param changelist Number of a submitted changelist.
+	 */
+	public void setChangelist(String changelist) {
+		if (validParameter(changelist) && (changelist.trim().length() > 0)) {
+			getP4Repository().setPinnedChangelist(Integer.parseInt(changelist.trim()));
+		}
+	}
+
+	/**
+	 * Set whether token values (e.g. the revisions of a module) are listed with a single recursive request per
+	 * pattern instead of one request per directory level. Only used where listings are cached, i.e. with listingTtl,
+	 * below the changeRoot or at a fixed changelist.
+	 * 
+	 * @param recursiveListing "true" to list recursively.
+	 */
+	public void setRecursiveListing(String recursiveListing) {
+		if (validParameter(recursiveListing)) {
+			this.recursiveListing = Boolean.valueOf(recursiveListing.trim()).booleanValue();
+		}
+	}
+
+	/**
+	 * Set the maximum number of resources kept in memory. The least recently used resources are dropped first.
+	 * 
+	 * @param resourceCacheSize Maximum number of resources.
+	 */
+	public void setResourceCacheSize(String resourceCacheSize) {
+		if (validParameter(resourceCacheSize)) {
+			getP4Repository().setResourceCacheSize(Integer.parseInt(resourceCacheSize.trim()));
+		}
+	}
+
+	/**
+	 * Set whether resources kept in memory may be dropped by the garbage collector when memory gets tight.
+	 * 
+	 * @param softResourceCache "true" to hold resources softly.
+	 */
+	public void setSoftResourceCache(String softResourceCache) {
+		if (validParameter(softResourceCache)) {
+			getP4Repository().setSoftResourceCache(Boolean.valueOf(softResourceCache.trim()).booleanValue());
+		}
+	}
+
+	/**
+	 * Set how many missing files are remembered at most. The least recently probed ones are forgotten first.
+	 * 
+	 * @param missingCacheSize Maximum number of missing files.
+	 */
+	public void setMissingCacheSize(String missingCacheSize) {
+		if (validParameter(missingCacheSize)) {
+			getP4Repository().setMissingCacheSize(Integer.parseInt(missingCacheSize.trim()));
+		}
+	}
+
+	/**
+	 * Set how long directory listings (used to expand tokens of dynamic revisions) are cached.
+	 *
+	 * @param listingTtl Time to live in seconds (0 disables caching).
+	 */
+	public void setListingTtl(String listingTtl) {
+		if (validParameter(listingTtl)) {
+			getP4Repository().setListingTtl(Long.parseLong(listingTtl.trim()) * 1000);
+		}
+	}
+
+	/**
+	 * Set the number of files a single listing request may return. Recursive listings of trees holding more files
+	 * are split into listings of their directories. A single directory holding more files is listed without the
+	 * limit, so listings are always complete. This keeps heap usage and server scans bounded on huge repositories.
+	 *
+	 * @param listingLimit Maximum number of files (0 disables the limit).
+	 */
+	public void setListingLimit(String listingLimit) {
+		if (validParameter(listingLimit)) {
+			getP4Repository().setListingLimit(Integer.parseInt(listingLimit.trim()));
+		}
+	}
+
+	/**
+	 * Set whether the metadata of a module's whole directory tree is fetched with a single request when the first
+	 * file in it is resolved. Requires metadataTtl to be set.
+	 * 
+	 * @param prefetch "true" to prefetch metadata.
+	 */
+	public void setPrefetch(String prefetch) {
+		if (validParameter(prefetch)) {
+			getP4Repository().setPrefetchMetadata(Boolean.valueOf(prefetch.trim()).booleanValue());
+		}
+	}
+
+	/**
+	 * Set the number of directory levels above a file's directory that are included when prefetching metadata.
+	 * Prefetching never climbs above the fixed part of the resolver's patterns or the change root.
+	 * 
+	 * @param prefetchLevels Number of directory levels.
+	 */
+	public void setPrefetchLevels(String prefetchLevels) {
+		if (validParameter(prefetchLevels)) {
+			getP4Repository().setPrefetchLevels(Integer.parseInt(prefetchLevels.trim()));
+		}
+	}
 }
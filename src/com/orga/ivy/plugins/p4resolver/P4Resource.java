@@ -51,7 +51,11 @@ public class P4Resource implements Resource {
 	 * p4repository object for this resource
 	 */
 	private P4Repository repository = null;
-	private boolean resolved = false;
+
+	/**
+	 * true once exists, lastModified and contentLength are known (volatile since resources are shared between threads)
+	 */
+	private volatile boolean resolved = false;
 
 	/**
 	 * Constructs a new Perforce resource.
@@ -63,6 +67,7 @@ public class P4Resource implements Resource {
 	 * @param contentLength The size of the resource in bytes.
 	 */
 	public P4Resource(P4Repository repository, String source, boolean exists, long lastModified, long contentLength) {
+		this.repository = repository;
 		this.source = source;
 		this.exists = exists;
 		this.lastModified = lastModified;
@@ -93,7 +98,10 @@ public class P4Resource implements Resource {
 	 * Resolves this resource via its repository.
 	 * @throws IOException if resource can't be resolved 
 	 */
-	private void resolve() throws IOException   {
+	private synchronized void resolve() throws IOException   {
+		if (this.resolved) {
+			return;
+		}
 		P4Resource resolved = repository.resolveResource(source);
 		this.contentLength = resolved.getContentLength();
 		this.lastModified = resolved.getLastModified();
@@ -101,6 +109,13 @@ public class P4Resource implements Resource {
 		this.resolved = true;
 	}
 
+	/**
+	 * @return true if exists, lastModified and contentLength are known without asking the repository
+	 */
+	boolean isResolved() {
+		return resolved;
+	}
+
 	/**
 	 * Clones this resource.
 	 * 
@@ -181,14 +196,18 @@ public class P4Resource implements Resource {
 	}
 
 	/**
-	 * Gets an input stream for this resource.
+	 * Gets an input stream for this resource. The contents are streamed straight from the Perforce server, the stream
+	 * has to be closed by the caller.
 	 * 
-	 * @return nothing is ever returned
-	 * @throw UnsupportedOperationException This is currently always thrown.
+	 * @return stream of the resource's contents
+	 * @throws IOException If the resource doesn't exist or can't be read from Perforce.
 	 * @see org.apache.ivy.repository.Resource#openStream()
 	 */
 	public InputStream openStream() throws IOException {
-		throw new UnsupportedOperationException("Opening an input stream on a Perforce resource not currently supported");
+		if ((repository == null) || (source == null)) {
+			throw new IOException("Can't open a stream on a non-existing Perforce resource");
+		}
+		return repository.openStream(source);
 	}
 
 	/**
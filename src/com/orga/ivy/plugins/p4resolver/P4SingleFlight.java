@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Coalesces concurrent identical requests: while a request for a key is in flight, further requests for the same key
+ * wait for it and receive its result instead of issuing their own.
+ *
+ * The first caller of a key becomes the leader of the flight and runs the request, callers arriving before it
+ * completes join as followers. Once the flight completes it is forgotten, later callers start a new one. Failures are
+ * handed to all participants. The class is safe for use by several threads.
+ *
+ * @param <V> type of the results
+ * @author Felix Drueke
+ */
+public class P4SingleFlight<V> {
+
+	/**
+	 * Flights in progress keyed by request
+	 */
+	private final Map<String, Flight<V>> flights = new HashMap<String, Flight<V>>();
+
+	/**
+	 * Runs a request unless an identical one is already in flight, in which case its result is awaited.
+	 *
+	 * @param key identifies the request
+	 * @param request the request
+	 * @return the result of the request
+	 * @throws IOException If the request failed.
+	 */
+	public V execute(String key, Callable<V> request) throws IOException {
+		Flight<V> flight = join(key);
+		try {
+			return flight.isLeader() ? run(flight, request) : flight.await();
+		} finally {
+			leave(flight);
+		}
+	}
+
+	/**
+	 * Joins the flight of a key, starting a new one if none is in progress. Every participant has to call
+	 * {@link #leave(Flight)} when it is done with the result; the leader has to run the request via
+	 * {@link #run(Flight, Callable)}.
+	 *
+	 * @param key identifies the request
+	 * @return the flight
+	 */
+	public synchronized Flight<V> join(String key) {
+		Flight<V> flight = flights.get(key);
+		if (flight == null) {
+			flight = new Flight<V>(key, Thread.currentThread());
+			flights.put(key, flight);
+		}
+		flight.participants++;
+		return flight;
+	}
+
+	/**
+	 * Runs the request of a flight and hands the result to the followers. Must be called by the leader.
+	 *
+	 * @param flight a flight led by the current thread
+	 * @param request the request
+	 * @return the result of the request
+	 * @throws IOException If the request failed.
+	 */
+	public V run(Flight<V> flight, Callable<V> request) throws IOException {
+		V result = null;
+		Throwable failure = null;
+		try {
+			result = request.call();
+		} catch (Throwable e) {
+			failure = e;
+		}
+		synchronized (this) {
+			flights.remove(flight.key);
+		}
+		flight.complete(result, failure);
+		return flight.await();
+	}
+
+	/**
+	 * Leaves a flight.
+	 *
+	 * @param flight a flight joined by the current thread
+	 * @return true if the current thread was the last participant of the completed flight, it may then dispose of
+	 *         the result
+	 */
+	public synchronized boolean leave(Flight<V> flight) {
+		flight.participants--;
+		return (flight.participants == 0) && flight.completed;
+	}
+
+	/**
+	 * Checks whether other threads still use the result of a flight. Once a flight has completed nobody can join it
+	 * anymore, so a participant that finds itself alone stays alone.
+	 *
+	 * @param flight a flight joined by the current thread
+	 * @return true if the flight completed and the current thread is the only participant left
+	 */
+	public synchronized boolean isAlone(Flight<V> flight) {
+		return flight.completed && (flight.participants == 1);
+	}
+
+	/**
+	 * A request in flight and the participants waiting for it
+	 */
+	public static class Flight<V> {
+
+		/**
+		 * Identifies the request
+		 */
+		private final String key;
+
+		/**
+		 * The thread running the request
+		 */
+		private final Thread leader;
+
+		/**
+		 * Number of threads that joined the flight and didn't leave yet, guarded by the lock of the single flight
+		 */
+		private int participants = 0;
+
+		/**
+		 * Whether the request completed
+		 */
+		private volatile boolean completed = false;
+
+		/**
+		 * Result of the request
+		 */
+		private V result;
+
+		/**
+		 * Failure of the request (null if it succeeded)
+		 */
+		private Throwable failure;
+
+		/**
+		 * @param key identifies the request
+		 * @param leader the thread running the request
+		 */
+		Flight(String key, Thread leader) {
+			this.key = key;
+			this.leader = leader;
+		}
+
+		/**
+		 * @return true if the current thread runs the request
+		 */
+		public boolean isLeader() {
+			return leader == Thread.currentThread();
+		}
+
+		/**
+		 * Records the outcome of the request and wakes up the followers.
+		 *
+		 * @param result result of the request
+		 * @param failure failure of the request (null if it succeeded)
+		 */
+		synchronized void complete(V result, Throwable failure) {
+			this.result = result;
+			this.failure = failure;
+			this.completed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits for the request to complete.
+		 *
+		 * @return the result of the request
+		 * @throws IOException If the request failed or the wait was interrupted.
+		 */
+		public synchronized V await() throws IOException {
+			while (!completed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a perforce request on " + key);
+				}
+			}
+			if (failure == null) {
+				return result;
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw (IOException) new IOException("Perforce request on " + key + " failed").initCause(failure);
+		}
+	}
+}
@@ -0,0 +1,1024 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.ivy.util.Message;
+
+import com.perforce.p4java.core.IChangelistSummary;
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.option.server.GetExtendedFilesOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Snapshot of the metadata of all files below a depot directory, kept in a memory-mapped file.
+ *
+ * The snapshot is built with a single fstat over the whole tree and brought up to date with an fstat over the files
+ * changed by newer changelists. It survives restarts of the JVM, so a new JVM starts with warm metadata, and it is
+ * read straight from the mapped file without copying it to the heap. The records of changed files are appended to the
+ * file as a delta; only once the delta has grown large compared to the snapshot are both merged into a new file,
+ * streamed from the mapped file to disk. Several JVMs may share a snapshot file: they append and merge under a lock on
+ * a file next to it, and read the header and the delta under a shared lock on it.
+ *
+ * File layout: a header (magic number, format version, changelist, number of records, offset and number of delta
+ * records, root), fixed-size records sorted by the UTF-8 bytes of their depot path, followed by the depot paths, then
+ * the delta: records in the order they were appended, each followed by its depot path. A delta record replaces a
+ * record with the same path.
+ *
+ * @author Felix Drueke
+ */
+public class P4SnapshotIndex {
+
+	/**
+	 * Identifies snapshot files
+	 */
+	private static final int magicNumber = 0x50345349;
+
+	/**
+	 * Version of the file layout
+	 */
+	private static final int formatVersion = 2;
+
+	/**
+	 * Size of the header without the root
+	 */
+	private static final int headerSize = 7 * 4;
+
+	/**
+	 * Size of a record: path offset and length, head revision, flags, head time, size and digest
+	 */
+	private static final int recordSize = 4 + 4 + 4 + 4 + 8 + 8 + 16;
+
+	/**
+	 * Record flag: the digest is known
+	 */
+	private static final int flagDigest = 1;
+
+	/**
+	 * Record flag: the head revision is a delete
+	 */
+	private static final int flagDeleted = 2;
+
+	/**
+	 * Number of delta records up to which the delta is never merged into the snapshot
+	 */
+	private static final int minDelta = 1024;
+
+	/**
+	 * The delta is merged into the snapshot once it has more than this fraction of the snapshot's records
+	 */
+	private static final int deltaRatio = 8;
+
+	/**
+	 * fstat option that makes the server report file size and digest
+	 */
+	private static final String fstatSizeAndDigest = "-Ol";
+
+	/**
+	 * Serializes the file locks of this JVM, which can't lock one file twice
+	 */
+	private static final Object localLock = new Object();
+
+	/**
+	 * Orders depot paths by their UTF-8 bytes, the order of the records in the file
+	 */
+	private static final Comparator<byte[]> pathOrder = new Comparator<byte[]>() {
+		public int compare(byte[] p1, byte[] p2) {
+			int length = Math.min(p1.length, p2.length);
+			for (int i = 0; i < length; i++) {
+				int diff = (p1[i] & 0xFF) - (p2[i] & 0xFF);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return p1.length - p2.length;
+		}
+	};
+
+	/**
+	 * The snapshot file
+	 */
+	private final File file;
+
+	/**
+	 * The file locked while the snapshot file is read or written; never replaced, unlike the snapshot file
+	 */
+	private final File lockFile;
+
+	/**
+	 * Depot path of the directory the snapshot covers
+	 */
+	private final String root;
+
+	/**
+	 * The current contents of the snapshot file (null until loaded or built)
+	 */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Creates an index that is kept in the given file.
+	 *
+	 * @param file the snapshot file (created if it doesn't exist)
+	 * @param root depot path of the directory the snapshot covers
+	 */
+	public P4SnapshotIndex(File file, String root) {
+		this.file = file;
+		this.lockFile = new File(file.getPath() + ".lock");
+		this.root = root;
+	}
+
+	/**
+	 * Brings the snapshot up to date. Picks up what other JVMs wrote to the snapshot file, builds a new snapshot if
+	 * there is none for the root, otherwise applies the files changed by changelists newer than the snapshot this
+	 * index saw last.
+	 *
+	 * @param server authenticated connection to use
+	 * @return depot paths of the files that changed since the last refresh (empty after a new snapshot was built)
+	 * @throws P4JavaException If the server can't be queried.
+	 * @throws IOException If the snapshot file can't be written.
+	 */
+	public synchronized List<String> refresh(IOptionsServer server) throws P4JavaException, IOException {
+		// changes since the snapshot this JVM knows, also those another JVM already applied to the file
+		int changelist = (snapshot != null) ? snapshot.changelist : -1;
+		reload();
+		if (snapshot == null) {
+			build(server);
+			return Collections.emptyList();
+		}
+		if (changelist < 0) {
+			changelist = snapshot.changelist;
+		}
+		List<IExtendedFileSpec> specs = server.getExtendedFiles(
+				FileSpecBuilder.makeFileSpecList(root + "/...@" + (changelist + 1) + ",@now"),
+				new GetExtendedFilesOptions(fstatSizeAndDigest));
+		return update(specs);
+	}
+
+	/**
+	 * Checks whether a depot path lies within the snapshot. Only paths within a loaded snapshot may be looked up.
+	 *
+	 * @param path depot path of a file or directory
+	 * @return true if the snapshot is loaded and covers the path
+	 */
+	public boolean covers(String path) {
+		return (snapshot != null) && (path.equals(root) || path.startsWith(root + "/"));
+	}
+
+	/**
+	 * Looks up the metadata of a depot file.
+	 *
+	 * @param path depot path of the file
+	 * @return metadata of the file ({@link P4FileMetadata#MISSING} if it isn't in the snapshot)
+	 */
+	public P4FileMetadata lookup(String path) {
+		Snapshot current = snapshot;
+		byte[] key = encode(path);
+		Record changed = current.delta.get(key);
+		if (changed != null) {
+			return changed.toMetadata();
+		}
+		int index = current.find(key);
+		if ((index >= current.count) || (current.compare(index, key) != 0)) {
+			return P4FileMetadata.MISSING;
+		}
+		return current.getRecord(index).toMetadata();
+	}
+
+	/**
+	 * Lists the files and subdirectories of a directory like a files and dirs request would: files are listed even
+	 * if deleted, subdirectories only if they contain files that aren't.
+	 *
+	 * @param dir depot path of the directory
+	 * @return names of the files and subdirectories
+	 */
+	public List<String> list(String dir) {
+		List<String> names = new ArrayList<String>();
+		String lastDir = null;
+		for (Iterator<Record> records = new Merge(snapshot, encode(dir + "/")); records.hasNext();) {
+			Record record = records.next();
+			String rest = decode(record.path).substring(dir.length() + 1);
+			int slash = rest.indexOf('/');
+			if (slash < 0) {
+				names.add(rest);
+			} else if (!rest.substring(0, slash).equals(lastDir) && !record.isDeleted()) {
+				lastDir = rest.substring(0, slash);
+				names.add(lastDir);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Lists the depot paths of all files below a directory that aren't deleted.
+	 *
+	 * @param dir depot path of the directory
+	 * @return depot paths of the files
+	 */
+	public List<String> listTree(String dir) {
+		List<String> paths = new ArrayList<String>();
+		for (Iterator<Record> records = new Merge(snapshot, encode(dir + "/")); records.hasNext();) {
+			Record record = records.next();
+			if (!record.isDeleted()) {
+				paths.add(decode(record.path));
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Loads the snapshot file, if it exists and is of the root, to pick up what other JVMs wrote to it.
+	 *
+	 * @return true if a snapshot is loaded
+	 */
+	synchronized boolean reload() {
+		Snapshot loaded = load();
+		if (loaded != null) {
+			if ((snapshot == null) || (snapshot.changelist != loaded.changelist)) {
+				Message.debug("Loaded snapshot of " + root + " at change " + loaded.changelist);
+			}
+			snapshot = loaded;
+		}
+		return snapshot != null;
+	}
+
+	/**
+	 * Writes a new snapshot of the given files, replacing the snapshot file.
+	 *
+	 * @param changelist the changelist the files were fstat'ed at
+	 * @param specs fstat results of all files below the root
+	 * @throws IOException If the snapshot file can't be written.
+	 */
+	synchronized void create(int changelist, List<IExtendedFileSpec> specs) throws IOException {
+		SortedMap<byte[], Record> records = new TreeMap<byte[], Record>(pathOrder);
+		if (specs != null) {
+			for (IExtendedFileSpec spec : specs) {
+				if (isValid(spec)) {
+					Record record = new Record(spec);
+					records.put(record.path, record);
+				}
+			}
+		}
+		synchronized (localLock) {
+			RandomAccessFile lock = lock(false);
+			try {
+				snapshot = merge(null, records, changelist);
+			} finally {
+				unlock(lock);
+			}
+		}
+	}
+
+	/**
+	 * Applies changed files to the snapshot by appending them to the delta, or by merging snapshot and delta into a
+	 * new snapshot file once the delta has grown large. Files another JVM already applied with a newer changelist
+	 * are skipped.
+	 *
+	 * @param specs fstat results of the files changed since the snapshot
+	 * @return depot paths of the changed files
+	 * @throws IOException If the snapshot file can't be written.
+	 */
+	synchronized List<String> update(List<IExtendedFileSpec> specs) throws IOException {
+		int changelist = snapshot.changelist;
+		SortedMap<byte[], Record> changed = new TreeMap<byte[], Record>(pathOrder);
+		List<String> paths = new ArrayList<String>();
+		if (specs != null) {
+			for (IExtendedFileSpec spec : specs) {
+				if (isValid(spec)) {
+					Record record = new Record(spec);
+					changed.put(record.path, record);
+					paths.add(spec.getDepotPathString());
+					changelist = Math.max(changelist, spec.getHeadChange());
+				}
+			}
+		}
+		if (changed.isEmpty()) {
+			return paths;
+		}
+
+		synchronized (localLock) {
+			RandomAccessFile lock = lock(false);
+			try {
+				Snapshot current = read();
+				if ((current != null) && (current.changelist >= changelist)) {
+					// another JVM applied the same or newer changes meanwhile
+					snapshot = current;
+				} else if ((current == null)
+						|| (current.deltaCount + changed.size() > Math.max(minDelta, current.count / deltaRatio))) {
+					Snapshot base = (current != null) ? current : snapshot;
+					SortedMap<byte[], Record> delta = new TreeMap<byte[], Record>(base.delta);
+					delta.putAll(changed);
+					snapshot = merge(base, delta, changelist);
+					Message.debug("Merged the delta into the snapshot of " + root);
+				} else {
+					snapshot = append(current, changed.values(), changelist);
+				}
+			} finally {
+				unlock(lock);
+			}
+		}
+		Message.debug("Updated snapshot of " + root + " to change " + changelist + " (" + changed.size()
+				+ " changed files)");
+		return paths;
+	}
+
+	/**
+	 * Builds a new snapshot with a single fstat over the whole tree at the latest changelist.
+	 *
+	 * @param server authenticated connection to use
+	 * @throws P4JavaException If the server can't be queried.
+	 * @throws IOException If the snapshot file can't be written.
+	 */
+	private void build(IOptionsServer server) throws P4JavaException, IOException {
+		List<IChangelistSummary> changes = server.getChangelists(1,
+				FileSpecBuilder.makeFileSpecList(root + "/..."), null, null, false, false, true, false);
+		int changelist = ((changes != null) && !changes.isEmpty() && (changes.get(0) != null))
+				? changes.get(0).getId() : 0;
+		Message.info("Building snapshot of " + root + " at change " + changelist + " in " + file);
+
+		List<IExtendedFileSpec> specs = null;
+		if (changelist > 0) {
+			// pinned to the changelist, so later changes are picked up by the next refresh
+			specs = server.getExtendedFiles(FileSpecBuilder.makeFileSpecList(root + "/...@" + changelist),
+					new GetExtendedFilesOptions(fstatSizeAndDigest));
+		}
+		create(changelist, specs);
+	}
+
+	/**
+	 * Loads the snapshot file under a shared lock, so the header and the delta are read consistently.
+	 *
+	 * @return the snapshot or null if there is no usable snapshot of the root
+	 */
+	private Snapshot load() {
+		if (!file.isFile()) {
+			return null;
+		}
+		synchronized (localLock) {
+			RandomAccessFile lock;
+			try {
+				lock = lock(true);
+			} catch (IOException e) {
+				Message.warn("Can't lock snapshot " + file + ": " + e.getMessage());
+				return null;
+			}
+			try {
+				return read();
+			} finally {
+				unlock(lock);
+			}
+		}
+	}
+
+	/**
+	 * Reads the snapshot file. The caller holds a lock.
+	 *
+	 * @return the snapshot or null if there is no usable snapshot of the root
+	 */
+	private Snapshot read() {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			Snapshot loaded = new Snapshot(map(file));
+			if (!root.equals(loaded.root)) {
+				Message.info("Snapshot " + file + " is of " + loaded.root + " instead of " + root);
+				return null;
+			}
+			return loaded;
+		} catch (IOException e) {
+			Message.warn("Can't use snapshot " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Appends records to the delta of the snapshot file and maps it again. The caller holds the exclusive lock.
+	 *
+	 * @param current the snapshot file as last written
+	 * @param records the records to append
+	 * @param changelist the changelist the snapshot reflects with the records
+	 * @return the updated snapshot
+	 * @throws IOException If the file can't be written.
+	 */
+	private Snapshot append(Snapshot current, Iterable<Record> records, int changelist) throws IOException {
+		long size = 0;
+		for (Record record : records) {
+			size += recordSize + record.path.length;
+		}
+		if (current.end + size > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot of " + root + " is too large to be mapped");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		int count = 0;
+		for (Record record : records) {
+			record.put(buffer, current.end + buffer.position() + recordSize);
+			buffer.put(record.path);
+			count++;
+		}
+		buffer.flip();
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			// anything beyond the end of the delta was left by a writer that failed
+			for (long position = current.end; buffer.hasRemaining();) {
+				position += channel.write(buffer, position);
+			}
+			ByteBuffer header = ByteBuffer.allocate(4);
+			header.putInt(changelist).flip();
+			channel.write(header, 8);
+			header.clear();
+			header.putInt(current.deltaCount + count).flip();
+			channel.write(header, 20);
+		} finally {
+			out.close();
+		}
+		return new Snapshot(map(file));
+	}
+
+	/**
+	 * Writes the records of a snapshot merged with a delta to a new file that then replaces the snapshot file, and
+	 * maps it. The records are streamed from the mapped snapshot to the new file. The caller holds the exclusive
+	 * lock.
+	 *
+	 * @param base the snapshot (null to write just the delta)
+	 * @param delta records that replace or add to those of the snapshot
+	 * @param changelist the changelist the new snapshot reflects
+	 * @return the new snapshot
+	 * @throws IOException If the file can't be written.
+	 */
+	private Snapshot merge(Snapshot base, SortedMap<byte[], Record> delta, int changelist) throws IOException {
+		byte[] rootBytes = encode(root);
+		int recordsOffset = headerSize + rootBytes.length;
+		int count = 0;
+		long pathsSize = 0;
+		for (Iterator<Record> records = new Merge(base, delta, null); records.hasNext();) {
+			pathsSize += records.next().path.length;
+			count++;
+		}
+		long size = recordsOffset + (long) count * recordSize + pathsSize;
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot of " + root + " is too large to be mapped");
+		}
+
+		File part = P4Utils.createPartFile(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(part), 65536));
+			try {
+				out.writeInt(magicNumber);
+				out.writeInt(formatVersion);
+				out.writeInt(changelist);
+				out.writeInt(count);
+				out.writeInt((int) size);
+				out.writeInt(0);
+				out.writeInt(rootBytes.length);
+				out.write(rootBytes);
+				ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+				int pathOffset = recordsOffset + count * recordSize;
+				for (Iterator<Record> records = new Merge(base, delta, null); records.hasNext();) {
+					Record record = records.next();
+					buffer.clear();
+					record.put(buffer, pathOffset);
+					out.write(buffer.array());
+					pathOffset += record.path.length;
+				}
+				for (Iterator<Record> records = new Merge(base, delta, null); records.hasNext();) {
+					out.write(records.next().path);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			part.delete();
+			throw e;
+		}
+		P4Utils.replaceFile(part, file);
+		return new Snapshot(map(file));
+	}
+
+	/**
+	 * Locks the lock file of the snapshot. Shared locks are taken to read the snapshot file, exclusive ones to write
+	 * it. The caller holds {@link #localLock}, as this JVM can't lock the file twice.
+	 *
+	 * @param shared true for a shared lock
+	 * @return the open lock file, to be handed to {@link #unlock(RandomAccessFile)}
+	 * @throws IOException If the lock file can't be locked.
+	 */
+	private RandomAccessFile lock(boolean shared) throws IOException {
+		File dir = lockFile.getAbsoluteFile().getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Can't create directory " + dir);
+		}
+		RandomAccessFile locked = new RandomAccessFile(lockFile, "rw");
+		try {
+			// blocks until other JVMs release it; held briefly, for an append or a merge
+			locked.getChannel().lock(0, Long.MAX_VALUE, shared);
+			return locked;
+		} catch (IOException e) {
+			locked.close();
+			throw e;
+		} catch (RuntimeException e) {
+			locked.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Releases a lock taken via {@link #lock(boolean)}.
+	 *
+	 * @param locked the open lock file
+	 */
+	private static void unlock(RandomAccessFile locked) {
+		try {
+			// closing the file releases its lock
+			locked.close();
+		} catch (IOException e) {
+			Message.debug("Can't unlock snapshot: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Maps a snapshot file into memory.
+	 *
+	 * @param f the snapshot file
+	 * @return the mapped file
+	 * @throws IOException If the file can't be mapped.
+	 */
+	private static ByteBuffer map(File f) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(f, "r");
+		try {
+			// the mapping stays valid after the file is closed
+			return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Checks whether an fstat result describes a file.
+	 *
+	 * @param spec fstat result
+	 * @return true if the spec describes a file
+	 */
+	private static boolean isValid(IExtendedFileSpec spec) {
+		return (spec != null) && (spec.getOpStatus() == FileSpecOpStatus.VALID) && (spec.getDepotPathString() != null)
+				&& (spec.getHeadAction() != null);
+	}
+
+	/**
+	 * Checks whether a path starts with the given bytes.
+	 *
+	 * @param path UTF-8 bytes of a depot path
+	 * @param prefix UTF-8 bytes of the prefix
+	 * @return true if the path starts with the prefix
+	 */
+	private static boolean startsWith(byte[] path, byte[] prefix) {
+		if (path.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (path[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes a depot path the way it is stored in the snapshot.
+	 *
+	 * @param path depot path
+	 * @return UTF-8 bytes of the path
+	 */
+	private static byte[] encode(String path) {
+		try {
+			return path.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+
+	/**
+	 * Decodes a depot path stored in the snapshot.
+	 *
+	 * @param bytes UTF-8 bytes of the path
+	 * @return depot path
+	 */
+	private static String decode(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+
+	/**
+	 * Read-only view of a mapped snapshot file
+	 */
+	private static class Snapshot {
+
+		/**
+		 * The mapped file
+		 */
+		final ByteBuffer buffer;
+
+		/**
+		 * The changelist the snapshot reflects
+		 */
+		final int changelist;
+
+		/**
+		 * Number of sorted records
+		 */
+		final int count;
+
+		/**
+		 * Depot path of the directory the snapshot covers
+		 */
+		final String root;
+
+		/**
+		 * Offset of the first record
+		 */
+		final int recordsOffset;
+
+		/**
+		 * Number of delta records in the file
+		 */
+		final int deltaCount;
+
+		/**
+		 * Offset following the last delta record, where the next one is appended
+		 */
+		final int end;
+
+		/**
+		 * The delta records, the last one of each path, sorted by path
+		 */
+		final SortedMap<byte[], Record> delta = new TreeMap<byte[], Record>(pathOrder);
+
+		/**
+		 * @param buffer the mapped file
+		 * @throws IOException If the file isn't a snapshot in the current format.
+		 */
+		Snapshot(ByteBuffer buffer) throws IOException {
+			this.buffer = buffer;
+			if ((buffer.limit() < headerSize) || (buffer.getInt(0) != magicNumber)) {
+				throw new IOException("not a snapshot file");
+			}
+			if (buffer.getInt(4) != formatVersion) {
+				throw new IOException("snapshot format " + buffer.getInt(4) + " isn't supported");
+			}
+			this.changelist = buffer.getInt(8);
+			this.count = buffer.getInt(12);
+			int deltaOffset = buffer.getInt(16);
+			this.deltaCount = buffer.getInt(20);
+			int rootLength = buffer.getInt(24);
+			this.recordsOffset = headerSize + rootLength;
+			if ((rootLength < 0) || (count < 0) || (deltaCount < 0)
+					|| (recordsOffset + (long) count * recordSize > deltaOffset) || (deltaOffset > buffer.limit())) {
+				throw new IOException("snapshot file is truncated");
+			}
+			this.root = decode(getBytes(headerSize, rootLength));
+
+			int offset = deltaOffset;
+			for (int i = 0; i < deltaCount; i++) {
+				if ((offset + (long) recordSize > buffer.limit())
+						|| (offset + (long) recordSize + buffer.getInt(offset + 4) > buffer.limit())) {
+					throw new IOException("snapshot delta is truncated");
+				}
+				Record record = getRecordAt(offset);
+				delta.put(record.path, record);
+				offset += recordSize + record.path.length;
+			}
+			this.end = offset;
+		}
+
+		/**
+		 * Finds the first record whose path isn't ordered before the given one.
+		 *
+		 * @param path UTF-8 bytes of a depot path
+		 * @return index of the record, {@link #count} if all paths are ordered before the given one
+		 */
+		int find(byte[] path) {
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (compare(mid, path) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Compares the path of a record with the given one without decoding it.
+		 *
+		 * @param index index of the record
+		 * @param path UTF-8 bytes of a depot path
+		 * @return negative, zero or positive if the record's path is ordered before, equal to or after the given one
+		 */
+		int compare(int index, byte[] path) {
+			int record = recordsOffset + index * recordSize;
+			int offset = buffer.getInt(record);
+			int length = buffer.getInt(record + 4);
+			int common = Math.min(length, path.length);
+			for (int i = 0; i < common; i++) {
+				int diff = (buffer.get(offset + i) & 0xFF) - (path[i] & 0xFF);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return length - path.length;
+		}
+
+		/**
+		 * Checks whether the path of a record starts with the given bytes.
+		 *
+		 * @param index index of the record
+		 * @param prefix UTF-8 bytes of the prefix
+		 * @return true if the record's path starts with the prefix
+		 */
+		boolean startsWith(int index, byte[] prefix) {
+			int record = recordsOffset + index * recordSize;
+			int offset = buffer.getInt(record);
+			if (buffer.getInt(record + 4) < prefix.length) {
+				return false;
+			}
+			for (int i = 0; i < prefix.length; i++) {
+				if (buffer.get(offset + i) != prefix[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @param index index of the record
+		 * @return the record
+		 */
+		Record getRecord(int index) {
+			return getRecordAt(recordsOffset + index * recordSize);
+		}
+
+		/**
+		 * @param record offset of the record in the file
+		 * @return the record
+		 */
+		private Record getRecordAt(int record) {
+			return new Record(getBytes(buffer.getInt(record), buffer.getInt(record + 4)), buffer.getInt(record + 8),
+					buffer.getInt(record + 12), buffer.getLong(record + 16), buffer.getLong(record + 24),
+					getBytes(record + 32, 16));
+		}
+
+		/**
+		 * @param offset offset in the file
+		 * @param length number of bytes
+		 * @return copy of the bytes
+		 */
+		private byte[] getBytes(int offset, int length) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = buffer.get(offset + i);
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * Iterates over the sorted records of a snapshot merged with its delta, optionally only over those whose path
+	 * starts with a prefix. Delta records replace sorted records with the same path.
+	 */
+	private static class Merge implements Iterator<Record> {
+
+		/**
+		 * The snapshot (null if there are only delta records)
+		 */
+		private final Snapshot base;
+
+		/**
+		 * Prefix of the paths iterated over (null for all)
+		 */
+		private final byte[] prefix;
+
+		/**
+		 * The delta records from the prefix on
+		 */
+		private final Iterator<Record> delta;
+
+		/**
+		 * Index of the next sorted record
+		 */
+		private int index;
+
+		/**
+		 * The next delta record (null if there is none)
+		 */
+		private Record nextDelta;
+
+		/**
+		 * Iterates over the records of a snapshot whose path starts with a prefix.
+		 *
+		 * @param snapshot the snapshot
+		 * @param prefix UTF-8 bytes of the prefix
+		 */
+		Merge(Snapshot snapshot, byte[] prefix) {
+			this(snapshot, snapshot.delta, prefix);
+		}
+
+		/**
+		 * @param base the snapshot (null if there are only delta records)
+		 * @param delta delta records sorted by path
+		 * @param prefix UTF-8 bytes of the prefix of the paths iterated over (null for all)
+		 */
+		Merge(Snapshot base, SortedMap<byte[], Record> delta, byte[] prefix) {
+			this.base = base;
+			this.prefix = prefix;
+			this.delta = ((prefix != null) ? delta.tailMap(prefix) : delta).values().iterator();
+			this.index = ((base != null) && (prefix != null)) ? base.find(prefix) : 0;
+			this.nextDelta = nextDelta();
+		}
+
+		public boolean hasNext() {
+			return hasBase() || (nextDelta != null);
+		}
+
+		public Record next() {
+			if (nextDelta != null) {
+				int diff = hasBase() ? base.compare(index, nextDelta.path) : 1;
+				if (diff >= 0) {
+					Record record = nextDelta;
+					if (diff == 0) {
+						index++;
+					}
+					nextDelta = nextDelta();
+					return record;
+				}
+			}
+			if (!hasBase()) {
+				throw new NoSuchElementException();
+			}
+			return base.getRecord(index++);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * @return true if there is a sorted record left
+		 */
+		private boolean hasBase() {
+			return (base != null) && (index < base.count) && ((prefix == null) || base.startsWith(index, prefix));
+		}
+
+		/**
+		 * @return the next delta record within the prefix (null if there is none)
+		 */
+		private Record nextDelta() {
+			if (delta.hasNext()) {
+				Record record = delta.next();
+				if ((prefix == null) || P4SnapshotIndex.startsWith(record.path, prefix)) {
+					return record;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Metadata of a file as stored in the snapshot
+	 */
+	private static class Record {
+
+		/**
+		 * UTF-8 bytes of the depot path
+		 */
+		final byte[] path;
+
+		/**
+		 * Head revision
+		 */
+		final int headRev;
+
+		/**
+		 * Combination of {@link P4SnapshotIndex#flagDigest} and {@link P4SnapshotIndex#flagDeleted}
+		 */
+		final int flags;
+
+		/**
+		 * Time of the head revision in milliseconds
+		 */
+		final long headTime;
+
+		/**
+		 * Size of the head revision in bytes
+		 */
+		final long size;
+
+		/**
+		 * MD5 digest of the head revision (zeros if unknown)
+		 */
+		final byte[] digest;
+
+		/**
+		 * Creates a record from its stored fields.
+		 */
+		Record(byte[] path, int headRev, int flags, long headTime, long size, byte[] digest) {
+			this.path = path;
+			this.headRev = headRev;
+			this.flags = flags;
+			this.headTime = headTime;
+			this.size = size;
+			this.digest = digest;
+		}
+
+		/**
+		 * Creates a record from an fstat result.
+		 *
+		 * @param spec fstat result describing a file
+		 */
+		Record(IExtendedFileSpec spec) {
+			this.path = encode(spec.getDepotPathString());
+			this.headRev = spec.getHeadRev();
+			this.headTime = (spec.getHeadTime() != null) ? spec.getHeadTime().getTime() : 0;
+			this.size = spec.getFileSize();
+			this.digest = new byte[16];
+			int f = 0;
+			String hex = spec.getDigest();
+			if ((hex != null) && (hex.length() == 32)) {
+				for (int i = 0; i < 16; i++) {
+					digest[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+				}
+				f |= flagDigest;
+			}
+			if ((spec.getHeadAction() == FileAction.DELETE) || (spec.getHeadAction() == FileAction.MOVE_DELETE)) {
+				f |= flagDeleted;
+			}
+			this.flags = f;
+		}
+
+		/**
+		 * @return true if the head revision is a delete
+		 */
+		boolean isDeleted() {
+			return (flags & flagDeleted) != 0;
+		}
+
+		/**
+		 * Writes the record's fields in the file layout.
+		 *
+		 * @param buffer the buffer to write to
+		 * @param pathOffset offset of the path in the file
+		 */
+		void put(ByteBuffer buffer, int pathOffset) {
+			buffer.putInt(pathOffset).putInt(path.length).putInt(headRev).putInt(flags);
+			buffer.putLong(headTime).putLong(size).put(digest);
+		}
+
+		/**
+		 * @return the metadata as seen by the repository
+		 */
+		P4FileMetadata toMetadata() {
+			return new P4FileMetadata(true, headTime, size,
+					((flags & flagDigest) != 0) ? P4Repository.toHex(digest).toUpperCase() : null);
+		}
+	}
+}
@@ -16,7 +16,17 @@
 package com.orga.ivy.plugins.p4resolver;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.ivy.util.Message;
 
@@ -25,6 +35,7 @@ import com.perforce.p4java.core.ChangelistStatus;
 import com.perforce.p4java.core.IChangelistSummary;
 import com.perforce.p4java.core.file.FileAction;
 import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
 import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.ConnectionException;
@@ -197,6 +208,107 @@ public class P4Utils {
 	
 	
 	
+	/**
+	 * Check which of several files exist in perforce and are NOT deleted in the head-revision, with a single request
+	 * (requires an initialised server). The server may report a file with a differently cased path than asked for,
+	 * so paths that don't match exactly are matched ignoring case.
+	 * 
+	 * @param files Files (p4-depotpaths) to be checked
+	 * @return the depot paths, as given, of the files that exist and are not deleted
+	 * @throws ConnectionException If the server can't be reached.
+	 * @throws AccessException If the server denies access.
+	 */
+	public static Set<String> p4FilesExisting(IOptionsServer server, List<String> files) throws ConnectionException,
+			AccessException {
+		Set<String> asked = new HashSet<String>(files);
+		Map<String, String> byLowerCase = new HashMap<String, String>();
+		for (String file : files) {
+			byLowerCase.put(file.toLowerCase(Locale.ENGLISH), file);
+		}
+		Set<String> existing = new HashSet<String>();
+		List<IFileSpec> depotFiles = server.getDepotFiles(FileSpecBuilder.makeFileSpecList(files), false);
+		if (depotFiles != null) {
+			for (IFileSpec depotFile : depotFiles) {
+				// files that don't exist come back as errors
+				if ((depotFile != null) && (depotFile.getOpStatus() == FileSpecOpStatus.VALID) && 
+						(depotFile.getAction() != null) && (depotFile.getAction() != FileAction.DELETE) &&
+						(depotFile.getDepotPathString() != null)) {
+					String path = depotFile.getDepotPathString();
+					if (!asked.contains(path)) {
+						path = byLowerCase.get(path.toLowerCase(Locale.ENGLISH));
+					}
+					if (path != null) {
+						existing.add(path);
+					}
+				}
+			}
+		}
+		return existing;
+	}
+	
+	
+	
+	/**
+	 * Creates an empty part file next to a target file. New contents of the target are written to the part file and
+	 * then put in place with {@link #replaceFile(File, File)}. The name of the part file is unique, so threads and
+	 * JVMs writing the same target at once never write into the same part file.
+	 * 
+	 * @param target the file to be written
+	 * @return the part file, ending with .part
+	 * @throws IOException If the directory of the target can't be created or the part file can't be created.
+	 */
+	public static File createPartFile(File target) throws IOException {
+		File dir = target.getAbsoluteFile().getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Can't create directory " + dir);
+		}
+		return File.createTempFile(target.getName() + ".", ".part", dir);
+	}
+
+	/**
+	 * Puts a completely written part file in place of its target. Where the file system renames atomically, readers
+	 * see either the old or the new contents of the target, never a partially written file. Where a rename can't
+	 * replace an existing file (Windows), the target is deleted first and is missing for a moment.
+	 * 
+	 * @param part part file created via {@link #createPartFile(File)}, deleted if it can't be put in place
+	 * @param target the file to be replaced
+	 * @throws IOException If the target can't be replaced.
+	 */
+	public static void replaceFile(File part, File target) throws IOException {
+		if (!part.renameTo(target) && !(target.delete() && part.renameTo(target))) {
+			part.delete();
+			throw new IOException("Can't replace " + target);
+		}
+	}
+
+	/**
+	 * Computes the MD5 digest of a file.
+	 * 
+	 * @param file the file
+	 * @return digest as lowercase hex string
+	 * @throws IOException If the file can't be read.
+	 */
+	public static String digest(File file) throws IOException {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw (IOException) new IOException("MD5 not available").initCause(e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			for (int len; (len = in.read(buffer)) != -1; ) {
+				md5.update(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return P4Repository.toHex(md5.digest());
+	}
+
+
+
 	/**
 	 * Deletes a directory-tree
 	 * 
@@ -222,16 +334,14 @@ public class P4Utils {
 	}
 
 	/**
-	 * Delete a perforce client.
+	 * Clean up a perforce client.
 	 * Any open files will be reverted.
 	 * Any pending changelists will be deleted.
 	 * 
 	 * @param server
 	 * @param client
 	 */
-	public static void deleteClient(IOptionsServer server, IClient client) {
-		Message.debug("Deleting temporary perforce client " + client.getName());
-		
+	public static void cleanClient(IOptionsServer server, IClient client) {
 		// revert open files if any 
 		try {
 			client.revertFiles(FileSpecBuilder.makeFileSpecList("//..."), false, 0, false, true);
@@ -283,20 +393,5 @@ public class P4Utils {
 			Message.error("Error while deleting pending changes");
 			e.printStackTrace();
 		}
-		 
-		// delete client
-		try {
-			server.deleteClient(client.getName(),false);
-			Message.debug("Deleted client " + client.getName());
-		} catch (ConnectionException e) {
-			Message.error("Error deleting client " + client.getName());
-			e.printStackTrace();
-		} catch (RequestException e) {
-			Message.error("Error deleting client " + client.getName());
-			e.printStackTrace();
-		} catch (AccessException e) {
-			Message.error("Error deleting client " + client.getName());
-			e.printStackTrace();
-		}
 	}
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.impl.generic.core.file.ExtendedFileSpec;
+
+/**
+ * Tests merging of concurrent lookups (doesn't need a Perforce server).
+ */
+public class P4BatcherTest {
+
+	/**
+	 * Sizes of the batches loaded so far
+	 */
+	private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+	/**
+	 * Answers every key except the missing ones with its length
+	 */
+	private final P4Batcher.Loader<Integer> loader = new P4Batcher.Loader<Integer>() {
+		public Map<String, Integer> load(List<String> keys) {
+			batchSizes.add(keys.size());
+			Map<String, Integer> results = new HashMap<String, Integer>();
+			for (String key : keys) {
+				if (!key.endsWith("missing.jar")) {
+					results.put(key, key.length());
+				}
+			}
+			return results;
+		}
+	};
+
+	@Test
+	public void testFullBatchIsLoadedAtOnce() throws Exception {
+		// the window is long enough that only a full batch ends it in time
+		final P4Batcher<Integer> batcher = new P4Batcher<Integer>(loader, 60000, 4);
+		final Integer[] results = new Integer[4];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			final int n = i;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[n] = batcher.get("//depot/repo/module-" + n + ".jar");
+					} catch (IOException e) {
+						results[n] = -1;
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+
+		assertEquals(Collections.singletonList(4), batchSizes);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(Integer.valueOf(("//depot/repo/module-" + i + ".jar").length()), results[i]);
+		}
+	}
+
+	@Test
+	public void testWindowEndsBatch() throws IOException {
+		P4Batcher<Integer> batcher = new P4Batcher<Integer>(loader, 5, 50);
+		assertNull(batcher.get("//depot/repo/missing.jar"));
+		assertEquals(Integer.valueOf("//depot/repo/a.jar".length()), batcher.get("//depot/repo/a.jar"));
+		assertEquals(2, batchSizes.size());
+	}
+
+	@Test
+	public void testErrorDoesNotBlockWaitingThreads() throws Exception {
+		P4Batcher.Loader<Integer> failing = new P4Batcher.Loader<Integer>() {
+			public Map<String, Integer> load(List<String> keys) {
+				throw new OutOfMemoryError("simulated");
+			}
+		};
+		final P4Batcher<Integer> batcher = new P4Batcher<Integer>(failing, 60000, 2);
+		final Throwable[] failures = new Throwable[2];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 2; i++) {
+			final int n = i;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						batcher.get("//depot/repo/module-" + n + ".jar");
+					} catch (Throwable t) {
+						failures[n] = t;
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+			assertFalse(thread.isAlive());
+		}
+
+		// the thread that loaded the batch sees the error, the other one an IOException
+		int errors = 0;
+		for (Throwable failure : failures) {
+			if (failure instanceof Error) {
+				errors++;
+			} else {
+				assertTrue(failure instanceof IOException);
+			}
+		}
+		assertEquals(1, errors);
+	}
+
+	@Test
+	public void testBatchedResultsMatchDifferentlyReportedPaths() throws Exception {
+		// a case-insensitive server reporting the depot paths it knows, with escaped special characters
+		P4Batcher.Loader<P4FileMetadata> server = new P4Batcher.Loader<P4FileMetadata>() {
+			public Map<String, P4FileMetadata> load(List<String> keys) {
+				List<IExtendedFileSpec> specs = new ArrayList<IExtendedFileSpec>();
+				for (String key : keys) {
+					ExtendedFileSpec spec = new ExtendedFileSpec(key);
+					if (!key.endsWith("missing.jar")) {
+						spec.setDepotPath(key.toUpperCase(Locale.ENGLISH).replace("@", "%40"));
+						spec.setHeadAction(FileAction.ADD);
+						spec.setFileSize(key.length());
+					}
+					specs.add(spec);
+				}
+				return P4Repository.matchMetadata(keys, specs);
+			}
+		};
+		final P4Batcher<P4FileMetadata> batcher = new P4Batcher<P4FileMetadata>(server, 60000, 3);
+		final String[] paths = {"//depot/repo/Module/1.0/module.jar", "//depot/repo/module/1.0/module@x.jar",
+				"//depot/repo/module/1.0/missing.jar"};
+		final P4FileMetadata[] results = new P4FileMetadata[paths.length];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < paths.length; i++) {
+			final int n = i;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[n] = batcher.get(paths[n]);
+					} catch (IOException e) {
+						results[n] = null;
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+
+		assertEquals(paths[0].length(), results[0].getSize());
+		assertEquals(paths[1].length(), results[1].getSize());
+		assertFalse(results[2].exists());
+	}
+}
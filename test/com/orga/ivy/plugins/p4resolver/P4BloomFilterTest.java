@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the Bloom filter of existing files (doesn't need a Perforce server).
+ */
+public class P4BloomFilterTest {
+
+	@Test
+	public void testNoFalseNegatives() {
+		P4BloomFilter filter = new P4BloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.add("//depot/repo/org/module/" + i + "/module-" + i + ".jar");
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("//depot/repo/org/module/" + i + "/module-" + i + ".jar"));
+		}
+		assertFalse(filter.isOverfilled());
+	}
+
+	@Test
+	public void testFewFalsePositives() {
+		P4BloomFilter filter = new P4BloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.add("//depot/repo/org/module/" + i + "/module-" + i + ".jar");
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain("//depot/repo/org/module/" + i + "/module-" + i + "-sources.jar")) {
+				falsePositives++;
+			}
+		}
+		assertTrue("false positives: " + falsePositives, falsePositives < 300);
+	}
+
+	@Test
+	public void testRepeatedPathsDontOverfill() {
+		P4BloomFilter filter = new P4BloomFilter(10, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("//depot/repo/org/module/ivy.xml");
+		}
+		assertEquals(1, filter.size());
+		assertFalse(filter.isOverfilled());
+	}
+
+	@Test
+	public void testCaseIsIgnored() {
+		P4BloomFilter filter = new P4BloomFilter(10, 0.01);
+		filter.add("//depot/repo/Org/Module/ivy.xml");
+		assertTrue(filter.mightContain("//depot/repo/org/module/IVY.xml"));
+	}
+}
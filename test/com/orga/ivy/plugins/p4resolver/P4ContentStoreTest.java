@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the local content-addressed store (doesn't need a Perforce server).
+ */
+public class P4ContentStoreTest {
+
+	private File tmpDir = new File("test/tmp/contentstore");
+
+	private File storeDir = new File(tmpDir, "store");
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+		tmpDir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+	}
+
+	@Test
+	public void testStoreAndMaterialize() throws IOException {
+		P4ContentStore store = new P4ContentStore(storeDir, 1024);
+		File source = new File(tmpDir, "source.jar");
+		FileUtils.writeStringToFile(source, "some contents");
+		String digest = P4Utils.digest(source);
+
+		File destination = new File(tmpDir, "destination.jar");
+		assertFalse(store.materialize(digest, destination));
+
+		store.store(digest.toUpperCase(), source);
+		assertTrue(store.materialize(digest, destination));
+		assertEquals("some contents", FileUtils.readFileToString(destination));
+	}
+
+	@Test
+	public void testRejectsWrongDigest() throws IOException {
+		P4ContentStore store = new P4ContentStore(storeDir, 1024);
+		File source = new File(tmpDir, "source.jar");
+		FileUtils.writeStringToFile(source, "truncated cont");
+
+		store.store("0123456789abcdef0123456789abcdef", source);
+		assertFalse(store.materialize("0123456789abcdef0123456789abcdef", new File(tmpDir, "destination.jar")));
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		P4ContentStore store = new P4ContentStore(storeDir, 25);
+		File source = new File(tmpDir, "source.jar");
+
+		FileUtils.writeStringToFile(source, "aaaaaaaaaa");
+		String aa = P4Utils.digest(source);
+		store.store(aa, source);
+		new File(storeDir, aa.substring(0, 2) + "/" + aa).setLastModified(1000000000L);
+		FileUtils.writeStringToFile(source, "bbbbbbbbbb");
+		String bb = P4Utils.digest(source);
+		store.store(bb, source);
+		FileUtils.writeStringToFile(source, "cccccccccc");
+		String cc = P4Utils.digest(source);
+		store.store(cc, source);
+
+		File destination = new File(tmpDir, "destination.jar");
+		assertFalse(store.materialize(aa, destination));
+		assertTrue(store.materialize(bb, destination));
+		assertTrue(store.materialize(cc, destination));
+	}
+}
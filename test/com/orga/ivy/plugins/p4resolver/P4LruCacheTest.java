@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the bounded resource cache (doesn't need a Perforce server).
+ */
+public class P4LruCacheTest {
+
+	@Test
+	public void testCountsHitsAndMisses() {
+		P4LruCache<String, String> cache = new P4LruCache<String, String>(100, false);
+		assertNull(cache.putIfAbsent("//depot/repo/a.jar", "a"));
+		assertEquals("a", cache.putIfAbsent("//depot/repo/a.jar", "b"));
+
+		assertEquals("a", cache.get("//depot/repo/a.jar"));
+		assertNull(cache.get("//depot/repo/b.jar"));
+		cache.remove("//depot/repo/a.jar");
+		assertNull(cache.get("//depot/repo/a.jar"));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testStaysWithinBound() {
+		P4LruCache<String, String> cache = new P4LruCache<String, String>(160, true);
+		for (int i = 0; i < 10000; i++) {
+			cache.putIfAbsent("//depot/repo/module/" + i + "/module-" + i + ".jar", "" + i);
+		}
+		// each segment holds a sixteenth of the bound
+		assertTrue(cache.size() <= 160);
+		assertEquals(10000 - cache.size(), cache.getEvictions());
+	}
+
+	@Test
+	public void testResizeKeepsEntries() {
+		P4LruCache<String, String> cache = new P4LruCache<String, String>(1600, false);
+		for (int i = 0; i < 100; i++) {
+			cache.putIfAbsent("//depot/repo/module/" + i + "/module-" + i + ".jar", "" + i);
+		}
+		int size = cache.size();
+		assertEquals(100, size);
+		cache.setMaxSize(16000);
+		assertEquals(size, cache.size());
+		assertEquals("7", cache.get("//depot/repo/module/7/module-7.jar"));
+
+		cache.setMaxSize(16);
+		assertTrue(cache.size() <= 16);
+		assertEquals(size - cache.size(), cache.getEvictions());
+	}
+}
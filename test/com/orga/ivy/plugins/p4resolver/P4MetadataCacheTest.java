@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the metadata and listing cache (doesn't need a Perforce server).
+ */
+public class P4MetadataCacheTest {
+
+	@Test
+	public void testCompleteDirectoryCoversFiles() {
+		P4MetadataCache cache = new P4MetadataCache();
+		cache.markComplete("//depot/repo/org/module");
+
+		assertTrue(cache.isCovered("//depot/repo/org/module/1.0/module-1.0.jar", 60000));
+		assertFalse(cache.isCovered("//depot/repo/org/other/1.0/other-1.0.jar", 60000));
+
+		cache.invalidate("//depot/repo/org/module/1.1/module-1.1.jar");
+		assertFalse(cache.isCovered("//depot/repo/org/module/1.0/module-1.0.jar", 60000));
+	}
+
+	@Test
+	public void testListingsAreInvalidatedByPublish() {
+		P4MetadataCache cache = new P4MetadataCache();
+		cache.putListing("//depot/repo/org/module", Arrays.asList("1.0"));
+		cache.putListing("//depot/repo/org/", Arrays.asList("module"));
+		cache.putListing("//depot/repo/other", Arrays.asList("2.0"));
+
+		assertEquals(Arrays.asList("1.0"), cache.getListing("//depot/repo/org/module", 60000));
+
+		cache.invalidate("//depot/repo/org/module/1.1/ivy-1.1.xml");
+		assertNull(cache.getListing("//depot/repo/org/module", 60000));
+		assertNull(cache.getListing("//depot/repo/org/", 60000));
+		assertEquals(Arrays.asList("2.0"), cache.getListing("//depot/repo/other", 60000));
+	}
+
+	@Test
+	public void testMissingFilesAreInvalidatedByPublish() {
+		P4MetadataCache cache = new P4MetadataCache();
+		cache.put("//depot/repo/org/module/1.0/module-1.0-sources.jar", P4FileMetadata.MISSING);
+
+		assertSame(P4FileMetadata.MISSING, cache.get("//depot/repo/org/module/1.0/module-1.0-sources.jar", 60000, 60000));
+		assertNull(cache.get("//depot/repo/org/module/1.0/module-1.0-sources.jar", 60000, 0));
+
+		cache.invalidate("//depot/repo/org/module/1.0/module-1.0-sources.jar");
+		assertNull(cache.get("//depot/repo/org/module/1.0/module-1.0-sources.jar", 60000, 60000));
+	}
+
+	@Test
+	public void testTreeInvalidation() {
+		P4MetadataCache cache = new P4MetadataCache();
+		cache.put("//depot/repo/org/module/1.0/module-1.0.jar", new P4FileMetadata(true, 1, 2, null));
+		cache.put("//depot/repo/org/module/1.0/module-1.0-sources.jar", P4FileMetadata.MISSING);
+		cache.put("//depot/other/module-1.0.jar", new P4FileMetadata(true, 1, 2, null));
+		cache.markComplete("//depot/repo/org/module");
+		cache.putListing("//depot/repo/org", Arrays.asList("module"));
+
+		cache.invalidateTree("//depot/repo");
+		assertNull(cache.get("//depot/repo/org/module/1.0/module-1.0.jar", 60000, 60000));
+		assertNull(cache.get("//depot/repo/org/module/1.0/module-1.0-sources.jar", 60000, 60000));
+		assertFalse(cache.isCovered("//depot/repo/org/module/1.0/module-1.1.jar", 60000));
+		assertNull(cache.getListing("//depot/repo/org", 60000));
+		assertNotNull(cache.get("//depot/other/module-1.0.jar", 60000, 60000));
+	}
+
+	@Test
+	public void testPurgesExpiredEntries() {
+		P4MetadataCache cache = new P4MetadataCache();
+		cache.put("//depot/repo/org/module/1.0/module-1.0.jar", new P4FileMetadata(true, 1, 2, null));
+		cache.put("//depot/kept/org/module/1.0/module-1.0.jar", new P4FileMetadata(true, 1, 2, null));
+		cache.markComplete("//depot/repo/org/module");
+		cache.putTree("//depot/repo", Arrays.asList("//depot/repo/org/module/1.0/module-1.0.jar"));
+		cache.retain("//depot/kept");
+
+		cache.purge(System.currentTimeMillis() + 1);
+		assertNull(cache.get("//depot/repo/org/module/1.0/module-1.0.jar", Long.MAX_VALUE, 0));
+		assertFalse(cache.isCovered("//depot/repo/org/module/1.0/module-1.1.jar", Long.MAX_VALUE));
+		assertNull(cache.getTree("//depot/repo", Long.MAX_VALUE));
+		assertNotNull(cache.get("//depot/kept/org/module/1.0/module-1.0.jar", Long.MAX_VALUE, 0));
+	}
+}
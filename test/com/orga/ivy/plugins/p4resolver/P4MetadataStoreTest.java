@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the metadata store shared across JVMs (doesn't need a Perforce server).
+ */
+public class P4MetadataStoreTest {
+
+	private File tmpDir = new File("test/tmp/metadatastore");
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+		tmpDir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+	}
+
+	@Test
+	public void testEntriesAreSeenByOtherStores() {
+		File file = new File(tmpDir, "metadata.store");
+		P4MetadataStore writer = new P4MetadataStore(file, 1024 * 1024);
+		writer.putMetadata("//depot/repo/org/module/1.0/module-1.0.jar",
+				new P4FileMetadata(true, 1300000000000L, 4711, "0123456789ABCDEF0123456789ABCDEF"));
+		writer.putMetadata("//depot/repo/org/module/1.0/module-1.0-sources.jar", P4FileMetadata.MISSING);
+		writer.putListing("//depot/repo/org/module", Arrays.asList("1.0", "ivy.xml"));
+		writer.close();
+
+		// another JVM opening the same file
+		P4MetadataStore reader = new P4MetadataStore(file, 1024 * 1024);
+		P4FileMetadata metadata = reader.getMetadata("//depot/repo/org/module/1.0/module-1.0.jar", 60000, 60000);
+		assertEquals(1300000000000L, metadata.getHeadTime());
+		assertEquals(4711, metadata.getSize());
+		assertEquals("0123456789ABCDEF0123456789ABCDEF", metadata.getDigest());
+		assertSame(P4FileMetadata.MISSING,
+				reader.getMetadata("//depot/repo/org/module/1.0/module-1.0-sources.jar", 60000, 60000));
+		assertNull(reader.getMetadata("//depot/repo/org/module/1.0/module-1.0-sources.jar", 60000, -1));
+		assertEquals(Arrays.asList("1.0", "ivy.xml"), reader.getListing("//depot/repo/org/module/", 60000));
+
+		reader.remove("//depot/repo/org/module/1.0/module-1.0.jar");
+		assertNull(reader.getMetadata("//depot/repo/org/module/1.0/module-1.0.jar", 60000, 60000));
+		assertNull(reader.getListing("//depot/repo/org/module", 60000));
+		reader.close();
+	}
+
+	@Test
+	public void testServersDontShareEntries() {
+		File file = new File(tmpDir, "metadata.store");
+		P4MetadataStore store = new P4MetadataStore(file, 1024 * 1024);
+		store.putMetadata("p4java://one:1666//depot/repo/ivy.xml", new P4FileMetadata(true, 1, 1, null));
+		store.putMetadata("p4java://two:1666//depot/repo/ivy.xml", new P4FileMetadata(true, 2, 2, null));
+		store.putListing("p4java://two:1666//depot/repo", Arrays.asList("ivy.xml"));
+
+		store.remove("p4java://one:1666", "//depot/repo/ivy.xml");
+		assertNull(store.getMetadata("p4java://one:1666//depot/repo/ivy.xml", 60000, 60000));
+		assertEquals(2, store.getMetadata("p4java://two:1666//depot/repo/ivy.xml", 60000, 60000).getSize());
+		assertEquals(Arrays.asList("ivy.xml"), store.getListing("p4java://two:1666//depot/repo", 60000));
+		store.close();
+	}
+
+	@Test
+	public void testPartialRecordIsIgnored() throws IOException {
+		File file = new File(tmpDir, "metadata.store");
+		P4MetadataStore writer = new P4MetadataStore(file, 64 * 1024);
+		writer.putMetadata("//depot/repo/ivy.xml", new P4FileMetadata(true, 1, 1, null));
+		writer.close();
+
+		// a record whose size another JVM's write hasn't reached this JVM yet
+		byte[] content = FileUtils.readFileToByteArray(file);
+		int key = new String(content, "ISO-8859-1").indexOf("//depot/repo/ivy.xml");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the low byte of the size, which is followed by the checksum and padding
+			raf.seek(key - 8 - 1);
+			raf.writeByte(0);
+		} finally {
+			raf.close();
+		}
+		P4MetadataStore reader = new P4MetadataStore(file, 64 * 1024);
+		assertNull(reader.getMetadata("//depot/repo/ivy.xml", 60000, 60000));
+		reader.close();
+	}
+
+	@Test
+	public void testCompactionKeepsNewestEntries() {
+		File file = new File(tmpDir, "metadata.store");
+		P4MetadataStore store = new P4MetadataStore(file, 64 * 1024);
+		for (int i = 0; i < 2000; i++) {
+			store.putMetadata("//depot/repo/org/module/" + i + "/module-" + i + ".jar",
+					new P4FileMetadata(true, i, i, null));
+		}
+
+		assertEquals(64 * 1024, file.length());
+		P4FileMetadata metadata = store.getMetadata("//depot/repo/org/module/1999/module-1999.jar", 60000, 60000);
+		assertNotNull(metadata);
+		assertEquals(1999, metadata.getSize());
+		store.close();
+	}
+}
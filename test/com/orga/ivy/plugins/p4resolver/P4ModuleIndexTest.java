@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests reading and writing module indexes (doesn't need a Perforce server).
+ */
+public class P4ModuleIndexTest {
+
+	private File tmpDir = new File("test/tmp/moduleindex");
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+		tmpDir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		Map<String, String> artifacts = new LinkedHashMap<String, String>();
+		artifacts.put("module.jar", "0123456789abcdef0123456789abcdef");
+		artifacts.put("ivy.xml", "fedcba9876543210fedcba9876543210");
+
+		P4ModuleIndex index = new P4ModuleIndex();
+		index.put("module", "1.0", "release", new Date(1300000000000L), artifacts);
+		index.put("module", "1.1", "integration", new Date(1310000000000L), artifacts);
+		index.put("other", "2.0", "release", new Date(1320000000000L), artifacts);
+		// republishing a revision replaces it
+		index.put("module", "1.0", "milestone", new Date(1330000000000L), artifacts);
+
+		File file = new File(tmpDir, "revisions.idx");
+		index.write(file);
+		InputStream in = new FileInputStream(file);
+		try {
+			index = P4ModuleIndex.read(in);
+		} finally {
+			in.close();
+		}
+
+		List<P4ModuleIndex.Revision> revisions = index.getRevisions("module");
+		assertEquals(2, revisions.size());
+		assertEquals("1.1", revisions.get(0).getRevision());
+		assertEquals("integration", revisions.get(0).getStatus());
+		assertEquals("1.0", revisions.get(1).getRevision());
+		assertEquals("milestone", revisions.get(1).getStatus());
+		assertEquals(1330000000000L, revisions.get(1).getPublicationDate().getTime());
+		assertEquals(artifacts, revisions.get(1).getArtifacts());
+		assertEquals(1, index.getRevisions("other").size());
+	}
+}
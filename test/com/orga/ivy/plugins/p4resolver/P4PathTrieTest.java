@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the compact path index (doesn't need a Perforce server).
+ */
+public class P4PathTrieTest {
+
+	@Test
+	public void testStoresMetadata() {
+		P4PathTrie trie = new P4PathTrie();
+		trie.putMetadata("//depot/repo/org/module/1.0/module-1.0.jar",
+				new P4FileMetadata(true, 1300000000000L, 4711, "0123456789ABCDEF0123456789ABCDEF"), System.currentTimeMillis());
+		trie.putMetadata("//depot/repo/org/module/1.0/ivy-1.0.xml", new P4FileMetadata(true, 1, 2, null),
+				System.currentTimeMillis());
+
+		P4FileMetadata metadata = trie.getMetadata("//depot/repo/org/module/1.0/module-1.0.jar", 60000);
+		assertEquals(1300000000000L, metadata.getHeadTime());
+		assertEquals(4711, metadata.getSize());
+		assertEquals("0123456789ABCDEF0123456789ABCDEF", metadata.getDigest());
+		assertNull(trie.getMetadata("//depot/repo/org/module/1.0/ivy-1.0.xml", 60000).getDigest());
+		assertNull(trie.getMetadata("//depot/repo/org/module/1.0", 60000));
+		assertNull(trie.getMetadata("//depot/repo/org/module/1.1/module-1.1.jar", 60000));
+
+		trie.removeMetadata("//depot/repo/org/module/1.0/module-1.0.jar");
+		assertNull(trie.getMetadata("//depot/repo/org/module/1.0/module-1.0.jar", 60000));
+	}
+
+	@Test
+	public void testSharesPrefixes() {
+		P4PathTrie trie = new P4PathTrie();
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			files.add("//depot/repo/com.orga/module/" + i + "/ivy.xml");
+		}
+		trie.putTree("//depot/repo", files);
+
+		// "", "", depot, repo, com.orga and module once, then a revision and an ivy.xml node per file
+		assertEquals(1 + 6 + 2 * 5000, trie.getNodeCount());
+		List<String> listed = trie.listTree("//depot/repo/com.orga");
+		Collections.sort(listed);
+		List<String> expected = new ArrayList<String>(files);
+		Collections.sort(expected);
+		assertEquals(expected, listed);
+	}
+
+	@Test
+	public void testReplacesListings() {
+		P4PathTrie trie = new P4PathTrie();
+		trie.putTree("//depot/repo", Arrays.asList("//depot/repo/a/1.0/a.jar", "//depot/repo/b/1.0/b.jar"));
+		trie.putTree("//depot/repo/a", Arrays.asList("//depot/repo/a/2.0/a.jar"));
+
+		assertEquals(Arrays.asList("//depot/repo/a/2.0/a.jar"), trie.listTree("//depot/repo/a"));
+		assertEquals(Arrays.asList("//depot/repo/b/1.0/b.jar"), trie.listTree("//depot/repo/b"));
+		assertEquals(Collections.emptyList(), trie.listTree("//depot/other"));
+	}
+
+	@Test
+	public void testReclaimsRemovedSubtrees() {
+		P4PathTrie trie = new P4PathTrie();
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			files.add("//depot/repo/com.orga/module/" + i + "/ivy.xml");
+		}
+		trie.putTree("//depot/repo", files);
+		trie.putMetadata("//depot/other/module-1.0.jar", new P4FileMetadata(true, 1, 2, null), 0);
+
+		trie.removeTree("//depot/repo/com.orga");
+		// the root, "", "", depot, other and module-1.0.jar are left
+		assertEquals(6, trie.getNodeCount());
+		assertEquals(2, trie.getMetadata("//depot/other/module-1.0.jar", Long.MAX_VALUE).getSize());
+		assertEquals(Collections.emptyList(), trie.listTree("//depot/repo"));
+
+		trie.putTree("//depot/repo", files.subList(0, 10));
+		assertEquals(10, trie.listTree("//depot/repo").size());
+	}
+
+	@Test
+	public void testRemovesOldMetadata() {
+		P4PathTrie trie = new P4PathTrie();
+		for (int i = 0; i < 5000; i++) {
+			trie.putMetadata("//depot/repo/module/" + i + "/ivy.xml", new P4FileMetadata(true, 1, 2, null), i);
+			trie.putMetadata("//depot/kept/module/" + i + "/ivy.xml", new P4FileMetadata(true, 1, 2, null), i);
+		}
+
+		trie.removeMetadataStoredBefore(4000, Arrays.asList("//depot/kept"));
+		assertNull(trie.getMetadata("//depot/repo/module/3999/ivy.xml", Long.MAX_VALUE));
+		assertEquals(1, trie.getMetadata("//depot/repo/module/4000/ivy.xml", Long.MAX_VALUE).getHeadTime());
+		assertEquals(1, trie.getMetadata("//depot/kept/module/0/ivy.xml", Long.MAX_VALUE).getHeadTime());
+		assertEquals(1 + 3 + 2 + 2 * 1000 + 2 + 2 * 5000, trie.getNodeCount());
+	}
+}
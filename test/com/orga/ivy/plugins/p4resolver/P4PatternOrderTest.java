@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the learned pattern order (doesn't need a Perforce server).
+ */
+public class P4PatternOrderTest {
+
+	private File tmpDir = new File("test/tmp/patternorder");
+
+	private List<String> patterns = Arrays.asList("//depot/repo/[organisation]/[module]/ivy-[revision].xml",
+			"//depot/legacy/[organisation]/[module]/[revision]/ivy.xml",
+			"//depot/old/[organisation]/[module]/[revision]/ivy.xml");
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+		tmpDir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+	}
+
+	@Test
+	public void testHitIsTriedFirst() {
+		P4PatternOrder order = new P4PatternOrder(new File(tmpDir, "patterns.properties"));
+		assertEquals(patterns, order.order("com.orga", patterns));
+
+		order.recordHit("com.orga", patterns, patterns.get(2));
+		assertEquals(Arrays.asList(patterns.get(2), patterns.get(0), patterns.get(1)), order.order("com.orga", patterns));
+		assertEquals(patterns, order.order("org.other", patterns));
+
+		order.recordHit("com.orga", patterns, patterns.get(0));
+		assertEquals(patterns, order.order("com.orga", patterns));
+	}
+
+	@Test
+	public void testOrderSurvivesRestart() {
+		File file = new File(tmpDir, "patterns.properties");
+		P4PatternOrder order = new P4PatternOrder(file);
+		order.recordHit("com.orga", patterns, patterns.get(1));
+		order.save();
+
+		// another JVM reading the same file
+		P4PatternOrder restarted = new P4PatternOrder(file);
+		assertEquals(Arrays.asList(patterns.get(1), patterns.get(0), patterns.get(2)),
+				restarted.order("com.orga", patterns));
+		// a pattern removed from the settings is ignored
+		List<String> changed = Arrays.asList(patterns.get(0), patterns.get(2));
+		assertEquals(changed, restarted.order("com.orga", changed));
+	}
+
+	@Test
+	public void testSavesOfOtherJvmsAreKept() {
+		File file = new File(tmpDir, "patterns.properties");
+		P4PatternOrder first = new P4PatternOrder(file);
+		P4PatternOrder second = new P4PatternOrder(file);
+		first.recordHit("com.orga", patterns, patterns.get(1));
+		second.recordHit("org.other", patterns, patterns.get(2));
+		first.save();
+		second.save();
+
+		P4PatternOrder restarted = new P4PatternOrder(file);
+		assertEquals(Arrays.asList(patterns.get(1), patterns.get(0), patterns.get(2)),
+				restarted.order("com.orga", patterns));
+		assertEquals(Arrays.asList(patterns.get(2), patterns.get(0), patterns.get(1)),
+				restarted.order("org.other", patterns));
+		// no part files are left behind
+		assertEquals(0, tmpDir.list(new SuffixFileFilter(".part")).length);
+	}
+}
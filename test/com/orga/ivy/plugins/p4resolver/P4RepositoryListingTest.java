@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.Options;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Tests the bounded listing requests against a fake server (doesn't need a Perforce server).
+ */
+public class P4RepositoryListingTest {
+
+	/**
+	 * Files of the fake depot
+	 */
+	private final List<String> files = new ArrayList<String>();
+
+	/**
+	 * Number of results of each files request answered by the fake server
+	 */
+	private final List<Integer> resultSizes = new ArrayList<Integer>();
+
+	@Test
+	public void testGetName() {
+		assertEquals("ivy.xml", P4Repository.getName("//depot/repo/org/module/ivy.xml"));
+		assertEquals("depot", P4Repository.getName("//depot"));
+	}
+
+	@Test
+	public void testTreeIsListedDirectoryByDirectory() throws Exception {
+		files.add("//depot/repo/readme.txt");
+		for (String module : Arrays.asList("a", "b", "c")) {
+			for (String revision : Arrays.asList("1.0", "2.0", "3.0")) {
+				files.add("//depot/repo/" + module + "/" + revision + "/ivy.xml");
+			}
+		}
+		P4Repository repository = new P4Repository();
+		repository.setListingLimit(5);
+		List<String> paths = new ArrayList<String>();
+
+		repository.listTree(fakeServer(), "//depot/repo", paths);
+		assertEquals(new TreeSet<String>(files), new TreeSet<String>(paths));
+		assertEquals(files.size(), paths.size());
+		for (Integer size : resultSizes) {
+			assertTrue(size.intValue() <= 6);
+		}
+	}
+
+	@Test
+	public void testLargeDirectoryIsListedCompletely() throws Exception {
+		for (int i = 0; i < 8; i++) {
+			files.add("//depot/repo/module/" + i + "/ivy.xml");
+			files.add("//depot/repo/module/file" + i + ".txt");
+		}
+		P4Repository repository = new P4Repository();
+		repository.setListingLimit(5);
+
+		// the newest files come last and mustn't be dropped
+		List<String> names = new ArrayList<String>();
+		repository.listDirectory(fakeServer(), "//depot/repo/module", null, names);
+		assertEquals(8, countFiles(names));
+		assertTrue(names.contains("file7.txt"));
+
+		List<String> paths = new ArrayList<String>();
+		repository.listTree(fakeServer(), "//depot/repo", paths);
+		assertEquals(new TreeSet<String>(files), new TreeSet<String>(paths));
+		assertEquals(16, paths.size());
+	}
+
+	/**
+	 * @return a server answering files and dirs requests from {@link #files}
+	 */
+	private IOptionsServer fakeServer() {
+		return (IOptionsServer) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] {IOptionsServer.class}, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String path = ((IFileSpec) ((List<?>) args[0]).get(0)).getOriginalPathString();
+						int max = Integer.MAX_VALUE;
+						if ((args.length > 1) && (args[1] instanceof Options)) {
+							for (String option : ((Options) args[1]).getOptions()) {
+								if (option.startsWith("-m")) {
+									max = Integer.parseInt(option.substring(2));
+								}
+							}
+						}
+						if (method.getName().equals("getDepotFiles")) {
+							List<IFileSpec> result = new ArrayList<IFileSpec>();
+							for (String file : files) {
+								if (matches(file, path) && (result.size() < max)) {
+									FileSpec spec = new FileSpec();
+									spec.setOpStatus(FileSpecOpStatus.VALID);
+									spec.setDepotPath(file);
+									spec.setAction(FileAction.ADD);
+									result.add(spec);
+								}
+							}
+							resultSizes.add(result.size());
+							return result;
+						}
+						if (method.getName().equals("getDirectories")) {
+							String prefix = path.substring(0, path.length() - 1);
+							TreeSet<String> dirs = new TreeSet<String>();
+							for (String file : files) {
+								for (int slash = file.indexOf('/', 2); slash > 0; slash = file.indexOf('/', slash + 1)) {
+									String dir = file.substring(0, slash);
+									if (dir.startsWith(prefix) && (dir.indexOf('/', prefix.length()) < 0)) {
+										dirs.add(dir);
+									}
+								}
+							}
+							List<IFileSpec> result = new ArrayList<IFileSpec>();
+							for (String dir : dirs) {
+								FileSpec spec = new FileSpec();
+								spec.setOpStatus(FileSpecOpStatus.VALID);
+								spec.setOriginalPath(dir);
+								result.add(spec);
+							}
+							return result;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	/**
+	 * @param names names of a directory listing
+	 * @return number of the names of files
+	 */
+	private static int countFiles(List<String> names) {
+		int count = 0;
+		for (String name : names) {
+			if (name.endsWith(".txt")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param file depot path of a file
+	 * @param path depot path ending with /... or /*
+	 * @return true if the path matches the file
+	 */
+	private static boolean matches(String file, String path) {
+		if (path.endsWith("/...")) {
+			return file.startsWith(path.substring(0, path.length() - 3));
+		}
+		String dir = path.substring(0, path.length() - 1);
+		return file.startsWith(dir) && (file.indexOf('/', dir.length()) < 0);
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests matching depot paths against resolver patterns (doesn't need a Perforce server).
+ */
+public class P4ResolverPatternTest {
+
+	@Test
+	public void testFixedRoot() {
+		assertEquals("//depot/repo", P4Resolver.getFixedRoot("//depot/repo/[organisation]/[module]/ivy-[revision].xml"));
+		assertEquals("//depot/repo/org/module",
+				P4Resolver.getFixedRoot("//depot/repo/org/module/[revision]/[artifact]-[revision](-[classifier]).[ext]"));
+		assertNull(P4Resolver.getFixedRoot("//[organisation]/[module]/ivy-[revision].xml"));
+	}
+
+	@Test
+	public void testRegexCapturesToken() {
+		Pattern regex = P4Resolver.toRegex(
+				"//depot/repo/org/module/[revision]/[artifact]-[revision](-[classifier]).[ext]", "revision");
+
+		Matcher matcher = regex.matcher("//depot/repo/org/module/1.2/module-1.2.jar");
+		assertTrue(matcher.matches());
+		assertEquals("1.2", matcher.group(1));
+
+		matcher = regex.matcher("//depot/repo/org/module/1.2/module-1.2-sources.jar");
+		assertTrue(matcher.matches());
+		assertEquals("1.2", matcher.group(1));
+
+		assertFalse(regex.matcher("//depot/repo/org/module/1.2/module-1.3.jar").matches());
+		assertFalse(regex.matcher("//depot/repo/org/module/1.2/sub/module-1.2.jar").matches());
+	}
+
+	@Test
+	public void testTokenInUnmatchedOptionalPart() {
+		Pattern regex = P4Resolver.toRegex("//depot/repo/org/module/1.2/[artifact](-[classifier]).[ext]", "classifier");
+
+		Matcher matcher = regex.matcher("//depot/repo/org/module/1.2/module.jar");
+		assertTrue(matcher.matches());
+		assertNull(matcher.group(1));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests coalescing of concurrent requests (doesn't need a Perforce server).
+ */
+public class P4SingleFlightTest {
+
+	@Test
+	public void testFollowerSharesResultOfLeader() throws Exception {
+		final P4SingleFlight<String> singleFlight = new P4SingleFlight<String>();
+		final AtomicInteger calls = new AtomicInteger();
+		final Callable<String> request = new Callable<String>() {
+			public String call() {
+				return "result " + calls.incrementAndGet();
+			}
+		};
+		final String[] followerResult = new String[1];
+
+		P4SingleFlight.Flight<String> flight = singleFlight.join("//depot/repo/a.jar");
+		assertTrue(flight.isLeader());
+		Thread follower = new Thread() {
+			@Override
+			public void run() {
+				try {
+					followerResult[0] = singleFlight.execute("//depot/repo/a.jar", request);
+				} catch (IOException e) {
+					followerResult[0] = e.toString();
+				}
+			}
+		};
+		follower.start();
+		while (follower.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+
+		assertEquals("result 1", singleFlight.run(flight, request));
+		follower.join();
+		assertEquals("result 1", followerResult[0]);
+		assertEquals(1, calls.get());
+		assertTrue(singleFlight.leave(flight));
+
+		// the completed flight is forgotten
+		assertEquals("result 2", singleFlight.execute("//depot/repo/a.jar", request));
+	}
+
+	@Test
+	public void testFailureIsHandedToParticipants() {
+		P4SingleFlight<String> singleFlight = new P4SingleFlight<String>();
+		P4SingleFlight.Flight<String> flight = singleFlight.join("//depot/repo/b.jar");
+		try {
+			singleFlight.run(flight, new Callable<String>() {
+				public String call() throws IOException {
+					throw new IOException("Perforce access problem");
+				}
+			});
+			fail("failure expected");
+		} catch (IOException e) {
+			assertEquals("Perforce access problem", e.getMessage());
+		}
+		assertFalse(singleFlight.isAlone(singleFlight.join("//depot/repo/c.jar")));
+		assertTrue(singleFlight.isAlone(flight));
+		assertTrue(singleFlight.leave(flight));
+	}
+}
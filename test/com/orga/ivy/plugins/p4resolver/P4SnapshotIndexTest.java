@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 Felix Drueke
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.orga.ivy.plugins.p4resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.impl.generic.core.file.ExtendedFileSpec;
+
+/**
+ * Tests the snapshot file and its delta (doesn't need a Perforce server).
+ */
+public class P4SnapshotIndexTest {
+
+	private File tmpDir = new File("test/tmp/snapshot");
+
+	private File file = new File(tmpDir, "repo.snapshot");
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+		tmpDir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tmpDir);
+	}
+
+	@Test
+	public void testChangesAreAppended() throws IOException {
+		P4SnapshotIndex index = new P4SnapshotIndex(file, "//depot/repo");
+		index.create(10, Arrays.asList(spec("//depot/repo/org/a/1.0/ivy.xml", 1, 10, FileAction.ADD),
+				spec("//depot/repo/org/b/1.0/ivy.xml", 1, 10, FileAction.ADD)));
+		long built = file.length();
+
+		List<String> changed = index.update(Arrays.asList(spec("//depot/repo/org/a/1.0/ivy.xml", 2, 11,
+				FileAction.EDIT), spec("//depot/repo/org/a/2.0/ivy.xml", 1, 11, FileAction.ADD),
+				spec("//depot/repo/org/b/1.0/ivy.xml", 2, 12, FileAction.DELETE)));
+		assertEquals(3, changed.size());
+		// appended behind the sorted records instead of rewriting them
+		assertTrue(file.length() > built);
+
+		assertEquals(2000, index.lookup("//depot/repo/org/a/1.0/ivy.xml").getSize());
+		assertEquals(1000, index.lookup("//depot/repo/org/a/2.0/ivy.xml").getSize());
+		assertFalse(index.lookup("//depot/repo/org/c/1.0/ivy.xml").exists());
+		assertEquals(Arrays.asList("1.0", "2.0"), index.list("//depot/repo/org/a"));
+		// b only has a deleted file left
+		assertEquals(Arrays.asList("a"), index.list("//depot/repo/org"));
+		assertEquals(Arrays.asList("//depot/repo/org/a/1.0/ivy.xml", "//depot/repo/org/a/2.0/ivy.xml"),
+				index.listTree("//depot/repo"));
+
+		// another JVM opening the same file sees the delta
+		P4SnapshotIndex other = new P4SnapshotIndex(file, "//depot/repo");
+		assertTrue(other.reload());
+		assertEquals(2000, other.lookup("//depot/repo/org/a/1.0/ivy.xml").getSize());
+		assertEquals(index.listTree("//depot/repo"), other.listTree("//depot/repo"));
+
+		// changes already applied by another JVM are skipped
+		long updated = file.length();
+		other.update(Arrays.asList(spec("//depot/repo/org/a/2.0/ivy.xml", 1, 11, FileAction.ADD)));
+		assertEquals(updated, file.length());
+	}
+
+	@Test
+	public void testLargeDeltaIsMerged() throws IOException {
+		P4SnapshotIndex index = new P4SnapshotIndex(file, "//depot/repo");
+		index.create(10, Arrays.asList(spec("//depot/repo/org/a/1.0/ivy.xml", 1, 10, FileAction.ADD)));
+
+		List<IExtendedFileSpec> specs = new ArrayList<IExtendedFileSpec>();
+		List<String> expected = new ArrayList<String>();
+		expected.add("//depot/repo/org/a/1.0/ivy.xml");
+		for (int i = 0; i < 1500; i++) {
+			String path = "//depot/repo/org/m" + (10000 + i) + "/1.0/ivy.xml";
+			specs.add(spec(path, 1, 11 + i / 100, FileAction.ADD));
+			expected.add(path);
+		}
+		for (int i = 0; i < specs.size(); i += 100) {
+			index.update(specs.subList(i, i + 100));
+		}
+
+		assertEquals(expected, index.listTree("//depot/repo"));
+		P4SnapshotIndex other = new P4SnapshotIndex(file, "//depot/repo");
+		assertTrue(other.reload());
+		assertEquals(expected, other.listTree("//depot/repo"));
+		assertEquals(1000, other.lookup("//depot/repo/org/m10500/1.0/ivy.xml").getSize());
+	}
+
+	private static IExtendedFileSpec spec(String path, int rev, int change, FileAction action) {
+		ExtendedFileSpec spec = new ExtendedFileSpec(path);
+		spec.setDepotPath(path);
+		spec.setHeadRev(rev);
+		spec.setHeadChange(change);
+		spec.setHeadAction(action);
+		spec.setHeadTime(new Date(1300000000000L + change));
+		spec.setFileSize(1000L * rev);
+		return spec;
+	}
+}